@@ -0,0 +1,87 @@
+package org.nunotaba;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 只计数的LockEventListener,用LongAdder分散到各个线程,计数本身不会成为新的竞争点
+ * 可以同时挂在多把锁上,得到的是它们的总和
+ */
+public class LockEventCounter implements LockEventListener {
+
+    private final LongAdder fastPathAcquires = new LongAdder();
+    private final LongAdder enqueues = new LongAdder();
+    private final LongAdder spinAcquires = new LongAdder();
+    private final LongAdder parks = new LongAdder();
+    private final LongAdder queuedAcquires = new LongAdder();
+    private final LongAdder handoffs = new LongAdder();
+    private final LongAdder cancels = new LongAdder();
+
+    @Override
+    public void onFastPathAcquire(MyQueuedSynchronizer lock, Thread thread) {
+        fastPathAcquires.increment();
+    }
+
+    @Override
+    public void onEnqueue(MyQueuedSynchronizer lock, Thread thread) {
+        enqueues.increment();
+    }
+
+    @Override
+    public void onSpinAcquire(MyQueuedSynchronizer lock, Thread thread) {
+        spinAcquires.increment();
+    }
+
+    @Override
+    public void onPark(MyQueuedSynchronizer lock, Thread thread) {
+        parks.increment();
+    }
+
+    @Override
+    public void onQueuedAcquire(MyQueuedSynchronizer lock, Thread thread) {
+        queuedAcquires.increment();
+    }
+
+    @Override
+    public void onCancel(MyQueuedSynchronizer lock, Thread thread) {
+        cancels.increment();
+    }
+
+    @Override
+    public void onHandoff(MyQueuedSynchronizer lock, Thread from, Thread to) {
+        handoffs.increment();
+    }
+
+    public long getFastPathAcquires() {
+        return fastPathAcquires.sum();
+    }
+
+    public long getEnqueues() {
+        return enqueues.sum();
+    }
+
+    public long getSpinAcquires() {
+        return spinAcquires.sum();
+    }
+
+    public long getParks() {
+        return parks.sum();
+    }
+
+    public long getQueuedAcquires() {
+        return queuedAcquires.sum();
+    }
+
+    public long getHandoffs() {
+        return handoffs.sum();
+    }
+
+    public long getCancels() {
+        return cancels.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "fastPath=" + getFastPathAcquires() + ", enqueues=" + getEnqueues() + ", spinAcquires=" + getSpinAcquires() + ", parks=" + getParks()
+                + ", queuedAcquires=" + getQueuedAcquires() + ", handoffs=" + getHandoffs() + ", cancels=" + getCancels();
+    }
+}
@@ -0,0 +1,57 @@
+package org.nunotaba;
+
+/**
+ * MyLock(以及其他基于MyQueuedSynchronizer的锁)的事件回调,替代原来在加锁/解锁路径上的System.out.println
+ * 没有设置的时候,加锁和解锁只多一次读字段和一次判空,不会分配任何对象
+ * 回调在加锁/解锁的线程上同步执行,实现必须足够轻量,不能阻塞,也不能再去加同一把锁
+ */
+public interface LockEventListener {
+
+    /**
+     * 没有排队,一次CAS直接拿到了锁
+     */
+    default void onFastPathAcquire(MyQueuedSynchronizer lock, Thread thread) {
+    }
+
+    /**
+     * 抢锁失败,把自己放进了CLH队列
+     */
+    default void onEnqueue(MyQueuedSynchronizer lock, Thread thread) {
+    }
+
+    /**
+     * 排在队首,park之前自旋等到了锁
+     */
+    default void onSpinAcquire(MyQueuedSynchronizer lock, Thread thread) {
+    }
+
+    /**
+     * 在队列里拿不到锁,准备park
+     */
+    default void onPark(MyQueuedSynchronizer lock, Thread thread) {
+    }
+
+    /**
+     * 在队列里等待之后拿到了锁
+     */
+    default void onQueuedAcquire(MyQueuedSynchronizer lock, Thread thread) {
+    }
+
+    /**
+     * 在队列里等待超时或者被中断,放弃了排队
+     */
+    default void onCancel(MyQueuedSynchronizer lock, Thread thread) {
+    }
+
+    /**
+     * 独占锁被完全释放(重入的解锁不算),回调的时候锁已经是空闲的了
+     */
+    default void onRelease(MyQueuedSynchronizer lock, Thread thread) {
+    }
+
+    /**
+     * 释放锁的时候唤醒了队列里的下一个线程
+     */
+    default void onHandoff(MyQueuedSynchronizer lock, Thread from, Thread to) {
+    }
+}
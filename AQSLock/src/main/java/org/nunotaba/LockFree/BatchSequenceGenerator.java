@@ -0,0 +1,56 @@
+package org.nunotaba.LockFree;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量发号的ID生成器: 每个线程一次从全局的AtomicLong里拿batchSize个号,用完了再去拿
+ * 全局计数器上的竞争降到原来的1/batchSize,发号本身只是改ThreadLocal里的一个long
+ *
+ * 保证: 所有线程拿到的ID都不重复,同一个线程拿到的ID严格递增
+ * 不保证: 不同线程之间的ID有先后顺序; ID连续(线程结束时手里没用完的号就浪费了)
+ */
+public class BatchSequenceGenerator {
+
+    private final AtomicLong next;
+    private final int batchSize;
+
+    // {下一个要发的号, 这一批的上界(不包含)}
+    private final ThreadLocal<long[]> range = ThreadLocal.withInitial(() -> new long[2]);
+
+    public BatchSequenceGenerator(int batchSize) {
+        this(0, batchSize);
+    }
+
+    /**
+     * @param initial 第一个ID
+     * @param batchSize 每个线程一次拿多少个号
+     */
+    public BatchSequenceGenerator(long initial, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize: " + batchSize);
+        }
+        this.next = new AtomicLong(initial);
+        this.batchSize = batchSize;
+    }
+
+    public long nextId() {
+        long[] r = range.get();
+        if (r[0] == r[1]) {
+            long start = next.getAndAdd(batchSize);
+            r[0] = start;
+            r[1] = start + batchSize;
+        }
+        return r[0]++;
+    }
+
+    /**
+     * @return 已经分出去的号的上界(不包含),包括还在各个线程手里没用掉的
+     */
+    public long reservedUpTo() {
+        return next.get();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+}
@@ -0,0 +1,366 @@
+package org.nunotaba.LockFree;
+
+import org.nunotaba.MyLock;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * 和Main里一样的共享计数器模式(很多线程改同一个数),比较用MyLock保护和无锁的几种写法:
+ *   计数:    MyLock保护的long / AtomicLong / StripedCounter / LongAdder
+ *   最大最小: MyLock保护的两个long / MaxMinAccumulator
+ *   发号:    MyLock保护的long / AtomicLong / BatchSequenceGenerator
+ * 每组的总操作数固定,平均分给各个线程,打印每秒百万次操作; 每组跑完都检查结果对不对
+ * 最后单独检查一遍BatchSequenceGenerator发出来的号没有重复
+ *
+ * 用法: LockFreeBenchmark [每组的总操作数,默认4000000]
+ */
+public class LockFreeBenchmark {
+    private static final int[] THREADS = {1, 4, 16, 100};
+
+    interface Workload {
+        /**
+         * @return 每个线程执行一次操作的代码,参数是线程编号
+         */
+        IntConsumer operation();
+
+        /**
+         * 所有线程结束之后检查结果,totalOps是实际执行的操作数
+         */
+        void verify(long totalOps);
+    }
+
+    interface WorkloadFactory {
+        Workload create();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long total = args.length > 0 ? Long.parseLong(args[0]) : 4_000_000;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors() + ", ops per run = " + total);
+
+        String[] counterNames = {"MyLock long", "AtomicLong", "StripedCounter", "LongAdder"};
+        WorkloadFactory[] counters = {
+                LockFreeBenchmark::lockedCounter, LockFreeBenchmark::atomicCounter,
+                LockFreeBenchmark::stripedCounter, LockFreeBenchmark::longAdder};
+        table("counter (decrement)", counterNames, counters, total);
+
+        String[] maxMinNames = {"MyLock max/min", "MaxMinAccumulator"};
+        WorkloadFactory[] maxMin = {LockFreeBenchmark::lockedMaxMin, LockFreeBenchmark::accumulator};
+        table("max/min", maxMinNames, maxMin, total);
+
+        String[] idNames = {"MyLock long", "AtomicLong", "Batch(1024)"};
+        WorkloadFactory[] ids = {
+                LockFreeBenchmark::lockedIds, LockFreeBenchmark::atomicIds, LockFreeBenchmark::batchIds};
+        table("sequence ids", idNames, ids, total);
+
+        checkBatchIdsUnique(100, 20_000, 1024);
+        System.out.println("all results verified");
+    }
+
+    private static void table(String title, String[] names, WorkloadFactory[] factories, long total)
+            throws InterruptedException {
+        System.out.println();
+        System.out.println(title);
+        System.out.printf("%8s", "threads");
+        for (String name : names) {
+            System.out.printf(" %18s", name);
+        }
+        System.out.println();
+        for (int threads : THREADS) {
+            System.out.printf("%8d", threads);
+            for (WorkloadFactory factory : factories) {
+                // 先热身一次
+                run(factory.create(), threads, total / 4);
+                double mops = run(factory.create(), threads, total);
+                System.out.printf(" %14.2f M/s", mops);
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return 每微秒的操作数,也就是M/s
+     */
+    private static double run(Workload workload, int threadCount, long total) throws InterruptedException {
+        long perThread = total / threadCount;
+        IntConsumer op = workload.operation();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            int id = i;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (long n = 0; n < perThread; ++n) {
+                    op.accept(id);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        workload.verify(perThread * threadCount);
+        return perThread * threadCount * 1000.0 / elapsed;
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    // ---------- 计数 ----------
+
+    private static Workload lockedCounter() {
+        MyLock lock = new MyLock();
+        long[] count = new long[1];
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> {
+                    lock.lock();
+                    try {
+                        --count[0];
+                    } finally {
+                        lock.unlock();
+                    }
+                };
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                check(count[0] == -totalOps, "MyLock counter: " + count[0]);
+            }
+        };
+    }
+
+    private static Workload atomicCounter() {
+        AtomicLong count = new AtomicLong();
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> count.decrementAndGet();
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                check(count.get() == -totalOps, "AtomicLong counter: " + count.get());
+            }
+        };
+    }
+
+    private static Workload stripedCounter() {
+        StripedCounter count = new StripedCounter();
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> count.decrement();
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                check(count.sum() == -totalOps, "StripedCounter: " + count.sum());
+            }
+        };
+    }
+
+    private static Workload longAdder() {
+        LongAdder count = new LongAdder();
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> count.decrement();
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                check(count.sum() == -totalOps, "LongAdder: " + count.sum());
+            }
+        };
+    }
+
+    // ---------- 最大最小 ----------
+    // 每个线程产生随机值,同时自己记一份最大最小值,最后合起来和共享的结果比
+
+    private static final int MAX_THREADS = 1024;
+
+    private static Workload lockedMaxMin() {
+        MyLock lock = new MyLock();
+        long[] maxMin = {Long.MIN_VALUE, Long.MAX_VALUE};
+        long[][] expected = expectedMaxMin();
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> {
+                    long x = sample(expected[id]);
+                    lock.lock();
+                    try {
+                        if (x > maxMin[0]) {
+                            maxMin[0] = x;
+                        }
+                        if (x < maxMin[1]) {
+                            maxMin[1] = x;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                };
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                verifyMaxMin(expected, maxMin[0], maxMin[1], "MyLock max/min");
+            }
+        };
+    }
+
+    private static Workload accumulator() {
+        MaxMinAccumulator acc = new MaxMinAccumulator();
+        long[][] expected = expectedMaxMin();
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> acc.accumulate(sample(expected[id]));
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                verifyMaxMin(expected, acc.getMax(), acc.getMin(), "MaxMinAccumulator");
+            }
+        };
+    }
+
+    private static long[][] expectedMaxMin() {
+        long[][] expected = new long[MAX_THREADS][];
+        for (int i = 0; i < MAX_THREADS; ++i) {
+            expected[i] = new long[]{Long.MIN_VALUE, Long.MAX_VALUE};
+        }
+        return expected;
+    }
+
+    /**
+     * 产生一个随机值(像延迟一样大多数很小,偶尔很大),顺便记到这个线程自己的最大最小值里
+     */
+    private static long sample(long[] mine) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long x = random.nextInt(100) == 0 ? random.nextLong(1_000_000) : random.nextLong(1_000);
+        if (x > mine[0]) {
+            mine[0] = x;
+        }
+        if (x < mine[1]) {
+            mine[1] = x;
+        }
+        return x;
+    }
+
+    private static void verifyMaxMin(long[][] expected, long max, long min, String name) {
+        long expectedMax = Long.MIN_VALUE;
+        long expectedMin = Long.MAX_VALUE;
+        for (long[] e : expected) {
+            expectedMax = Math.max(expectedMax, e[0]);
+            expectedMin = Math.min(expectedMin, e[1]);
+        }
+        check(max == expectedMax && min == expectedMin, name + ": max=" + max + " min=" + min
+                + " but expected max=" + expectedMax + " min=" + expectedMin);
+    }
+
+    // ---------- 发号 ----------
+
+    private static Workload lockedIds() {
+        MyLock lock = new MyLock();
+        long[] next = new long[1];
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> {
+                    lock.lock();
+                    try {
+                        ++next[0];
+                    } finally {
+                        lock.unlock();
+                    }
+                };
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                check(next[0] == totalOps, "MyLock ids: " + next[0]);
+            }
+        };
+    }
+
+    private static Workload atomicIds() {
+        AtomicLong next = new AtomicLong();
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> next.getAndIncrement();
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                check(next.get() == totalOps, "AtomicLong ids: " + next.get());
+            }
+        };
+    }
+
+    private static Workload batchIds() {
+        BatchSequenceGenerator generator = new BatchSequenceGenerator(1024);
+        return new Workload() {
+            @Override
+            public IntConsumer operation() {
+                return id -> generator.nextId();
+            }
+
+            @Override
+            public void verify(long totalOps) {
+                // 每个线程最多浪费一批
+                check(generator.reservedUpTo() >= totalOps, "Batch ids reserved " + generator.reservedUpTo());
+            }
+        };
+    }
+
+    /**
+     * 每个线程把拿到的号都记下来,检查每个线程内严格递增,所有线程合起来没有重复
+     */
+    private static void checkBatchIdsUnique(int threadCount, int perThread, int batchSize) throws InterruptedException {
+        BatchSequenceGenerator generator = new BatchSequenceGenerator(batchSize);
+        long[][] ids = new long[threadCount][perThread];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            long[] mine = ids[i];
+            Thread t = new Thread(() -> {
+                for (int n = 0; n < perThread; ++n) {
+                    mine[n] = generator.nextId();
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        BitSet seen = new BitSet();
+        for (long[] mine : ids) {
+            for (int n = 0; n < mine.length; ++n) {
+                check(n == 0 || mine[n] > mine[n - 1], "ids of one thread are not increasing");
+                check(!seen.get((int) mine[n]), "duplicate id " + mine[n]);
+                seen.set((int) mine[n]);
+            }
+        }
+    }
+}
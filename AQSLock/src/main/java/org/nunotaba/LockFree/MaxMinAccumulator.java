@@ -0,0 +1,55 @@
+package org.nunotaba.LockFree;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁地记录最大值和最小值(比如最大延迟,最小剩余量)
+ * 先读一次,新值不会改变结果就直接返回,只有真的更大/更小才CAS
+ * 运行一段时间之后绝大多数值都不会刷新最大最小值,这时accumulate就只是两次读
+ */
+public class MaxMinAccumulator {
+
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    public void accumulate(long x) {
+        long m;
+        while (x > (m = max.get())) {
+            if (max.compareAndSet(m, x)) {
+                break;
+            }
+        }
+        while (x < (m = min.get())) {
+            if (min.compareAndSet(m, x)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 目前为止的最大值,还没有值时是Long.MIN_VALUE
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return 目前为止的最小值,还没有值时是Long.MAX_VALUE
+     */
+    public long getMin() {
+        return min.get();
+    }
+
+    /**
+     * 清空,只应该在没有并发accumulate的时候调用,否则最大值和最小值可能来自不同的区间
+     */
+    public void reset() {
+        max.set(Long.MIN_VALUE);
+        min.set(Long.MAX_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return "max=" + getMax() + ", min=" + getMin();
+    }
+}
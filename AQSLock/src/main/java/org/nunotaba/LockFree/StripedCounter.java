@@ -0,0 +1,131 @@
+package org.nunotaba.LockFree;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 和LongAdder一个思路的计数器: 没有竞争的时候只CAS一个base,
+ * 一旦CAS失败(说明有别的线程同时在改),就分散到多个cell上,每个线程尽量只改自己的那个cell
+ * 读的时候把base和所有cell加起来,所以sum()不是一个原子的快照,只适合统计
+ *
+ * 和LongAdder的区别:
+ *   cell的个数在第一次竞争时一次性定下来(不小于CPU数的2的幂,最多64),之后不再扩容,不需要额外的锁
+ *   cell放在一个AtomicLongArray里,每个cell占16个long(128字节),相邻的cell不会在同一个缓存行里
+ */
+public class StripedCounter {
+
+    // 每个cell在数组里占的long数,128字节,也盖住了相邻缓存行预取
+    private static final int STRIDE = 16;
+    private static final int MAX_CELLS = 64;
+    private static final int CELLS;
+
+    static {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < cpus && n < MAX_CELLS) {
+            n <<= 1;
+        }
+        CELLS = n;
+    }
+
+    // 每个线程选cell用的随机数,CAS失败时换一个,避开和别的线程撞在同一个cell上
+    // 所有计数器共用,和LongAdder用Thread里的probe是一样的
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(
+            () -> new int[]{mix(System.identityHashCode(Thread.currentThread()))});
+
+    private final AtomicLong base = new AtomicLong();
+    private final AtomicReference<AtomicLongArray> cells = new AtomicReference<>();
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    public void add(long x) {
+        AtomicLongArray cs = cells.get();
+        if (cs == null) {
+            long b = base.get();
+            if (base.compareAndSet(b, b + x)) {
+                return;
+            }
+            // 第一次有竞争,建好cell,这次和以后都走cell
+            cs = new AtomicLongArray(CELLS * STRIDE);
+            if (!cells.compareAndSet(null, cs)) {
+                cs = cells.get();
+            }
+        }
+        int[] probe = PROBE.get();
+        int h = probe[0];
+        int index = (h & (CELLS - 1)) * STRIDE;
+        long v = cs.get(index);
+        if (!cs.compareAndSet(index, v, v + x)) {
+            // 和别的线程撞上了,换一个cell,这次直接getAndAdd保证成功
+            probe[0] = h = xorShift(h);
+            cs.getAndAdd((h & (CELLS - 1)) * STRIDE, x);
+        }
+    }
+
+    /**
+     * @return 当前的总和; 有并发的add时只是一个近似值
+     */
+    public long sum() {
+        long sum = base.get();
+        AtomicLongArray cs = cells.get();
+        if (cs != null) {
+            for (int i = 0; i < CELLS; ++i) {
+                sum += cs.get(i * STRIDE);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 清零,只应该在没有并发add的时候调用
+     */
+    public void reset() {
+        base.set(0);
+        AtomicLongArray cs = cells.get();
+        if (cs != null) {
+            for (int i = 0; i < CELLS; ++i) {
+                cs.set(i * STRIDE, 0);
+            }
+        }
+    }
+
+    /**
+     * 取出总和并清零,每个cell用getAndSet,并发的add不会丢,只会算到下一次
+     */
+    public long sumThenReset() {
+        long sum = base.getAndSet(0);
+        AtomicLongArray cs = cells.get();
+        if (cs != null) {
+            for (int i = 0; i < CELLS; ++i) {
+                sum += cs.getAndSet(i * STRIDE, 0);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h == 0 ? 1 : h;
+    }
+
+    private static int xorShift(int h) {
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        return h;
+    }
+}
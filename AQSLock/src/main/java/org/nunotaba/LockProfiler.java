@@ -0,0 +1,383 @@
+package org.nunotaba;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 锁竞争的分析器: 作为LockEventListener挂在一把锁上
+ *   等锁的时间(快速路径拿到的算0)和持有锁的时间的直方图
+ *   CLH队列的最大长度
+ *   哪些线程持有锁的时候让别人等得最多
+ * 时间相关的统计是抽样的: 每sampleEvery次加锁只量一次,nanoTime和ThreadLocal的开销有上限
+ * 队列长度每次排队/出队都要更新,但这只发生在已经有竞争的慢路径上
+ *
+ * 不用的时候不要挂上去: 锁的热路径上只有一次listener的判空
+ * 要在锁还没有竞争的时候挂上去,否则已经在排队的线程出队时会让队列长度的计数偏小
+ * 用法:
+ *   LockProfiler profiler = new LockProfiler(64);
+ *   lock.setEventListener(profiler);
+ *   profiler.exportEvery(10, TimeUnit.SECONDS, snapshot -> System.out.println(snapshot));
+ *   ...
+ *   lock.setEventListener(null);
+ *   profiler.close();
+ */
+public class LockProfiler implements LockEventListener, AutoCloseable {
+
+    // 最多记录多少个不同的持有者,超过之后都算到OTHER_OWNERS里,map不会无限增长
+    private static final int MAX_OWNERS = 1024;
+    private static final String OTHER_OWNERS = "<other>";
+    // 快照里列出几个竞争最多的持有者
+    private static final int TOP_OWNERS = 5;
+
+    private final int sampleEvery;
+
+    private final Histogram waitHistogram = new Histogram();
+    private final Histogram holdHistogram = new Histogram();
+
+    private final AtomicInteger queueLength = new AtomicInteger();
+    private final AtomicInteger maxQueueLength = new AtomicInteger();
+    private final LongAdder cancels = new LongAdder();
+
+    private final ConcurrentHashMap<String, OwnerStats> owners = new ConcurrentHashMap<>();
+
+    // 每个线程在这把锁上正在进行的那次排队抽样
+    private final ThreadLocal<Sample> samples = ThreadLocal.withInitial(Sample::new);
+    // 独占锁同一时刻只有一个持有者,被抽中的那次持有记在这里,解锁的时候不用查ThreadLocal
+    // onRelease是在锁已经释放之后回调的,下一个持有者可能已经写进来了,所以要比较线程并且用CAS取走
+    private final AtomicReference<HoldSample> currentHold = new AtomicReference<>();
+
+    private ScheduledExecutorService exporter;
+
+    /**
+     * @param sampleEvery 平均每多少次加锁量一次时间,1表示每次都量
+     */
+    public LockProfiler(int sampleEvery) {
+        if (sampleEvery <= 0) {
+            throw new IllegalArgumentException("sampleEvery: " + sampleEvery);
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    private boolean sampled() {
+        return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+
+    @Override
+    public void onFastPathAcquire(MyQueuedSynchronizer lock, Thread thread) {
+        if (!sampled()) {
+            return;
+        }
+        waitHistogram.record(0);
+        // 共享模式(读锁)没有owner,只统计独占的持有时间
+        if (lock.owner == thread) {
+            currentHold.set(new HoldSample(thread, System.nanoTime()));
+        }
+    }
+
+    @Override
+    public void onEnqueue(MyQueuedSynchronizer lock, Thread thread) {
+        int length = queueLength.incrementAndGet();
+        int max;
+        while (length > (max = maxQueueLength.get()) && !maxQueueLength.compareAndSet(max, length)) {
+            // 重试
+        }
+        if (sampled()) {
+            Sample sample = samples.get();
+            sample.enqueuedAt = System.nanoTime();
+            sample.blockedBy = lock.owner;
+        }
+    }
+
+    @Override
+    public void onQueuedAcquire(MyQueuedSynchronizer lock, Thread thread) {
+        queueLength.decrementAndGet();
+        Sample sample = samples.get();
+        if (sample.enqueuedAt == 0) {
+            if (lock.owner == thread && sampled()) {
+                currentHold.set(new HoldSample(thread, System.nanoTime()));
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        long waited = now - sample.enqueuedAt;
+        waitHistogram.record(waited);
+        Thread blockedBy = sample.blockedBy;
+        if (blockedBy != null) {
+            ownerStats(blockedBy.getName()).add(waited);
+        }
+        sample.enqueuedAt = 0;
+        sample.blockedBy = null;
+        if (lock.owner == thread) {
+            currentHold.set(new HoldSample(thread, now));
+        }
+    }
+
+    @Override
+    public void onCancel(MyQueuedSynchronizer lock, Thread thread) {
+        queueLength.decrementAndGet();
+        cancels.increment();
+        Sample sample = samples.get();
+        sample.enqueuedAt = 0;
+        sample.blockedBy = null;
+    }
+
+    @Override
+    public void onRelease(MyQueuedSynchronizer lock, Thread thread) {
+        HoldSample hold = currentHold.get();
+        if (hold != null && hold.thread == thread && currentHold.compareAndSet(hold, null)) {
+            holdHistogram.record(System.nanoTime() - hold.acquiredAt);
+        }
+    }
+
+    private OwnerStats ownerStats(String name) {
+        OwnerStats stats = owners.get(name);
+        if (stats != null) {
+            return stats;
+        }
+        if (owners.size() >= MAX_OWNERS) {
+            name = OTHER_OWNERS;
+        }
+        return owners.computeIfAbsent(name, k -> new OwnerStats());
+    }
+
+    /**
+     * @return 从创建(或者上一次reset)到现在的统计
+     */
+    public Snapshot snapshot() {
+        List<OwnerEntry> top = new ArrayList<>();
+        for (Map.Entry<String, OwnerStats> e : owners.entrySet()) {
+            top.add(new OwnerEntry(e.getKey(), e.getValue().blocked.sum(), e.getValue().blockedNanos.sum()));
+        }
+        top.sort(Comparator.comparingLong((OwnerEntry o) -> o.blockedNanos).reversed());
+        if (top.size() > TOP_OWNERS) {
+            top = new ArrayList<>(top.subList(0, TOP_OWNERS));
+        }
+        return new Snapshot(sampleEvery, waitHistogram.summary(), holdHistogram.summary(),
+                maxQueueLength.get(), cancels.sum(), top);
+    }
+
+    /**
+     * 取一个快照然后清零,周期性导出用,每个快照只包含这一段时间的数据
+     * 清零和记录之间没有加锁,边界上的几次抽样可能算到前一段或者后一段里
+     */
+    public Snapshot snapshotAndReset() {
+        Snapshot snapshot = snapshot();
+        waitHistogram.reset();
+        holdHistogram.reset();
+        maxQueueLength.set(Math.max(0, queueLength.get()));
+        cancels.reset();
+        owners.clear();
+        currentHold.set(null);
+        return snapshot;
+    }
+
+    /**
+     * 每隔period调用一次snapshotAndReset,把快照交给sink; 在一个后台的守护线程上执行
+     * 再次调用会替换掉之前的导出
+     * sink抛出的异常交给导出线程的UncaughtExceptionHandler报告,不会取消之后的导出
+     */
+    public synchronized void exportEvery(long period, TimeUnit unit, Consumer<Snapshot> sink) {
+        close();
+        exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lock-profiler-export");
+            t.setDaemon(true);
+            return t;
+        });
+        exporter.scheduleAtFixedRate(() -> {
+            try {
+                sink.accept(snapshotAndReset());
+            } catch (RuntimeException e) {
+                // 周期任务抛出异常会被ScheduledExecutorService悄悄取消掉,这里报告之后吞掉
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, e);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * 停止周期性导出
+     */
+    @Override
+    public synchronized void close() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+            exporter = null;
+        }
+    }
+
+    private static final class Sample {
+        // 这次排队是什么时候开始的,0表示这次没有被抽中
+        long enqueuedAt;
+        // 开始排队的时候是谁持有锁
+        Thread blockedBy;
+    }
+
+    private static final class HoldSample {
+        final Thread thread;
+        final long acquiredAt;
+
+        HoldSample(Thread thread, long acquiredAt) {
+            this.thread = thread;
+            this.acquiredAt = acquiredAt;
+        }
+    }
+
+    private static final class OwnerStats {
+        final LongAdder blocked = new LongAdder();
+        final LongAdder blockedNanos = new LongAdder();
+
+        void add(long waited) {
+            blocked.increment();
+            blockedNanos.add(waited);
+        }
+    }
+
+    /**
+     * 以2为底的对数分桶: 第i个桶是[2^i, 2^(i+1))纳秒,0放在第0个桶
+     * 分位数只能精确到桶的上界,也就是最多高估一倍
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+            sum.add(nanos);
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+                // 重试
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; ++i) {
+                counts.set(i, 0);
+            }
+            sum.reset();
+            max.set(0);
+        }
+
+        Summary summary() {
+            long[] c = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                c[i] = counts.get(i);
+                total += c[i];
+            }
+            return new Summary(total, total == 0 ? 0 : sum.sum() / total,
+                    percentile(c, total, 0.50), percentile(c, total, 0.90), percentile(c, total, 0.99), max.get());
+        }
+
+        private static long percentile(long[] c, long total, double p) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += c[i];
+                if (seen >= rank) {
+                    return i == 0 ? 1 : (1L << (i + 1)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 一个直方图的摘要,单位都是纳秒
+     */
+    public static final class Summary {
+        public final long count;
+        public final long mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        Summary(long count, long mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + mean + "ns p50<=" + p50 + "ns p90<=" + p90 + "ns p99<=" + p99
+                    + "ns max=" + max + "ns";
+        }
+    }
+
+    /**
+     * 一个持有者让别人等待的次数和总时间(抽样的)
+     */
+    public static final class OwnerEntry {
+        public final String owner;
+        public final long blocked;
+        public final long blockedNanos;
+
+        OwnerEntry(String owner, long blocked, long blockedNanos) {
+            this.owner = owner;
+            this.blocked = blocked;
+            this.blockedNanos = blockedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return owner + " blocked " + blocked + " waiters for " + TimeUnit.NANOSECONDS.toMicros(blockedNanos) + "us";
+        }
+    }
+
+    public static final class Snapshot {
+        public final int sampleEvery;
+        public final Summary wait;
+        public final Summary hold;
+        public final int maxQueueLength;
+        public final long cancels;
+        public final List<OwnerEntry> topOwners;
+
+        Snapshot(int sampleEvery, Summary wait, Summary hold, int maxQueueLength, long cancels, List<OwnerEntry> topOwners) {
+            this.sampleEvery = sampleEvery;
+            this.wait = wait;
+            this.hold = hold;
+            this.maxQueueLength = maxQueueLength;
+            this.cancels = cancels;
+            this.topOwners = topOwners;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("sampled 1/").append(sampleEvery).append('\n');
+            sb.append("  wait: ").append(wait).append('\n');
+            sb.append("  hold: ").append(hold).append('\n');
+            sb.append("  max queue length: ").append(maxQueueLength).append(", cancelled waits: ").append(cancels);
+            for (OwnerEntry owner : topOwners) {
+                sb.append('\n').append("  ").append(owner);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.nunotaba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LockProfiler的演示和开销测量
+ * 先测同一个负载在不挂分析器,每64次抽样一次,每次都量三种情况下的吞吐量,
+ * 然后挂上分析器跑几秒,每秒导出一次快照: 有一个"slow-owner"线程偶尔拿着锁睡一会,它应该排在竞争最多的持有者前面
+ *
+ * 用法: LockProfilerDemo [每组测量的毫秒数,默认1000] [线程数,默认8]
+ */
+public class LockProfilerDemo {
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors() + ", threads = " + threads);
+        int[] sampleEvery = {0, 64, 1};
+        for (int n : sampleEvery) {
+            run(n == 0 ? null : new LockProfiler(n), threads, millis / 5, false);
+            long ops = run(n == 0 ? null : new LockProfiler(n), threads, millis, false);
+            System.out.printf("%-20s %8.2f M/s%n", n == 0 ? "profiler off" : "sample 1/" + n,
+                    ops / (double) TimeUnit.MILLISECONDS.toMicros(millis));
+        }
+
+        System.out.println();
+        LockProfiler profiler = new LockProfiler(16);
+        profiler.exportEvery(1, TimeUnit.SECONDS, snapshot -> System.out.println(snapshot + "\n"));
+        run(profiler, threads, TimeUnit.SECONDS.toMillis(3) + 100, true);
+        profiler.close();
+    }
+
+    /**
+     * @return 加锁的次数
+     */
+    private static long run(LockProfiler profiler, int threadCount, long millis, boolean slowOwner)
+            throws InterruptedException {
+        MyLock lock = new MyLock();
+        lock.setEventListener(profiler);
+        long[] guarded = new long[1];
+        LongAdder ops = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            boolean slow = slowOwner && i == 0;
+            Thread t = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                while (System.nanoTime() < deadline) {
+                    lock.lock();
+                    try {
+                        ++guarded[0];
+                        if (slow && random.nextInt(100) == 0) {
+                            LockSupport.parkNanos(200_000);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    ++n;
+                }
+                ops.add(n);
+            }, slow ? "slow-owner" : "worker-" + i);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        sink = guarded[0];
+        return ops.sum();
+    }
+}
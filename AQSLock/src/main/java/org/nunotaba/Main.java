@@ -11,6 +11,9 @@ public class Main {
         List<Thread> threads = new ArrayList<>();
 
         MyLock lock = new MyLock();
+        // 统计有多少次直接拿到锁,多少次排队和park
+        LockEventCounter counter = new LockEventCounter();
+        lock.setEventListener(counter);
 
         for(int i = 0; i < 100; ++i){
             threads.add(new Thread(() -> {
@@ -49,6 +52,7 @@ public class Main {
 
         // 结果肯定不是0,因为--不是原子的
         System.out.println(count[0]);
+        System.out.println(counter);
 
 
     }
@@ -0,0 +1,151 @@
+package org.nunotaba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 比较MyLock开启/关闭自适应自旋,以及ReentrantLock在短临界区和长临界区下的吞吐量
+ * 短临界区大约几百纳秒(和Main里的自减循环一个量级),长临界区大约几十微秒
+ * 注意: 单核机器上MyLock默认不自旋,两种MyLock的结果会一样
+ *
+ * 用法: MyLockBenchmark [每组测量的毫秒数,默认500]
+ */
+public class MyLockBenchmark {
+    private static final int[] THREADS = {2, 4, 8, 16, 32, 64};
+    private static final int SHORT_WORK = 64;
+    private static final int LONG_WORK = 8_192;
+
+    // 防止JIT把临界区里的计算优化掉
+    private static volatile long sink;
+
+    interface Locker {
+        void lock();
+
+        void unlock();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors()
+                + ", short critical section ~" + nanosPerSection(SHORT_WORK) + "ns"
+                + ", long critical section ~" + nanosPerSection(LONG_WORK) + "ns");
+
+        for (int work : new int[]{SHORT_WORK, LONG_WORK}) {
+            System.out.println(work == SHORT_WORK ? "== short critical section ==" : "== long critical section ==");
+            System.out.printf("%8s %16s %16s %16s%n", "threads", "MyLock(spin)", "MyLock(no spin)", "ReentrantLock");
+            for (int threads : THREADS) {
+                MyLock spinning = new MyLock();
+                spinning.setSpinEnabled(true);
+                MyLock parking = new MyLock();
+                parking.setSpinEnabled(false);
+                ReentrantLock reentrant = new ReentrantLock();
+
+                // 先热身一轮
+                run(locker(spinning), threads, work, millis / 5);
+                run(locker(parking), threads, work, millis / 5);
+                run(locker(reentrant), threads, work, millis / 5);
+
+                double a = run(locker(spinning), threads, work, millis);
+                double b = run(locker(parking), threads, work, millis);
+                double c = run(locker(reentrant), threads, work, millis);
+                System.out.printf("%8d %13.2f M/s %13.2f M/s %13.2f M/s%n", threads, a, b, c);
+            }
+        }
+    }
+
+    private static Locker locker(MyLock lock) {
+        return new Locker() {
+            @Override
+            public void lock() {
+                lock.lock();
+            }
+
+            @Override
+            public void unlock() {
+                lock.unlock();
+            }
+        };
+    }
+
+    private static Locker locker(ReentrantLock lock) {
+        return new Locker() {
+            @Override
+            public void lock() {
+                lock.lock();
+            }
+
+            @Override
+            public void unlock() {
+                lock.unlock();
+            }
+        };
+    }
+
+    /**
+     * @return 每秒完成的临界区数(百万)
+     */
+    private static double run(Locker lock, int threadCount, int work, long millis) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] shared = new long[1];
+        long[] window = new long[2];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                long deadline = window[1];
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    lock.lock();
+                    try {
+                        shared[0] = compute(shared[0], work);
+                    } finally {
+                        lock.unlock();
+                    }
+                    ++ops;
+                }
+                operations.add(ops);
+            });
+            threads.add(t);
+            t.start();
+        }
+        window[0] = System.nanoTime();
+        window[1] = window[0] + TimeUnit.MILLISECONDS.toNanos(millis);
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        sink = shared[0];
+        return operations.sum() / (double) TimeUnit.MILLISECONDS.toMicros(millis);
+    }
+
+    private static long compute(long seed, int work) {
+        long x = seed;
+        for (int i = 0; i < work; ++i) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        }
+        return x;
+    }
+
+    private static long nanosPerSection(int work) {
+        long x = 0;
+        for (int i = 0; i < 20_000; ++i) {
+            x = compute(x, work);
+        }
+        int rounds = 2_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            x = compute(x, work);
+        }
+        sink = x;
+        return (System.nanoTime() - start) / rounds;
+    }
+}
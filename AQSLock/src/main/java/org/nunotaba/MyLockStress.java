@@ -0,0 +1,271 @@
+package org.nunotaba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MyLock的长时间压测,公平锁和非公平锁各跑一遍:
+ * 1.互斥: 临界区里同时只能有一个线程,用一个普通long计数,最后的值必须等于加锁次数
+ * 2.不丢唤醒: 有一个看门狗线程,如果所有线程都在等锁但是很久都没有任何进展,说明有线程永远park住了
+ * 3.取消: 加锁的方式在lock/tryLock/tryLock(超时)/lockInterruptibly之间随机选,另有一个线程随机中断工作线程,
+ *   超时和被中断的节点要能从队列里干净地摘掉,不能让后面的线程永远等下去
+ * 临界区长度,重入深度和临界区外的停顿都是随机的,尽量覆盖各种交错
+ * 最后用Condition跑一个有界缓冲区的生产者消费者,检查没有丢失或重复的元素
+ *
+ * 用法: MyLockStress [每种模式运行的秒数,默认10] [线程数,默认16]
+ */
+public class MyLockStress {
+
+    // 没有任何进展超过这个时间就认为丢失了唤醒
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        boolean ok = run(false, seconds, threads) & run(true, seconds, threads) & runCondition(seconds);
+        if (!ok) {
+            System.exit(1);
+        }
+        System.out.println("MyLock stress passed");
+    }
+
+    private static boolean run(boolean fair, int seconds, int threadCount) throws InterruptedException {
+        MyLock lock = new MyLock(fair);
+        // 单核机器上默认不自旋,这里强制打开,让自旋和park两条路径都被压到
+        lock.setSpinEnabled(true);
+        LockEventCounter counter = new LockEventCounter();
+        lock.setEventListener(counter);
+
+        // 只在锁内读写,不是volatile也不是原子的,有互斥问题就会少加
+        long[] guarded = new long[1];
+        AtomicInteger inside = new AtomicInteger();
+        AtomicLong violations = new AtomicLong();
+        LongAdder acquisitions = new LongAdder();
+        LongAdder timeouts = new LongAdder();
+        LongAdder interrupts = new LongAdder();
+        AtomicLong lastProgress = new AtomicLong(System.nanoTime());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    int depth = 1 + random.nextInt(3);
+                    // 第一层用随机的方式加锁,没拿到就放弃这一轮
+                    try {
+                        if (!acquire(lock, random)) {
+                            timeouts.increment();
+                            continue;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupts.increment();
+                        continue;
+                    }
+                    for (int d = 1; d < depth; ++d) {
+                        lock.lock();
+                    }
+                    try {
+                        if (inside.incrementAndGet() != 1) {
+                            violations.incrementAndGet();
+                        }
+                        ++guarded[0];
+                        int work = random.nextInt(100);
+                        if (work < 5) {
+                            // 偶尔拿着锁睡一会,让其他线程都排队park
+                            LockSupport.parkNanos(random.nextInt(50_000));
+                        } else if (work < 30) {
+                            Thread.yield();
+                        }
+                        inside.decrementAndGet();
+                    } finally {
+                        for (int d = 0; d < depth; ++d) {
+                            lock.unlock();
+                        }
+                    }
+                    acquisitions.increment();
+                    lastProgress.set(System.nanoTime());
+                    if (random.nextInt(10) == 0) {
+                        Thread.yield();
+                    }
+                }
+            }, (fair ? "fair-" : "nonfair-") + i);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+
+        // 随机中断工作线程,让lockInterruptibly和tryLock(超时)走取消的路径
+        Thread interrupter = new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                threads.get(random.nextInt(threads.size())).interrupt();
+                LockSupport.parkNanos(random.nextInt(200_000));
+            }
+        }, "interrupter");
+        interrupter.setDaemon(true);
+        interrupter.start();
+
+        // 看门狗: 还有线程活着,但是很久没有任何一次成功加锁
+        boolean stalled = false;
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                t.join(100);
+                if (t.isAlive() && System.nanoTime() - lastProgress.get() > STALL_NANOS) {
+                    stalled = true;
+                    break;
+                }
+            }
+            if (stalled) {
+                break;
+            }
+        }
+
+        String mode = fair ? "fair" : "nonfair";
+        if (stalled) {
+            System.out.println(mode + ": no progress for " + TimeUnit.NANOSECONDS.toSeconds(STALL_NANOS)
+                    + "s, a wakeup was lost. Stuck threads:");
+            for (Thread t : threads) {
+                if (t.isAlive()) {
+                    System.out.println("  " + t.getName() + " " + t.getState());
+                }
+            }
+            return false;
+        }
+
+        // join之后guarded[0]的值对这里可见
+        System.out.println(mode + ": " + acquisitions.sum() + " acquisitions, " + timeouts.sum() + " timeouts, "
+                + interrupts.sum() + " interrupted, " + counter);
+        if (violations.get() != 0) {
+            System.out.println(mode + ": " + violations.get() + " mutual exclusion violations");
+            return false;
+        }
+        if (guarded[0] != acquisitions.sum()) {
+            System.out.println(mode + ": guarded counter is " + guarded[0] + " but expected " + acquisitions.sum());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return 是否拿到了锁
+     */
+    private static boolean acquire(MyLock lock, ThreadLocalRandom random) throws InterruptedException {
+        switch (random.nextInt(4)) {
+            case 0:
+                lock.lock();
+                return true;
+            case 1:
+                return lock.tryLock();
+            case 2:
+                return lock.tryLock(random.nextInt(100_000), TimeUnit.NANOSECONDS);
+            default:
+                lock.lockInterruptibly();
+                return true;
+        }
+    }
+
+    /**
+     * 有界缓冲区: 生产者按顺序放入0..n-1,消费者取出来求和,最后和必须对得上
+     * 一半的await用带超时的版本,超时了就重新检查条件
+     */
+    private static boolean runCondition(int seconds) throws InterruptedException {
+        MyLock lock = new MyLock();
+        lock.setSpinEnabled(true);
+        Condition notFull = lock.newCondition();
+        Condition notEmpty = lock.newCondition();
+        long[] buffer = new long[8];
+        int[] putIndex = new int[1];
+        int[] takeIndex = new int[1];
+        int[] count = new int[1];
+        int producers = 4;
+        int consumers = 4;
+        long perProducer = 200_000L * Math.max(1, seconds) / 10;
+        LongAdder consumedSum = new LongAdder();
+        LongAdder consumedCount = new LongAdder();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            Thread t = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (long v = 0; v < perProducer; ++v) {
+                    lock.lock();
+                    try {
+                        while (count[0] == buffer.length) {
+                            if (random.nextBoolean()) {
+                                notFull.awaitUninterruptibly();
+                            } else {
+                                notFull.await(random.nextInt(50_000), TimeUnit.NANOSECONDS);
+                            }
+                        }
+                        buffer[putIndex[0]] = v;
+                        putIndex[0] = (putIndex[0] + 1) % buffer.length;
+                        ++count[0];
+                        notEmpty.signal();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }, "producer-" + p);
+            threads.add(t);
+        }
+        long total = perProducer * producers;
+        for (int c = 0; c < consumers; ++c) {
+            Thread t = new Thread(() -> {
+                while (true) {
+                    lock.lock();
+                    try {
+                        while (count[0] == 0) {
+                            if (consumedCount.sum() == total) {
+                                // 都消费完了,叫醒其他还在等的消费者一起退出
+                                notEmpty.signalAll();
+                                return;
+                            }
+                            notEmpty.await(1, TimeUnit.MILLISECONDS);
+                        }
+                        long v = buffer[takeIndex[0]];
+                        takeIndex[0] = (takeIndex[0] + 1) % buffer.length;
+                        --count[0];
+                        consumedSum.add(v);
+                        consumedCount.increment();
+                        notFull.signal();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }, "consumer-" + c);
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+        long stallDeadline = System.nanoTime() + STALL_NANOS + TimeUnit.SECONDS.toNanos(seconds);
+        for (Thread t : threads) {
+            t.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(stallDeadline - System.nanoTime())));
+            if (t.isAlive()) {
+                System.out.println("condition: " + t.getName() + " is stuck in " + t.getState());
+                return false;
+            }
+        }
+        long expectedSum = producers * (perProducer * (perProducer - 1) / 2);
+        System.out.println("condition: " + consumedCount.sum() + " items through a buffer of " + buffer.length);
+        if (consumedCount.sum() != total || consumedSum.sum() != expectedSum) {
+            System.out.println("condition: consumed " + consumedCount.sum() + " items with sum " + consumedSum.sum()
+                    + " but expected " + total + " items with sum " + expectedSum);
+            return false;
+        }
+        return true;
+    }
+}
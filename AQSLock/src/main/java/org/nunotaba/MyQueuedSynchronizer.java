@@ -0,0 +1,945 @@
+package org.nunotaba;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 仿照AQS抽出来的基类: 一个state加一个CLH等待队列
+ * 模板方法模式: 排队,自旋,park和唤醒的流程都在这里,怎样算拿到/释放由子类决定
+ *   独占模式: tryAcquire / tryRelease,  MyLock和读写锁的写锁用
+ *   共享模式: tryAcquireShared / tryReleaseShared,  读写锁的读锁用
+ * 两种模式的线程排在同一个队列里
+ * 等待可以被中断或者超时,放弃等待的节点会从队列里摘掉; 独占模式还支持Condition
+ */
+public abstract class MyQueuedSynchronizer {
+
+    // 同步状态,含义由子类决定: MyLock是重入次数,读写锁是高16位读锁数+低16位写锁重入次数
+    AtomicInteger state = new AtomicInteger(0);
+
+    // 独占模式下持有锁的线程
+    // 必须是volatile: 别的线程在可重入检查里读它,不能读到过期的值
+    volatile Thread owner = null;
+
+    // 加锁/解锁的事件回调,为null时什么都不做
+    // 每次加锁/解锁只读一次,热路径上只多一次判空
+    private volatile LockEventListener listener;
+
+    // 排在队首的线程park之前先自旋等一会: 临界区只有几百纳秒的时候,park/unpark一来一回比临界区本身还贵
+    // 自旋多久取决于最近的持有时间,持有时间太长就干脆不自旋
+    private static final long MIN_SPIN_NANOS = 500;
+    private static final long MAX_SPIN_NANOS = 20_000;
+    // 只有一个CPU的时候自旋只会拖住持有锁的线程
+    private static final boolean MULTI_CPU = Runtime.getRuntime().availableProcessors() > 1;
+
+    private volatile boolean spinEnabled = MULTI_CPU;
+
+    // 最近的独占持有时间的指数移动平均(权重1/8),只在持有锁的时候更新,所以不需要CAS
+    // 只统计经过排队或者自旋拿到的锁,没有竞争的快速路径不调用nanoTime
+    private volatile long holdNanosEwma;
+    // 这次独占持有是从什么时候开始的,0表示这次不统计; 只有持有锁的线程读写
+    private long acquiredAt;
+
+    // 对于引用,也要使用CAS的操作.
+    // 因为多线程修改引用,加入队列这个操作也是需要原子的
+    // head是一个哨兵节点: 它的线程就是当前持有锁(或者刚刚持有过锁)的线程,真正等待的线程从head.next开始
+    AtomicReference<Node> head = new AtomicReference<>(new Node());
+    AtomicReference<Node> tail = new AtomicReference<>(head.get());
+
+    // 每个线程缓存一个节点,排队的时候复用,高竞争下不用每次都new一个Node
+    // 所有锁共用一个缓存: 一个线程同一时刻只会在一把锁上排队
+    private static final ThreadLocal<Node> NODE_CACHE = new ThreadLocal<>();
+
+    /**
+     * 设置事件回调,比如LockEventCounter; 设置为null就关闭
+     */
+    public void setEventListener(LockEventListener listener) {
+        this.listener = listener;
+    }
+
+    public LockEventListener getEventListener() {
+        return listener;
+    }
+
+    /**
+     * 开启或者关闭park之前的自适应自旋,默认只在多核机器上开启
+     */
+    public void setSpinEnabled(boolean spinEnabled) {
+        this.spinEnabled = spinEnabled;
+    }
+
+    /**
+     * @return 最近(有竞争时)独占持有锁的平均时间,还没有数据时为0
+     */
+    public long getAverageHoldNanos() {
+        return holdNanosEwma;
+    }
+
+    // acquireQueued的返回值
+    // 拿到了锁
+    private static final int ACQUIRED = 1;
+    // 拿到了锁,但是等待期间被中断过(不响应中断的模式下要把中断标记还回去)
+    private static final int ACQUIRED_INTERRUPTED = 2;
+    // 超时,已经放弃排队
+    private static final int TIMED_OUT = 0;
+    // 被中断,已经放弃排队
+    private static final int INTERRUPTED = -1;
+
+    // 下面几个由子类按需实现,不支持的模式直接抛异常
+
+    /**
+     * @return 是否拿到了独占锁
+     */
+    protected boolean tryAcquire(int arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return 是否完全释放了,完全释放时才需要唤醒后继
+     */
+    protected boolean tryRelease(int arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return 小于0: 没拿到  等于0: 拿到了,但是后面的共享节点拿不到  大于0: 拿到了,后面的共享节点可能也能拿到
+     */
+    protected int tryAcquireShared(int arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return 释放之后是否可能有等待的线程能拿到锁了
+     */
+    protected boolean tryReleaseShared(int arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return 当前线程是否独占地持有锁,Condition需要
+     */
+    protected boolean isHeldExclusively() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 独占模式加锁: 先试一次,不行就排队; 不响应中断,但是会保留中断标记
+     */
+    final void acquire(int arg) {
+        if (tryAcquire(arg)) {
+            LockEventListener l = listener;
+            if (l != null) {
+                l.onFastPathAcquire(this, Thread.currentThread());
+            }
+            return;
+        }
+        if (enqueueAndAcquire(arg, false, false, false, 0) == ACQUIRED_INTERRUPTED) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 独占模式加锁,等待的时候被中断就放弃排队
+     */
+    final void acquireInterruptibly(int arg) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tryAcquire(arg)) {
+            LockEventListener l = listener;
+            if (l != null) {
+                l.onFastPathAcquire(this, Thread.currentThread());
+            }
+            return;
+        }
+        if (enqueueAndAcquire(arg, false, true, false, 0) == INTERRUPTED) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * 独占模式加锁,最多等nanos纳秒,等待的时候被中断也放弃排队
+     * @return 是否拿到了锁
+     */
+    final boolean tryAcquireNanos(int arg, long nanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tryAcquire(arg)) {
+            LockEventListener l = listener;
+            if (l != null) {
+                l.onFastPathAcquire(this, Thread.currentThread());
+            }
+            return true;
+        }
+        if (nanos <= 0) {
+            return false;
+        }
+        int result = enqueueAndAcquire(arg, false, true, true, System.nanoTime() + nanos);
+        if (result == INTERRUPTED) {
+            throw new InterruptedException();
+        }
+        return result != TIMED_OUT;
+    }
+
+    /**
+     * 独占模式解锁,完全释放的时候唤醒下一个线程
+     */
+    final boolean release(int arg) {
+        if (tryRelease(arg)) {
+            LockEventListener l = listener;
+            if (l != null) {
+                l.onRelease(this, Thread.currentThread());
+            }
+            // 我释放lock,就是我要唤醒队列的下一个节点
+            // 只有head是SIGNAL(后继已经或者将要park)的时候才需要唤醒,没有人等待的时候释放锁就是一次写
+            Node h = head.get();
+            if (h.waitStatus != 0) {
+                unparkSuccessor(h);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 共享模式加锁
+     */
+    final void acquireShared(int arg) {
+        if (tryAcquireShared(arg) >= 0) {
+            LockEventListener l = listener;
+            if (l != null) {
+                l.onFastPathAcquire(this, Thread.currentThread());
+            }
+            return;
+        }
+        if (enqueueAndAcquire(arg, true, false, false, 0) == ACQUIRED_INTERRUPTED) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 共享模式加锁,等待的时候被中断就放弃排队
+     */
+    final void acquireSharedInterruptibly(int arg) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tryAcquireShared(arg) >= 0) {
+            LockEventListener l = listener;
+            if (l != null) {
+                l.onFastPathAcquire(this, Thread.currentThread());
+            }
+            return;
+        }
+        if (enqueueAndAcquire(arg, true, true, false, 0) == INTERRUPTED) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * 共享模式加锁,最多等nanos纳秒,等待的时候被中断也放弃排队
+     * @return 是否拿到了锁
+     */
+    final boolean tryAcquireSharedNanos(int arg, long nanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tryAcquireShared(arg) >= 0) {
+            LockEventListener l = listener;
+            if (l != null) {
+                l.onFastPathAcquire(this, Thread.currentThread());
+            }
+            return true;
+        }
+        if (nanos <= 0) {
+            return false;
+        }
+        int result = enqueueAndAcquire(arg, true, true, true, System.nanoTime() + nanos);
+        if (result == INTERRUPTED) {
+            throw new InterruptedException();
+        }
+        return result != TIMED_OUT;
+    }
+
+    private int enqueueAndAcquire(int arg, boolean shared, boolean interruptible, boolean timed, long deadline) {
+        Thread current = Thread.currentThread();
+        LockEventListener l = listener;
+        Node node = obtainNode(current, shared);
+        enq(node);
+        if (l != null) {
+            l.onEnqueue(this, current);
+        }
+        return acquireQueued(node, arg, current, l, interruptible, timed, deadline);
+    }
+
+    /**
+     * 共享模式解锁
+     */
+    final boolean releaseShared(int arg) {
+        if (tryReleaseShared(arg)) {
+            doReleaseShared();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 独占锁完全释放之前由子类调用(这时还持有着锁),更新平均持有时间
+     */
+    final void recordHoldTime() {
+        long since = acquiredAt;
+        if (since != 0) {
+            // 还持有着锁,只有我们会写holdNanosEwma
+            acquiredAt = 0;
+            long ewma = holdNanosEwma;
+            holdNanosEwma = ewma + ((System.nanoTime() - since - ewma) >> 3);
+        }
+    }
+
+    /**
+     * 把节点放到CLH队列的尾部
+     * prev必须在CAS尾节点之前设置好: 这样只要一个节点成为了tail,从tail沿着prev往前走一定能走到head
+     * next是CAS成功之后才设置的,可能暂时为null,所以唤醒的时候next为null要从tail往前找
+     * @return 入队时的前驱
+     */
+    private Node enq(Node node) {
+        while(true){
+            // 每次我们都要查询到最新的尾节点进行CAS的操作
+            Node currentTail = tail.get();
+            node.prev = currentTail;
+            // 我们获取lock失败,要把自己放在CLS队列中去
+            if(tail.compareAndSet(currentTail, node)){
+                currentTail.next = node;
+                return currentTail;
+            }
+        }
+    }
+
+    /**
+     * 从缓存里取出当前线程的节点,上一次用的节点还在队列里(还是head)或者被取消过的时候只能新建一个
+     */
+    private static Node obtainNode(Thread current, boolean shared) {
+        Node node = NODE_CACHE.get();
+        if (node == null || node.inUse) {
+            node = new Node();
+            NODE_CACHE.set(node);
+        }
+        node.inUse = true;
+        node.shared = shared;
+        node.next = null;
+        node.waitStatus = 0;
+        node.thread = current;
+        return node;
+    }
+
+    /**
+     * 把node设置成新的head,旧的head(node的前驱)离开队列
+     * 只有刚刚拿到锁的队首线程才会修改head,所以这里不需要CAS
+     */
+    private void setHead(Node node, Node prev) {
+        head.set(node);
+        node.thread = null;
+        node.prev = null;
+        prev.next = null;
+        // 旧的head离开了队列,它的线程下次排队可以复用它
+        prev.inUse = false;
+    }
+
+    /**
+     * 排队等锁的主循环,独占和共享模式共用
+     * 这里是获取了lock之后的逻辑......
+     * @param interruptible 被中断时放弃排队
+     * @param timed 为true时到了deadline(System.nanoTime()意义下)就放弃排队
+     * @return ACQUIRED, ACQUIRED_INTERRUPTED, TIMED_OUT 或者 INTERRUPTED
+     */
+    private int acquireQueued(Node node, int arg, Thread current, LockEventListener l,
+                              boolean interruptible, boolean timed, long deadline) {
+        boolean interrupted = false;
+        while(true){
+            // condition
+            // 说白了,这里头节点是持有lock并且可以运行的线程......
+            Node prev = node.prev;
+            if (prev == head.get()) {
+                if (node.shared) {
+                    int r = tryAcquireShared(arg);
+                    if (r >= 0) {
+                        setHeadAndPropagate(node, prev, r);
+                        if (l != null) {
+                            l.onQueuedAcquire(this, current);
+                        }
+                        return interrupted ? ACQUIRED_INTERRUPTED : ACQUIRED;
+                    }
+                } else if (tryAcquire(arg) || (prev.waitStatus == 0 && spinForLock(arg, current, l))) {
+                    // 前驱还不是SIGNAL说明这是我们这一轮第一次尝试,先自旋; 设置了SIGNAL之后的那次检查就不再自旋了
+                    acquiredAt = System.nanoTime();
+                    setHead(node, prev);
+                    if (l != null) {
+                        l.onQueuedAcquire(this, current);
+                    }
+                    return interrupted ? ACQUIRED_INTERRUPTED : ACQUIRED;
+                }
+            }
+            long remaining = 0;
+            if (timed && (remaining = deadline - System.nanoTime()) <= 0) {
+                cancelAcquire(node);
+                if (l != null) {
+                    l.onCancel(this, current);
+                }
+                return TIMED_OUT;
+            }
+            // 把自己放入队列之后不能直接阻塞
+            // 必须先让前驱节点的waitStatus变成SIGNAL,也就是让前驱答应释放锁的时候唤醒我们,然后再检查一遍才敢阻塞
+            // 要不然前驱可能在我们park之前就已经释放完了,我们就永远醒不过来了
+            if (shouldParkAfterFailedAcquire(node, prev)) {
+                if (l != null) {
+                    l.onPark(this, current);
+                }
+                if (timed) {
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+                // 中断标记不清掉的话,之后的park会立刻返回,变成空转
+                if (Thread.interrupted()) {
+                    if (interruptible) {
+                        cancelAcquire(node);
+                        if (l != null) {
+                            l.onCancel(this, current);
+                        }
+                        return INTERRUPTED;
+                    }
+                    interrupted = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 放弃排队: 标记成CANCELLED,尽量把自己从队列里摘掉
+     * 摘不干净也没关系,后面的节点在shouldParkAfterFailedAcquire里会跳过所有取消的前驱,唤醒的时候也会跳过
+     * 取消的节点inUse一直是true,永远不会被复用,因为别的线程可能还沿着它的prev/next在遍历
+     */
+    private void cancelAcquire(Node node) {
+        node.thread = null;
+
+        // 跳过同样被取消的前驱
+        Node pred = node.prev;
+        while (pred.waitStatus > 0) {
+            node.prev = pred = pred.prev;
+        }
+        Node predNext = pred.next;
+
+        // 这之后别的线程都会跳过我们
+        node.waitStatus = Node.CANCELLED;
+
+        if (node == tail.get() && tail.compareAndSet(node, pred)) {
+            // 我们是最后一个,直接把尾巴剪掉
+            Node.NEXT.compareAndSet(pred, predNext, null);
+        } else {
+            int ws;
+            if (pred != head.get()
+                    && ((ws = pred.waitStatus) == Node.SIGNAL || (ws <= 0 && Node.WAIT_STATUS.compareAndSet(pred, ws, Node.SIGNAL)))
+                    && pred.thread != null) {
+                // 前驱还会唤醒它的后继,把我们的后继直接接到前驱后面
+                Node next = node.next;
+                if (next != null && next.waitStatus <= 0) {
+                    Node.NEXT.compareAndSet(pred, predNext, next);
+                }
+            } else {
+                // 前驱是head,或者前驱也不可靠了,直接叫醒我们的后继,让它自己去重新找前驱
+                unparkSuccessor(node);
+            }
+            node.next = node;
+        }
+    }
+
+    /**
+     * 共享模式拿到锁之后成为head,如果后面排着的也是共享节点,接着把它叫醒(一个叫醒下一个,读锁就能一起进去)
+     */
+    private void setHeadAndPropagate(Node node, Node prev, int propagate) {
+        // 旧head交出去复用之前先记下它的状态
+        int prevStatus = prev.waitStatus;
+        setHead(node, prev);
+        if (propagate > 0 || prevStatus < 0 || node.waitStatus < 0) {
+            Node s = node.next;
+            if (s == null || s.shared) {
+                doReleaseShared();
+            }
+        }
+    }
+
+    /**
+     * 共享模式的释放: 唤醒head的后继,如果head还没有后继要唤醒就标记成PROPAGATE,保证释放的信号能传下去
+     * head在循环过程中变了说明被唤醒的线程已经拿到锁了,要再帮它往下传
+     */
+    private void doReleaseShared() {
+        while (true) {
+            Node h = head.get();
+            if (h != tail.get()) {
+                int ws = h.waitStatus;
+                if (ws == Node.SIGNAL) {
+                    if (!Node.WAIT_STATUS.compareAndSet(h, Node.SIGNAL, 0)) {
+                        continue;
+                    }
+                    unparkSuccessor(h);
+                } else if (ws == 0 && !Node.WAIT_STATUS.compareAndSet(h, 0, Node.PROPAGATE)) {
+                    continue;
+                }
+            }
+            if (h == head.get()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 队首的线程在park之前自旋,自旋的时间是最近平均持有时间的两倍,限制在[MIN_SPIN_NANOS, MAX_SPIN_NANOS]之间
+     * 平均持有时间超过MAX_SPIN_NANOS说明等下去也大概率要park,就不自旋了
+     * @return 自旋期间拿到了锁
+     */
+    private boolean spinForLock(int arg, Thread current, LockEventListener l) {
+        if (!spinEnabled) {
+            return false;
+        }
+        long hold = holdNanosEwma;
+        if (hold > MAX_SPIN_NANOS) {
+            return false;
+        }
+        long budget = Math.min(MAX_SPIN_NANOS, Math.max(MIN_SPIN_NANOS, hold << 1));
+        long start = System.nanoTime();
+        for (int i = 1; ; ++i) {
+            if (state.get() == 0 && tryAcquire(arg)) {
+                if (l != null) {
+                    l.onSpinAcquire(this, current);
+                }
+                return true;
+            }
+            Thread.onSpinWait();
+            // nanoTime本身也要几十纳秒,每64次才看一次时间
+            if ((i & 63) == 0 && System.nanoTime() - start >= budget) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return 前驱已经是SIGNAL,可以放心park; false表示刚刚设置了SIGNAL(或者跳过了取消的前驱),需要再尝试一次拿锁
+     */
+    private static boolean shouldParkAfterFailedAcquire(Node node, Node prev) {
+        int ws = prev.waitStatus;
+        if (ws == Node.SIGNAL) {
+            return true;
+        }
+        if (ws > 0) {
+            // 前驱已经取消了,一直往前找到没取消的节点,接在它后面
+            do {
+                node.prev = prev = prev.prev;
+            } while (prev.waitStatus > 0);
+            prev.next = node;
+        } else {
+            Node.WAIT_STATUS.compareAndSet(prev, ws, Node.SIGNAL);
+        }
+        return false;
+    }
+
+    /**
+     * 唤醒h后面第一个等待的线程
+     */
+    private void unparkSuccessor(Node h) {
+        int ws = h.waitStatus;
+        if (ws < 0) {
+            Node.WAIT_STATUS.compareAndSet(h, ws, 0);
+        }
+        Node s = h.next;
+        if (s == null || s.waitStatus > 0) {
+            // next还没有连上(入队的线程CAS了tail但还没设置next),或者next已经取消了
+            // 从tail沿着prev往前找离h最近的没有取消的节点
+            s = null;
+            for (Node t = tail.get(); t != null && t != h; t = t.prev) {
+                if (t.waitStatus <= 0) {
+                    s = t;
+                }
+            }
+        }
+        if (s != null) {
+            Thread next = s.thread;
+            // wake up next thread......
+            if (next != null) {
+                LockSupport.unpark(next);
+                LockEventListener l = listener;
+                if (l != null) {
+                    l.onHandoff(this, Thread.currentThread(), next);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 新建一个绑定在这把锁上的Condition,只能在独占模式下使用
+     */
+    final ConditionObject newConditionObject() {
+        return new ConditionObject();
+    }
+
+    /**
+     * 等待Condition之前把锁完全释放掉(包括所有的重入)
+     * @return 释放之前的state,醒来之后要原样拿回来
+     */
+    private int fullyRelease(Node node) {
+        int savedState = state.get();
+        if (!release(savedState)) {
+            node.waitStatus = Node.CANCELLED;
+            throw new IllegalMonitorStateException();
+        }
+        return savedState;
+    }
+
+    /**
+     * @return 节点是否已经从Condition的队列转移到了锁的等待队列
+     */
+    private boolean isOnSyncQueue(Node node) {
+        if (node.waitStatus == Node.CONDITION || node.prev == null) {
+            return false;
+        }
+        if (node.next != null) {
+            return true;
+        }
+        // prev不为null不代表已经入队成功了(CAS tail可能失败),从tail往前找一遍
+        for (Node t = tail.get(); t != null; t = t.prev) {
+            if (t == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * signal: 把节点从Condition的队列转移到锁的等待队列
+     * @return false表示节点已经因为中断或者超时取消了等待
+     */
+    private boolean transferForSignal(Node node) {
+        if (!Node.WAIT_STATUS.compareAndSet(node, Node.CONDITION, 0)) {
+            return false;
+        }
+        Node p = enq(node);
+        int ws = p.waitStatus;
+        // 前驱已经取消了,或者没法让它答应唤醒我们,就直接叫醒,让等待的线程自己在acquireQueued里整理
+        if (ws > 0 || !Node.WAIT_STATUS.compareAndSet(p, ws, Node.SIGNAL)) {
+            LockSupport.unpark(node.thread);
+        }
+        return true;
+    }
+
+    /**
+     * 等待Condition的时候被中断或者超时,自己转移到锁的等待队列
+     * @return true表示是在signal之前取消的
+     */
+    private boolean transferAfterCancelledWait(Node node) {
+        if (Node.WAIT_STATUS.compareAndSet(node, Node.CONDITION, 0)) {
+            enq(node);
+            return true;
+        }
+        // 输给了signal,等它把我们入队完成
+        while (!isOnSyncQueue(node)) {
+            Thread.yield();
+        }
+        return false;
+    }
+
+    /**
+     * 被唤醒之后重新拿锁,拿回等待之前的state
+     * @return 拿锁的时候是否被中断过
+     */
+    private boolean reacquire(Node node, int savedState) {
+        Thread current = Thread.currentThread();
+        LockEventListener l = listener;
+        // 节点是signal的线程帮我们放进锁的队列的,从这里开始算作排队
+        if (l != null) {
+            l.onEnqueue(this, current);
+        }
+        return acquireQueued(node, savedState, current, l, false, false, 0) == ACQUIRED_INTERRUPTED;
+    }
+
+    /**
+     * 和AQS的ConditionObject一样: 每个Condition有一个自己的单链表等待队列,只有持有锁的线程会读写它
+     * await把锁完全释放并进入这个队列; signal把队首转移到锁的等待队列,等拿到锁之后await才返回
+     * Condition队列里的节点是单独new的,不走NODE_CACHE
+     */
+    public class ConditionObject implements Condition {
+        // 醒来之后重新设置中断标记
+        private static final int REINTERRUPT = 1;
+        // 醒来之后抛InterruptedException
+        private static final int THROW_IE = -1;
+
+        private Node firstWaiter;
+        private Node lastWaiter;
+
+        private Node addConditionWaiter() {
+            if (!isHeldExclusively()) {
+                throw new IllegalMonitorStateException();
+            }
+            Node t = lastWaiter;
+            if (t != null && t.waitStatus != Node.CONDITION) {
+                unlinkCancelledWaiters();
+                t = lastWaiter;
+            }
+            Node node = new Node();
+            node.thread = Thread.currentThread();
+            node.waitStatus = Node.CONDITION;
+            node.inUse = true;
+            if (t == null) {
+                firstWaiter = node;
+            } else {
+                t.nextWaiter = node;
+            }
+            lastWaiter = node;
+            return node;
+        }
+
+        /**
+         * 把已经取消等待的节点从Condition的队列里去掉
+         */
+        private void unlinkCancelledWaiters() {
+            Node t = firstWaiter;
+            Node trail = null;
+            while (t != null) {
+                Node next = t.nextWaiter;
+                if (t.waitStatus != Node.CONDITION) {
+                    t.nextWaiter = null;
+                    if (trail == null) {
+                        firstWaiter = next;
+                    } else {
+                        trail.nextWaiter = next;
+                    }
+                    if (next == null) {
+                        lastWaiter = trail;
+                    }
+                } else {
+                    trail = t;
+                }
+                t = next;
+            }
+        }
+
+        @Override
+        public void signal() {
+            if (!isHeldExclusively()) {
+                throw new IllegalMonitorStateException();
+            }
+            Node first = firstWaiter;
+            // 跳过已经取消的,直到成功转移一个
+            while (first != null) {
+                if ((firstWaiter = first.nextWaiter) == null) {
+                    lastWaiter = null;
+                }
+                first.nextWaiter = null;
+                if (transferForSignal(first)) {
+                    return;
+                }
+                first = firstWaiter;
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            if (!isHeldExclusively()) {
+                throw new IllegalMonitorStateException();
+            }
+            Node first = firstWaiter;
+            firstWaiter = lastWaiter = null;
+            while (first != null) {
+                Node next = first.nextWaiter;
+                first.nextWaiter = null;
+                transferForSignal(first);
+                first = next;
+            }
+        }
+
+        @Override
+        public void awaitUninterruptibly() {
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            boolean interrupted = false;
+            while (!isOnSyncQueue(node)) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+            if (reacquire(node, savedState) || interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void await() throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            int interruptMode = 0;
+            while (!isOnSyncQueue(node)) {
+                LockSupport.park(this);
+                if ((interruptMode = checkInterruptWhileWaiting(node)) != 0) {
+                    break;
+                }
+            }
+            afterWait(node, savedState, interruptMode);
+        }
+
+        @Override
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long deadline = System.nanoTime() + nanosTimeout;
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            int interruptMode = 0;
+            while (!isOnSyncQueue(node)) {
+                if (nanosTimeout <= 0L) {
+                    transferAfterCancelledWait(node);
+                    break;
+                }
+                LockSupport.parkNanos(this, nanosTimeout);
+                if ((interruptMode = checkInterruptWhileWaiting(node)) != 0) {
+                    break;
+                }
+                nanosTimeout = deadline - System.nanoTime();
+            }
+            afterWait(node, savedState, interruptMode);
+            long remaining = deadline - System.nanoTime();
+            // 和AQS一样,返回值要小于等于传入的值
+            return remaining <= nanosTimeout ? remaining : Long.MIN_VALUE;
+        }
+
+        @Override
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            return awaitUntilNanos(System.nanoTime() + unit.toNanos(time));
+        }
+
+        @Override
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            long millis = deadline.getTime() - System.currentTimeMillis();
+            return awaitUntilNanos(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        /**
+         * @return false表示等到超时都没有被signal
+         */
+        private boolean awaitUntilNanos(long deadline) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            boolean timedOut = false;
+            int interruptMode = 0;
+            while (!isOnSyncQueue(node)) {
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0L) {
+                    timedOut = transferAfterCancelledWait(node);
+                    break;
+                }
+                LockSupport.parkNanos(this, nanos);
+                if ((interruptMode = checkInterruptWhileWaiting(node)) != 0) {
+                    break;
+                }
+            }
+            afterWait(node, savedState, interruptMode);
+            return !timedOut;
+        }
+
+        /**
+         * @return 0: 没有被中断  THROW_IE: 在signal之前被中断  REINTERRUPT: 在signal之后被中断
+         */
+        private int checkInterruptWhileWaiting(Node node) {
+            if (!Thread.interrupted()) {
+                return 0;
+            }
+            return transferAfterCancelledWait(node) ? THROW_IE : REINTERRUPT;
+        }
+
+        /**
+         * 重新拿锁,清理Condition队列,然后按中断的时机抛异常或者设置中断标记
+         */
+        private void afterWait(Node node, int savedState, int interruptMode) throws InterruptedException {
+            if (reacquire(node, savedState) && interruptMode != THROW_IE) {
+                interruptMode = REINTERRUPT;
+            }
+            // 中断或者超时取消的节点还挂在Condition的队列里
+            if (node.nextWaiter != null) {
+                unlinkCancelledWaiters();
+            }
+            if (interruptMode == THROW_IE) {
+                throw new InterruptedException();
+            }
+            if (interruptMode == REINTERRUPT) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return 是否有线程在排队,只是一个瞬间的快照
+     */
+    public boolean hasQueuedThreads() {
+        return head.get() != tail.get();
+    }
+
+    /**
+     * 公平模式用: 队列里是否有排在当前线程前面的线程
+     */
+    final boolean hasQueuedPredecessors() {
+        Node t = tail.get();
+        Node h = head.get();
+        Node s;
+        return h != t && ((s = h.next) == null || s.thread != Thread.currentThread());
+    }
+
+    /**
+     * 非公平的读锁用: 队首是不是在等独占锁,是的话新来的读锁不插队,避免写锁饿死
+     */
+    final boolean apparentlyFirstQueuedIsExclusive() {
+        Node h = head.get();
+        Node s;
+        return h != null && (s = h.next) != null && !s.shared && s.thread != null;
+    }
+
+    // CLH队列的节点
+    static final class Node{
+        // 等待超时或者被中断,已经放弃排队
+        static final int CANCELLED = 1;
+        // 后继节点已经park或者马上要park,释放锁的时候必须唤醒它
+        static final int SIGNAL = -1;
+        // 在Condition的等待队列里,还没有被signal
+        static final int CONDITION = -2;
+        // 只用在共享模式的head上: 下一次共享模式的获取应该无条件地往下传播
+        static final int PROPAGATE = -3;
+
+        static final AtomicIntegerFieldUpdater<Node> WAIT_STATUS =
+                AtomicIntegerFieldUpdater.newUpdater(Node.class, "waitStatus");
+        static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        // 0: 初始状态  CANCELLED, SIGNAL, CONDITION, PROPAGATE: 见上
+        volatile int waitStatus;
+        // 可见性要求：不同线程间读写需要可见
+        volatile Node prev;
+        volatile Node next;
+        volatile Thread thread;
+        // 在等共享锁还是独占锁
+        volatile boolean shared;
+        // 还在队列里(包括还是head)或者被取消过的时候为true,不能被复用
+        volatile boolean inUse;
+        // Condition等待队列里的下一个节点,只在持有锁的时候访问
+        Node nextWaiter;
+    }
+}
@@ -0,0 +1,335 @@
+package org.nunotaba;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 读写锁,和MyLock共用MyQueuedSynchronizer的CLH队列
+ * state拆成两半: 高16位是持有读锁的次数,低16位是写锁的重入次数
+ *   读锁(共享): 没有别的线程持有写锁就能进去,多个读线程可以同时持有
+ *   写锁(独占): 没有任何线程持有读锁或写锁才能进去,可重入,持有写锁的线程还可以再拿读锁(降级)
+ * 另外还有一个乐观读模式(tryOptimisticRead/validate),读的时候完全不写共享内存
+ *
+ * 防止写锁饿死:
+ *   公平模式: 队列里有人排队,新来的读线程也要排到后面去
+ *   非公平模式: 队首在等写锁的话,新来的读线程不插队
+ */
+public class MyReadWriteLock {
+
+    static final int SHARED_SHIFT = 16;
+    static final int SHARED_UNIT = 1 << SHARED_SHIFT;
+    static final int MAX_COUNT = (1 << SHARED_SHIFT) - 1;
+    static final int EXCLUSIVE_MASK = (1 << SHARED_SHIFT) - 1;
+
+    static int sharedCount(int c) {
+        return c >>> SHARED_SHIFT;
+    }
+
+    static int exclusiveCount(int c) {
+        return c & EXCLUSIVE_MASK;
+    }
+
+    final boolean isFair;
+
+    private final Sync sync;
+    private final ReadLock readLock;
+    private final WriteLock writeLock;
+
+    // 乐观读用的版本号: 写锁第一次拿到和完全释放的时候各加一,所以奇数表示有线程持有写锁
+    // 从2开始,0留给tryOptimisticRead表示失败
+    private final AtomicLong version = new AtomicLong(2);
+
+    public MyReadWriteLock() {
+        this(false);
+    }
+
+    public MyReadWriteLock(boolean isFair) {
+        this.isFair = isFair;
+        this.sync = new Sync();
+        this.readLock = new ReadLock();
+        this.writeLock = new WriteLock();
+    }
+
+    public ReadLock readLock() {
+        return readLock;
+    }
+
+    public WriteLock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * @return 排队,自旋和唤醒都在这里,可以用来设置事件回调
+     */
+    public MyQueuedSynchronizer sync() {
+        return sync;
+    }
+
+    /**
+     * 乐观读: 只读一次版本号,不加锁也不写任何共享变量
+     * 用法:
+     *   long stamp = lock.tryOptimisticRead();
+     *   读取数据到局部变量...
+     *   if (!lock.validate(stamp)) { 加读锁重新读一遍 }
+     * @return 有线程持有写锁时返回0,这时validate一定失败
+     */
+    public long tryOptimisticRead() {
+        long v = version.get();
+        return (v & 1) == 0 ? v : 0;
+    }
+
+    /**
+     * @return 从拿到stamp到现在有没有线程拿过写锁,true说明这期间读到的数据是一致的
+     */
+    public boolean validate(long stamp) {
+        // 保证之前对数据的读不会被重排到读版本号之后
+        VarHandle.acquireFence();
+        return stamp != 0 && version.get() == stamp;
+    }
+
+    /**
+     * @return 当前持有读锁的次数(所有线程加起来)
+     */
+    public int getReadLockCount() {
+        return sharedCount(sync.state.get());
+    }
+
+    public boolean isWriteLocked() {
+        return exclusiveCount(sync.state.get()) != 0;
+    }
+
+    public boolean isWriteLockedByCurrentThread() {
+        return sync.owner == Thread.currentThread();
+    }
+
+    final class Sync extends MyQueuedSynchronizer {
+
+        // 每个线程持有读锁的次数,用来支持读锁重入,以及检查解锁的线程是否真的持有读锁
+        private final ThreadLocal<int[]> readHolds = ThreadLocal.withInitial(() -> new int[1]);
+
+        @Override
+        protected boolean tryAcquire(int arg) {
+            Thread current = Thread.currentThread();
+            int c = state.get();
+            if (c != 0) {
+                // 有人持有读锁,或者写锁不是自己的,都拿不到
+                if (exclusiveCount(c) == 0 || owner != current) {
+                    return false;
+                }
+                if (exclusiveCount(c) + arg > MAX_COUNT) {
+                    throw new Error("Maximum lock count exceeded");
+                }
+                // 写锁重入,只有自己会改
+                state.set(c + arg);
+                return true;
+            }
+            if ((isFair && hasQueuedPredecessors()) || !state.compareAndSet(0, arg)) {
+                return false;
+            }
+            owner = current;
+            // 先让版本号变成奇数再去改数据,getAndIncrement是一个完整的屏障,之后的写不会被重排到它前面
+            version.getAndIncrement();
+            return true;
+        }
+
+        @Override
+        protected boolean tryRelease(int arg) {
+            if (owner != Thread.currentThread()) {
+                throw new IllegalStateException(Thread.currentThread().getName() + ": This thread does not hold the write lock!");
+            }
+            int next = state.get() - arg;
+            boolean free = exclusiveCount(next) == 0;
+            if (free) {
+                recordHoldTime();
+                owner = null;
+                // 数据都改完了才把版本号变回偶数
+                version.set(version.get() + 1);
+            }
+            state.set(next);
+            return free;
+        }
+
+        @Override
+        protected int tryAcquireShared(int arg) {
+            Thread current = Thread.currentThread();
+            int c = state.get();
+            if (exclusiveCount(c) != 0 && owner != current) {
+                return -1;
+            }
+            if (!readerShouldBlock() && sharedCount(c) < MAX_COUNT && state.compareAndSet(c, c + SHARED_UNIT)) {
+                ++readHolds.get()[0];
+                return 1;
+            }
+            return fullTryAcquireShared(current);
+        }
+
+        /**
+         * 快速路径没成功(CAS失败,或者应该让给排队的线程)之后的完整版本
+         * 已经持有读锁的线程即使应该排队也要让它进去,否则它在等排在后面的写锁,写锁又在等它释放读锁,就死锁了
+         */
+        private int fullTryAcquireShared(Thread current) {
+            int[] holds = readHolds.get();
+            while (true) {
+                int c = state.get();
+                if (exclusiveCount(c) != 0) {
+                    if (owner != current) {
+                        return -1;
+                    }
+                    // 自己持有写锁,拿读锁就是降级,不能排队
+                } else if (readerShouldBlock() && holds[0] == 0) {
+                    return -1;
+                }
+                if (sharedCount(c) == MAX_COUNT) {
+                    throw new Error("Maximum lock count exceeded");
+                }
+                if (state.compareAndSet(c, c + SHARED_UNIT)) {
+                    ++holds[0];
+                    return 1;
+                }
+            }
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int arg) {
+            int[] holds = readHolds.get();
+            if (holds[0] <= 0) {
+                throw new IllegalStateException(Thread.currentThread().getName() + ": This thread does not hold the read lock!");
+            }
+            --holds[0];
+            while (true) {
+                int c = state.get();
+                int next = c - SHARED_UNIT;
+                if (state.compareAndSet(c, next)) {
+                    // 读锁全部释放之后,等着的写锁才有可能拿到
+                    return next == 0;
+                }
+            }
+        }
+
+        /**
+         * 读锁的tryLock: 只试一次,和ReentrantReadWriteLock一样不管公平不公平都插队
+         */
+        boolean tryReadLock() {
+            Thread current = Thread.currentThread();
+            while (true) {
+                int c = state.get();
+                if (exclusiveCount(c) != 0 && owner != current) {
+                    return false;
+                }
+                if (sharedCount(c) == MAX_COUNT) {
+                    throw new Error("Maximum lock count exceeded");
+                }
+                if (state.compareAndSet(c, c + SHARED_UNIT)) {
+                    ++readHolds.get()[0];
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 写锁的tryLock: 只试一次,公平模式下也插队
+         */
+        boolean tryWriteLock() {
+            Thread current = Thread.currentThread();
+            int c = state.get();
+            if (c != 0) {
+                if (exclusiveCount(c) == 0 || owner != current) {
+                    return false;
+                }
+                if (exclusiveCount(c) == MAX_COUNT) {
+                    throw new Error("Maximum lock count exceeded");
+                }
+                state.set(c + 1);
+                return true;
+            }
+            if (!state.compareAndSet(0, 1)) {
+                return false;
+            }
+            owner = current;
+            version.getAndIncrement();
+            return true;
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return owner == Thread.currentThread();
+        }
+
+        private boolean readerShouldBlock() {
+            return isFair ? hasQueuedPredecessors() : apparentlyFirstQueuedIsExclusive();
+        }
+    }
+
+    /**
+     * 读锁,实现了Lock接口; 读锁是共享的,不支持Condition
+     */
+    public final class ReadLock implements Lock {
+        @Override
+        public void lock() {
+            sync.acquireShared(1);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            sync.acquireSharedInterruptibly(1);
+        }
+
+        @Override
+        public boolean tryLock() {
+            return sync.tryReadLock();
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            return sync.tryAcquireSharedNanos(1, unit.toNanos(timeout));
+        }
+
+        @Override
+        public void unlock() {
+            sync.releaseShared(1);
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * 写锁,实现了Lock接口; 和MyLock一样可以用Condition,await会完全释放写锁(包括重入)
+     */
+    public final class WriteLock implements Lock {
+        @Override
+        public void lock() {
+            sync.acquire(1);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            sync.acquireInterruptibly(1);
+        }
+
+        @Override
+        public boolean tryLock() {
+            return sync.tryWriteLock();
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            return sync.tryAcquireNanos(1, unit.toNanos(timeout));
+        }
+
+        @Override
+        public void unlock() {
+            sync.release(1);
+        }
+
+        @Override
+        public Condition newCondition() {
+            return sync.newConditionObject();
+        }
+    }
+}
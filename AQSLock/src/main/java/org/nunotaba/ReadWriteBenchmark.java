@@ -0,0 +1,175 @@
+package org.nunotaba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 95%读5%写的吞吐量: 独占的MyLock,MyReadWriteLock的非公平/公平模式,以及乐观读(失败了退回读锁)
+ * 数据是两个总是一起修改的long,读的时候顺便检查它们是否一致,不一致说明锁有问题
+ * 同时打印写操作的吞吐量,写锁饿死的话这一列会接近0
+ *
+ * 用法: ReadWriteBenchmark [每组测量的毫秒数,默认500]
+ */
+public class ReadWriteBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    private static final int WRITE_PERCENT = 5;
+    // 读的时候多做一点计算,模拟真实的读操作,不然测的只是锁本身
+    private static final int READ_WORK = 32;
+
+    private static volatile long sink;
+
+    enum Mode {
+        EXCLUSIVE("MyLock"), READ_WRITE("RW nonfair"), READ_WRITE_FAIR("RW fair"), OPTIMISTIC("optimistic");
+
+        final String title;
+
+        Mode(String title) {
+            this.title = title;
+        }
+    }
+
+    static final class Data {
+        long x;
+        long y;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors() + ", " + WRITE_PERCENT + "% writes");
+        System.out.printf("%8s", "threads");
+        for (Mode mode : Mode.values()) {
+            System.out.printf(" %24s", mode.title + " (reads/writes)");
+        }
+        System.out.println();
+
+        for (int threads : THREADS) {
+            System.out.printf("%8d", threads);
+            for (Mode mode : Mode.values()) {
+                run(mode, threads, millis / 5);
+                long[] result = run(mode, threads, millis);
+                double reads = result[0] / (double) TimeUnit.MILLISECONDS.toMicros(millis);
+                double writes = result[1] / (double) TimeUnit.MILLISECONDS.toMillis(millis);
+                System.out.printf(" %13.2f M/s %6.0f K/s", reads, writes);
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return {读次数, 写次数}
+     */
+    private static long[] run(Mode mode, int threadCount, long millis) throws InterruptedException {
+        MyLock exclusive = new MyLock();
+        MyReadWriteLock rw = new MyReadWriteLock(mode == Mode.READ_WRITE_FAIR);
+        Data data = new Data();
+        LongAdder reads = new LongAdder();
+        LongAdder writes = new LongAdder();
+        LongAdder inconsistent = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long r = 0;
+                long w = 0;
+                long acc = 0;
+                while (System.nanoTime() < deadline) {
+                    if (random.nextInt(100) < WRITE_PERCENT) {
+                        if (mode == Mode.EXCLUSIVE) {
+                            exclusive.lock();
+                            try {
+                                ++data.x;
+                                ++data.y;
+                            } finally {
+                                exclusive.unlock();
+                            }
+                        } else {
+                            rw.writeLock().lock();
+                            try {
+                                ++data.x;
+                                ++data.y;
+                            } finally {
+                                rw.writeLock().unlock();
+                            }
+                        }
+                        ++w;
+                        continue;
+                    }
+
+                    long x;
+                    long y;
+                    if (mode == Mode.EXCLUSIVE) {
+                        exclusive.lock();
+                        try {
+                            x = data.x;
+                            y = data.y;
+                            acc += work(x);
+                        } finally {
+                            exclusive.unlock();
+                        }
+                    } else if (mode == Mode.OPTIMISTIC) {
+                        long stamp = rw.tryOptimisticRead();
+                        x = data.x;
+                        y = data.y;
+                        acc += work(x);
+                        if (!rw.validate(stamp)) {
+                            rw.readLock().lock();
+                            try {
+                                x = data.x;
+                                y = data.y;
+                                acc += work(x);
+                            } finally {
+                                rw.readLock().unlock();
+                            }
+                        }
+                    } else {
+                        rw.readLock().lock();
+                        try {
+                            x = data.x;
+                            y = data.y;
+                            acc += work(x);
+                        } finally {
+                            rw.readLock().unlock();
+                        }
+                    }
+                    if (x != y) {
+                        inconsistent.increment();
+                    }
+                    ++r;
+                }
+                reads.add(r);
+                writes.add(w);
+                sink = acc;
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (inconsistent.sum() != 0) {
+            throw new IllegalStateException(mode.title + ": " + inconsistent.sum() + " reads saw a half-written update");
+        }
+        return new long[]{reads.sum(), writes.sum()};
+    }
+
+    private static long work(long seed) {
+        long x = seed;
+        for (int i = 0; i < READ_WORK; ++i) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        }
+        return x;
+    }
+}
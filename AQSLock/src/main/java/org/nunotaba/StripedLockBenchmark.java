@@ -0,0 +1,149 @@
+package org.nunotaba;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按账户ID加锁的转账: 一把全局MyLock,每个ID一把MyLock(放在一直增长的map里),StripedLockManager
+ * 每次转账同时锁两个账户,锁的顺序不固定的话会死锁,所以也顺便验证了lockAll的加锁顺序
+ * 跑完之后所有账户的余额加起来必须不变
+ *
+ * 用法: StripedLockBenchmark [每组测量的毫秒数,默认500] [账户数,默认100000] [锁的数量,默认1024]
+ */
+public class StripedLockBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    private static final long INITIAL_BALANCE = 1000;
+
+    enum Mode {
+        GLOBAL("global MyLock"), PER_KEY("MyLock per key"), STRIPED("striped");
+
+        final String title;
+
+        Mode(String title) {
+            this.title = title;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int stripes = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors() + ", accounts = " + accounts
+                + ", stripes = " + stripes);
+        System.out.printf("%8s", "threads");
+        for (Mode mode : Mode.values()) {
+            System.out.printf(" %18s", mode.title);
+        }
+        System.out.printf(" %14s%n", "per-key locks");
+
+        for (int threads : THREADS) {
+            System.out.printf("%8d", threads);
+            long perKeyLocks = 0;
+            for (Mode mode : Mode.values()) {
+                run(mode, threads, accounts, stripes, millis / 5);
+                long[] result = run(mode, threads, accounts, stripes, millis);
+                System.out.printf(" %14.2f M/s", result[0] / (double) TimeUnit.MILLISECONDS.toMicros(millis));
+                if (mode == Mode.PER_KEY) {
+                    perKeyLocks = result[1];
+                }
+            }
+            // 每个key一把锁的方式,map里最后留下了多少把锁
+            System.out.printf(" %14d%n", perKeyLocks);
+        }
+    }
+
+    /**
+     * @return {转账次数, 创建的锁的数量}
+     */
+    private static long[] run(Mode mode, int threadCount, int accountCount, int stripes, long millis)
+            throws InterruptedException {
+        long[] balances = new long[accountCount];
+        Arrays.fill(balances, INITIAL_BALANCE);
+        MyLock global = new MyLock();
+        ConcurrentHashMap<Integer, MyLock> perKey = new ConcurrentHashMap<>();
+        StripedLockManager striped = new StripedLockManager(stripes);
+        LongAdder transfers = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                while (System.nanoTime() < deadline) {
+                    int from = random.nextInt(accountCount);
+                    int to = random.nextInt(accountCount);
+                    long amount = random.nextInt(10);
+                    switch (mode) {
+                        case GLOBAL:
+                            global.lock();
+                            try {
+                                transfer(balances, from, to, amount);
+                            } finally {
+                                global.unlock();
+                            }
+                            break;
+                        case PER_KEY: {
+                            // 按ID大小决定加锁顺序,否则会死锁
+                            MyLock first = perKey.computeIfAbsent(Math.min(from, to), k -> new MyLock());
+                            MyLock second = perKey.computeIfAbsent(Math.max(from, to), k -> new MyLock());
+                            first.lock();
+                            second.lock();
+                            try {
+                                transfer(balances, from, to, amount);
+                            } finally {
+                                second.unlock();
+                                first.unlock();
+                            }
+                            break;
+                        }
+                        default: {
+                            StripedLockManager.Stripes held = striped.lockAll(from, to);
+                            try {
+                                transfer(balances, from, to, amount);
+                            } finally {
+                                held.unlock();
+                            }
+                            break;
+                        }
+                    }
+                    ++n;
+                }
+                transfers.add(n);
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long total = 0;
+        for (long balance : balances) {
+            total += balance;
+        }
+        if (total != INITIAL_BALANCE * accountCount) {
+            throw new IllegalStateException(mode.title + ": total balance is " + total + " but expected "
+                    + INITIAL_BALANCE * accountCount);
+        }
+        return new long[]{transfers.sum(), perKey.size()};
+    }
+
+    private static void transfer(long[] balances, int from, int to, long amount) {
+        balances[from] -= amount;
+        balances[to] += amount;
+    }
+}
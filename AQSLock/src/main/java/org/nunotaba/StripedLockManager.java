@@ -0,0 +1,204 @@
+package org.nunotaba;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按key加锁: 固定数量(2的幂)的MyLock,key的hash打散之后取低几位决定用哪一把
+ * 不管有多少个key内存都是固定的,也不会像一把全局锁那样所有线程抢同一个
+ * 代价是不同的key可能落在同一把锁上(伪冲突),锁的数量越多冲突越少
+ *
+ * 同时锁多个key用lockAll/tryLockAll: 先换算成锁的下标,去重之后从小到大加锁,
+ * 所有线程都按同一个顺序加锁,就不会互相等待形成环,也就不会死锁
+ * 注意: 已经单独持有某个key的锁时再调用lockAll,顺序就不能保证了,这种嵌套要避免
+ */
+public class StripedLockManager {
+
+    private final PaddedLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes 锁的数量,会向上取整到2的幂
+     */
+    public StripedLockManager(int stripes) {
+        this(stripes, false);
+    }
+
+    public StripedLockManager(int stripes, boolean isFair) {
+        if (stripes <= 0 || stripes > (1 << 30)) {
+            throw new IllegalArgumentException("stripes: " + stripes);
+        }
+        int n = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        locks = new PaddedLock[n];
+        for (int i = 0; i < n; ++i) {
+            locks[i] = new PaddedLock(isFair);
+        }
+        mask = n - 1;
+    }
+
+    /**
+     * @return 锁的数量(2的幂)
+     */
+    public int stripes() {
+        return locks.length;
+    }
+
+    /**
+     * @return key对应的锁的下标,key为null时用0
+     */
+    public int stripeOf(Object key) {
+        return spread(key == null ? 0 : key.hashCode()) & mask;
+    }
+
+    /**
+     * @return key对应的锁,可以直接用它的tryLock,newCondition等
+     */
+    public MyLock lockFor(Object key) {
+        return locks[stripeOf(key)];
+    }
+
+    public void lock(Object key) {
+        lockFor(key).lock();
+    }
+
+    public void unlock(Object key) {
+        lockFor(key).unlock();
+    }
+
+    /**
+     * 按固定顺序锁住所有key对应的锁,不会死锁
+     * @return 用来一次性解锁
+     */
+    public Stripes lockAll(Object... keys) {
+        int[] indexes = sortedStripes(keys);
+        for (int index : indexes) {
+            locks[index].lock();
+        }
+        return new Stripes(indexes);
+    }
+
+    /**
+     * 最常见的两个key(比如转账),不用排序数组
+     */
+    public Stripes lockAll(Object first, Object second) {
+        int a = stripeOf(first);
+        int b = stripeOf(second);
+        int[] indexes = a == b ? new int[]{a} : a < b ? new int[]{a, b} : new int[]{b, a};
+        for (int index : indexes) {
+            locks[index].lock();
+        }
+        return new Stripes(indexes);
+    }
+
+    public Stripes lockAll(Collection<?> keys) {
+        return lockAll(keys.toArray());
+    }
+
+    /**
+     * 和lockAll一样的顺序,但是所有锁加起来最多等timeout,没拿全就把已经拿到的释放掉
+     * @return 拿全了返回用来解锁的Stripes,超时返回null
+     */
+    public Stripes tryLockAll(long timeout, TimeUnit unit, Object... keys) throws InterruptedException {
+        int[] indexes = sortedStripes(keys);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int locked = 0;
+        try {
+            for (int index : indexes) {
+                if (!locks[index].tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                ++locked;
+            }
+        } finally {
+            // 超时或者被中断,已经拿到的倒序释放
+            if (locked != indexes.length) {
+                for (int i = locked - 1; i >= 0; --i) {
+                    locks[indexes[i]].unlock();
+                }
+            }
+        }
+        return locked == indexes.length ? new Stripes(indexes) : null;
+    }
+
+    /**
+     * @return 去重之后从小到大排好的下标
+     */
+    private int[] sortedStripes(Object[] keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+            indexes[i] = stripeOf(keys[i]);
+        }
+        if (indexes.length <= 16) {
+            // key一般只有几个,插入排序比Arrays.sort快
+            for (int i = 1; i < indexes.length; ++i) {
+                int v = indexes[i];
+                int j = i - 1;
+                while (j >= 0 && indexes[j] > v) {
+                    indexes[j + 1] = indexes[j];
+                    --j;
+                }
+                indexes[j + 1] = v;
+            }
+        } else {
+            Arrays.sort(indexes);
+        }
+        int unique = 0;
+        for (int i = 0; i < indexes.length; ++i) {
+            if (i == 0 || indexes[i] != indexes[unique - 1]) {
+                indexes[unique++] = indexes[i];
+            }
+        }
+        return unique == indexes.length ? indexes : Arrays.copyOf(indexes, unique);
+    }
+
+    /**
+     * hashCode的低位往往分布得不好(比如连续的Long或者只有高位不同的hash),先把高位混到低位里
+     * 用的是murmur3的fmix32
+     */
+    static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * lockAll拿到的一组锁,unlock按加锁的相反顺序释放
+     * 实现了AutoCloseable,可以用try-with-resources
+     */
+    public final class Stripes implements AutoCloseable {
+        private final int[] indexes;
+
+        private Stripes(int[] indexes) {
+            this.indexes = indexes;
+        }
+
+        public void unlock() {
+            for (int i = indexes.length - 1; i >= 0; --i) {
+                locks[indexes[i]].unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            unlock();
+        }
+    }
+
+    /**
+     * 数组里的锁是挨着分配的,每次加锁都会写owner,相邻两把锁的owner在同一个缓存行里就会互相伪共享
+     * 在后面填充128字节,把相邻的两把锁隔开
+     * Java不保证字段的顺序,但是父类的字段一定排在子类前面,所以填充的字段放在子类里就一定在owner后面
+     */
+    static final class PaddedLock extends MyLock {
+        long p00, p01, p02, p03, p04, p05, p06, p07;
+        long p08, p09, p0a, p0b, p0c, p0d, p0e, p0f;
+
+        PaddedLock(boolean isFair) {
+            super(isFair);
+        }
+    }
+}
@@ -1,48 +1,188 @@
 package org.nunotaba;
 
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * 在内存里编译: 源码是一个字符串,编译出来的字节码放在byte[]里,再用自己的ClassLoader定义出来,不读写任何文件
+ * 以前是把.java写进./src/main/java,编译到./target/classes,再从classpath加载,每个代理几百毫秒,而且要求源码目录可写
+ *
+ * JavaCompiler和StandardJavaFileManager只创建一次(创建它们要扫描JDK的模块,很慢),所以compile是synchronized的
+ * 生成的代码引用的类(比如MyInterface)从java.class.path里找
+ * 已经是字节码的(见ProxyClassWriter)不用编译,用define直接定义
+ */
 public class Compiler {
 
-    public static void compile(File javaFile) {
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
 
-        // 获取文件管理器
-        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+    private static StandardJavaFileManager standardFileManager;
 
-            // 获取要编译的文件对象
-            Iterable<? extends JavaFileObject> compilationUnits =
-                    fileManager.getJavaFileObjectsFromFiles(List.of(javaFile));
+    /**
+     * 编译并加载一个类
+     * @param className 全类名
+     * @param source 源码
+     * @param parent 生成的类的父加载器,生成的代码引用的类要能从它加载
+     * @return 加载好的类,每次调用都在一个新的ClassLoader里,没人用了就可以被回收
+     */
+    public static synchronized Class<?> compile(String className, String source, ClassLoader parent) {
+        if (COMPILER == null) {
+            throw new IllegalStateException("no system Java compiler, run on a JDK instead of a JRE");
+        }
+        if (standardFileManager == null) {
+            standardFileManager = COMPILER.getStandardFileManager(null, null, null);
+        }
+        MemoryFileManager fileManager = new MemoryFileManager(standardFileManager);
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler.CompilationTask task = COMPILER.getTask(
+                null,
+                fileManager,
+                diagnostics,
+                // 不找注解处理器(要扫描整个classpath),不生成调试信息
+                List.of("-proc:none", "-g:none"),
+                null,
+                List.of(new SourceFile(className, source)));
+        if (!task.call()) {
+            StringBuilder message = new StringBuilder("编译失败: ").append(className);
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                message.append('\n').append(d.getLineNumber()).append(": ").append(d.getMessage(null));
+            }
+            throw new IllegalStateException(message.toString());
+        }
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Map.Entry<String, ClassFile> e : fileManager.classes.entrySet()) {
+            classes.put(e.getKey(), e.getValue().bytes.toByteArray());
+        }
+        return load(className, classes, parent);
+    }
+
+    /**
+     * 不用编译,直接定义已经生成好的字节码
+     * @return 定义好的类,在一个新的ClassLoader里
+     */
+    public static Class<?> define(String className, byte[] bytes, ClassLoader parent) {
+        Map<String, byte[]> classes = new HashMap<>();
+        classes.put(className, bytes);
+        return load(className, classes, parent);
+    }
+
+    private static Class<?> load(String className, Map<String, byte[]> classes, ClassLoader parent) {
+        try {
+            return new MemoryClassLoader(parent, classes).loadClass(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-            // 设置编译选项（可选，例如指定输出目录）
-            List<String> options = Arrays.asList("-d", "./target/classes");
+    /**
+     * 内存里的源码
+     */
+    private static class SourceFile extends SimpleJavaFileObject {
+        private final String source;
 
-            // 创建编译任务
-            JavaCompiler.CompilationTask task = compiler.getTask(
-                    null,
-                    fileManager,
-                    null,
-                    options,
-                    null,
-                    compilationUnits);
+        SourceFile(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    /**
+     * 编译器写class文件的时候写到这里
+     */
+    private static class ClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFile(String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
 
-            // 执行编译
-            boolean success = task.call();
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+    }
+
+    /**
+     * 输出的class文件留在内存里,其他的(找JDK和classpath里的类)交给标准的文件管理器
+     * 一个源文件可能编译出好几个类(内部类,匿名类),都收集起来
+     */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        final Map<String, ClassFile> classes = new HashMap<>();
+
+        MemoryFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            ClassFile file = new ClassFile(className);
+            classes.put(className, file);
+            return file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // 标准的文件管理器还要给下一次编译用,不关
+        }
+    }
+
+    /**
+     * 从编译出来的字节码定义类,其他的交给父加载器
+     * 自己的类先在本地定义,不先问父加载器: classpath上可能有同名的旧类(以前的做法把代理类写进过target/classes),
+     * 父加载器优先的话,刚编译出来的类会被旧类悄悄顶替掉
+     */
+    private static class MemoryClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        MemoryClassLoader(ClassLoader parent, Map<String, byte[]> classes) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!classes.containsKey(name)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    c = findClass(name);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
 
-            if (success) {
-                System.out.println("编译成功！");
-            } else {
-                System.out.println("编译失败！");
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            return defineClass(name, bytes, 0, bytes.length);
         }
     }
-}
\ No newline at end of file
+}
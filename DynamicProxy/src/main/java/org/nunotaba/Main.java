@@ -12,6 +12,17 @@ public class Main {
         proxyObject.func1();
         proxyObject.func2();
         proxyObject.func3();
+
+        // 不写源码,直接把调用转给一个对象: 生成字节码,不用javac
+        MyInterface target = proxyObject;
+        MyInterface bytecodeProxy = MyInterfaceFactory.createBytecodeProxy(methodName -> {
+            System.out.println("invoke " + methodName);
+            if (methodName.equals("func1")) {
+                target.func1();
+            }
+        });
+        bytecodeProxy.func1();
+        bytecodeProxy.func2();
     }
 
     static class PrintFunctionName implements MyHandler{
@@ -1,21 +0,0 @@
-package org.nunotaba;
-
-import org.nunotaba.Proxy.MyInterface;
-
-public class MyInterface$proxy1 implements MyInterface {
-MyInterface myInterface;
-    @Override
-    public void func1() {
-        System.out.println("func1");
-    }
-
-    @Override
-    public void func2() {
-        System.out.println("func2");
-    }
-
-    @Override
-    public void func3() {
-        System.out.println("func3");
-    }
-}
\ No newline at end of file
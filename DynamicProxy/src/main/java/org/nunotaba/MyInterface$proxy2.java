@@ -1,27 +0,0 @@
-package org.nunotaba;
-
-import org.nunotaba.Proxy.MyInterface;
-
-public class MyInterface$proxy2 implements MyInterface {
-MyInterface myInterface;
-    @Override
-    public void func1() {
-        System.out.println("before");
-        myInterface.func1();
-        System.out.println("after");
-    }
-
-    @Override
-    public void func2() {
-        System.out.println("before");
-        myInterface.func2();
-        System.out.println("after");
-    }
-
-    @Override
-    public void func3() {
-        System.out.println("before");
-        myInterface.func3();
-        System.out.println("after");
-    }
-}
\ No newline at end of file
@@ -2,24 +2,25 @@ package org.nunotaba.Proxy;
 
 import org.nunotaba.Compiler;
 
-import java.io.File;
-import java.io.IOException;
 import java.lang.reflect.Constructor;
-import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 创建我们需要对象的工厂.
+ * 代理类的源码拼成字符串,在内存里编译和加载(见Compiler),不写任何文件
+ * 逻辑不是源码而是一个MyInvocationHandler的时候,用createBytecodeProxy直接生成字节码,连javac都不用
+ * 生成的类按接口和方法体缓存(见ProxyClassCache),同样的代理再创建一次只调一次构造函数
  */
 public class MyInterfaceFactory {
     static AtomicInteger count = new AtomicInteger(0);
-    private static File createJavaFile(String className, MyHandler myHandler) throws IOException {
 
-        // 在创建类加载的过程中,类名应该是动态的
-        String func1Body = myHandler.functionBody("func1");
-        String func2Body = myHandler.functionBody("func2");
-        String func3Body = myHandler.functionBody("func3");
+    private static final ProxyClassCache CACHE = new ProxyClassCache();
 
+    private static String createSource(String className, String func1Body, String func2Body, String func3Body) {
+
+        // 在创建类加载的过程中,类名应该是动态的
         String context = "package org.nunotaba;\n" +
                 "\n" +
                 "import org.nunotaba.Proxy.MyInterface;\n" +
@@ -41,13 +42,11 @@ public class MyInterfaceFactory {
                 "        " + func3Body + "\n" +
                 "    }\n" +
                 "}";
-        File javaFile = new File("./src/main/java/org/nunotaba/" + className + ".java");
-        Files.writeString(javaFile.toPath(), context);
-        return javaFile;
+        return context;
     }
 
     /**
-     * 计数器保证每次生成的className不一样
+     * 计数器保证每次生成的className不一样,只有缓存里没有、真的要生成类的时候才调用
      * @return 新生成的className
      */
     private static String getClassName(){
@@ -56,13 +55,12 @@ public class MyInterfaceFactory {
 
 
     /**
-     * 生成class字节码文件之后,我们就可以把这个文件加载进入jvm
-     * @param className 类名
+     * 字节码加载进jvm之后,就可以创建对象了
+     * @param aClass 编译好的代理类
      * @throws Exception 不处理所有异常
      * 你发现,通过自己指定一些实现,你创建了一个接口的实例......
      */
-    private static MyInterface newInstance(String className, MyHandler handler) throws Exception{
-        Class<?> aClass = MyInterfaceFactory.class.getClassLoader().loadClass(className);
+    private static MyInterface newInstance(Class<?> aClass, MyHandler handler) throws Exception{
         Constructor<?> constructor = aClass.getConstructor();
         MyInterface proxy = (MyInterface) constructor.newInstance();
         handler.setProxy(proxy);
@@ -75,11 +73,54 @@ public class MyInterfaceFactory {
      * @throws Exception 不处理异常
      */
     public static MyInterface createProxyObject(MyHandler myHandler) throws Exception{
-        String className = getClassName();
-        File javaFile = createJavaFile(className, myHandler);
-        Compiler.compile(javaFile);
-        // 注意这里要使用全类名.
-        return newInstance("org.nunotaba." + className, myHandler);
+        String func1Body = myHandler.functionBody("func1");
+        String func2Body = myHandler.functionBody("func2");
+        String func3Body = myHandler.functionBody("func3");
+        // 生成出来的类只由接口和三个方法体决定,类名不算
+        List<String> key = Arrays.asList(MyInterface.class.getName(), "source", func1Body, func2Body, func3Body);
+        ClassLoader loader = MyInterface.class.getClassLoader();
+        Class<?> aClass = CACHE.get(MyInterface.class, key, () -> {
+            String className = getClassName();
+            String source = createSource(className, func1Body, func2Body, func3Body);
+            // 注意这里要使用全类名.
+            return Compiler.compile("org.nunotaba." + className, source, loader);
+        });
+        return newInstance(aClass, myHandler);
+    }
+
+    /**
+     * 返回动态代理的对象,每个方法都转给handler; 不拼源码不编译,直接生成字节码(见ProxyClassWriter)
+     * @return 利用接口创建的实例
+     * @throws Exception 不处理异常
+     */
+    public static MyInterface createBytecodeProxy(MyInvocationHandler handler) throws Exception {
+        // 逻辑都在handler里,生成出来的类只由接口决定
+        List<String> key = Arrays.asList(MyInterface.class.getName(), "bytecode");
+        ClassLoader loader = MyInterface.class.getClassLoader();
+        Class<?> aClass = CACHE.get(MyInterface.class, key, () -> defineBytecodeProxy(loader));
+        return (MyInterface) aClass.getConstructor(MyInvocationHandler.class).newInstance(handler);
+    }
+
+    /**
+     * 和createBytecodeProxy一样,但是不查缓存,每次都生成字节码、定义一个新的类
+     * 用来量生成一个类本身要多久(见ProxyBenchmark),平时用createBytecodeProxy
+     */
+    public static MyInterface createUncachedBytecodeProxy(MyInvocationHandler handler) throws Exception {
+        Class<?> aClass = defineBytecodeProxy(MyInterface.class.getClassLoader());
+        return (MyInterface) aClass.getConstructor(MyInvocationHandler.class).newInstance(handler);
+    }
+
+    private static Class<?> defineBytecodeProxy(ClassLoader loader) {
+        String className = "org.nunotaba." + getClassName();
+        byte[] bytes = ProxyClassWriter.generate(className, MyInterface.class);
+        return Compiler.define(className, bytes, loader);
+    }
+
+    /**
+     * @return 缓存里还活着(没被卸载)的代理类的个数
+     */
+    public static int cachedProxyClasses() {
+        return CACHE.size(MyInterface.class);
     }
 
 }
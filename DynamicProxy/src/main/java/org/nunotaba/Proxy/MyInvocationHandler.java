@@ -0,0 +1,13 @@
+package org.nunotaba.Proxy;
+
+/**
+ * 和MyHandler不同,这里给的不是源码,而是真正的逻辑: 代理对象的每个方法被调用时,都转到invoke
+ * 所以代理类的字节码是固定的样子,可以直接生成(见ProxyClassWriter),不用javac
+ */
+@FunctionalInterface
+public interface MyInvocationHandler {
+    /**
+     * @param methodName 被调用的方法名
+     */
+    void invoke(String methodName);
+}
@@ -0,0 +1,92 @@
+package org.nunotaba.Proxy;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 生成好的代理类的缓存: 同一个接口,同样的方法体,只生成一次类,之后创建代理只要调构造函数
+ *
+ * 引用关系:
+ *   接口 -> 这个接口的所有代理类,用ClassValue挂在接口的Class上: 接口和它的ClassLoader被卸载了,下面的缓存跟着一起丢掉
+ *     代理类的ClassLoader的父加载器就是接口的ClassLoader,挂在接口上不会像WeakHashMap的value引用key那样把ClassLoader留住
+ *   key -> 接口名和方法体的字符串,不引用任何Class
+ *   value -> 代理类的软引用: GC的时候不会清掉,只有内存不够的时候才会丢掉很久没用过的类,下次用到再生成
+ * 命中的时候不加锁: ClassValue.get和ConcurrentHashMap.get都不加锁,只有生成新类的时候锁住这个接口的缓存
+ * 被回收的条目通过ReferenceQueue清理掉
+ */
+final class ProxyClassCache {
+
+    private final ClassValue<Map<List<String>, Entry>> interfaces = new ClassValue<Map<List<String>, Entry>>() {
+        @Override
+        protected Map<List<String>, Entry> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    private final ReferenceQueue<Class<?>> queue = new ReferenceQueue<>();
+
+    private static final class Entry extends SoftReference<Class<?>> {
+        final Map<List<String>, Entry> owner;
+        final List<String> key;
+
+        Entry(Class<?> type, ReferenceQueue<Class<?>> queue, Map<List<String>, Entry> owner, List<String> key) {
+            super(type, queue);
+            this.owner = owner;
+            this.key = key;
+        }
+    }
+
+    /**
+     * @param type 代理的接口
+     * @param key 接口名和决定生成出来的类长什么样的所有字符串
+     * @param generator 缓存里没有(或者已经被回收了)时生成一个新的类
+     */
+    Class<?> get(Class<?> type, List<String> key, Supplier<Class<?>> generator) {
+        Map<List<String>, Entry> classes = interfaces.get(type);
+        Entry entry = classes.get(key);
+        Class<?> proxyClass = entry == null ? null : entry.get();
+        if (proxyClass != null) {
+            return proxyClass;
+        }
+        // 同一个key只生成一次
+        synchronized (classes) {
+            entry = classes.get(key);
+            proxyClass = entry == null ? null : entry.get();
+            if (proxyClass == null) {
+                expunge();
+                proxyClass = generator.get();
+                classes.put(key, new Entry(proxyClass, queue, classes, key));
+            }
+            return proxyClass;
+        }
+    }
+
+    /**
+     * 去掉已经被回收的类的条目
+     */
+    private void expunge() {
+        Reference<? extends Class<?>> ref;
+        while ((ref = queue.poll()) != null) {
+            Entry entry = (Entry) ref;
+            entry.owner.remove(entry.key, entry);
+        }
+    }
+
+    /**
+     * @return 缓存里还活着的这个接口的代理类的个数
+     */
+    int size(Class<?> type) {
+        expunge();
+        int size = 0;
+        for (Entry entry : interfaces.get(type).values()) {
+            if (entry.get() != null) {
+                ++size;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,245 @@
+package org.nunotaba.Proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 手写的class文件生成器,只生成一种类: 实现一个接口,每个方法都转给MyInvocationHandler
+ * 相当于下面的源码,只是不用javac,直接写字节码:
+ * <pre>
+ * public final class 类名 implements 接口 {
+ *     private final MyInvocationHandler handler;
+ *     public 类名(MyInvocationHandler handler) { this.handler = handler; }
+ *     public void func1() { handler.invoke("func1"); }
+ *     ...
+ * }
+ * </pre>
+ * 接口的抽象方法只能是 void 方法名() 的形式; 生成的方法里没有分支,所以class版本用52(Java 8),不用写StackMapTable
+ * class文件的格式见JVM规范第4章
+ */
+final class ProxyClassWriter {
+
+    private static final int VERSION = 52;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int LDC_W = 0x13;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    private static final String HANDLER = internalName(MyInvocationHandler.class);
+    private static final String HANDLER_DESCRIPTOR = "L" + HANDLER + ";";
+
+    // 常量池,相同的常量只放一次
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+
+    private ProxyClassWriter() {
+    }
+
+    /**
+     * @param className 全类名
+     * @param anInterface 要实现的接口
+     * @return class文件的内容
+     */
+    static byte[] generate(String className, Class<?> anInterface) {
+        if (!anInterface.isInterface()) {
+            throw new IllegalArgumentException(anInterface + " is not an interface");
+        }
+        List<String> methods = new ArrayList<>();
+        for (Method m : anInterface.getMethods()) {
+            if (!Modifier.isAbstract(m.getModifiers())) {
+                continue;
+            }
+            if (m.getParameterCount() != 0 || m.getReturnType() != void.class) {
+                throw new IllegalArgumentException("only void no-arg methods can be proxied: " + m);
+            }
+            if (!methods.contains(m.getName())) {
+                methods.add(m.getName());
+            }
+        }
+        try {
+            return new ProxyClassWriter().write(className.replace('.', '/'), internalName(anInterface), methods);
+        } catch (IOException e) {
+            // 只写内存,不会发生
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] write(String thisName, String interfaceName, List<String> methods) throws IOException {
+        // 先把所有方法体写好,常量池跟着填满,最后再拼成class文件
+        int thisClass = classRef(thisName);
+        int superClass = classRef("java/lang/Object");
+        int anInterface = classRef(interfaceName);
+        int handlerField = memberRef(CONSTANT_FIELDREF, thisName, "handler", HANDLER_DESCRIPTOR);
+        int objectInit = memberRef(CONSTANT_METHODREF, "java/lang/Object", "<init>", "()V");
+        int invoke = memberRef(CONSTANT_INTERFACE_METHODREF, HANDLER, "invoke", "(Ljava/lang/String;)V");
+        int code = utf8("Code");
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        // 字段
+        out.writeShort(1);
+        out.writeShort(ACC_PRIVATE | ACC_FINAL);
+        out.writeShort(utf8("handler"));
+        out.writeShort(utf8(HANDLER_DESCRIPTOR));
+        out.writeShort(0);
+
+        out.writeShort(1 + methods.size());
+        // 构造函数: super(); this.handler = handler;
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(utf8("<init>"));
+        out.writeShort(utf8("(" + HANDLER_DESCRIPTOR + ")V"));
+        writeCode(out, code, 2, 2, new byte[]{
+                ALOAD_0, (byte) INVOKESPECIAL, hi(objectInit), lo(objectInit),
+                ALOAD_0, ALOAD_1, (byte) PUTFIELD, hi(handlerField), lo(handlerField),
+                (byte) RETURN});
+        // 每个方法: handler.invoke("方法名");
+        for (String name : methods) {
+            int nameConstant = string(name);
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8("()V"));
+            writeCode(out, code, 2, 1, new byte[]{
+                    ALOAD_0, (byte) GETFIELD, hi(handlerField), lo(handlerField),
+                    LDC_W, hi(nameConstant), lo(nameConstant),
+                    (byte) INVOKEINTERFACE, hi(invoke), lo(invoke), 2, 0,
+                    (byte) RETURN});
+        }
+        // 类的属性
+        out.writeShort(0);
+
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        DataOutputStream cf = new DataOutputStream(classFile);
+        cf.writeInt(0xCAFEBABE);
+        cf.writeShort(0);
+        cf.writeShort(VERSION);
+        cf.writeShort(poolCount);
+        poolBytes.writeTo(cf);
+        cf.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        cf.writeShort(thisClass);
+        cf.writeShort(superClass);
+        cf.writeShort(1);
+        cf.writeShort(anInterface);
+        body.writeTo(cf);
+        return classFile.toByteArray();
+    }
+
+    /**
+     * 写一个方法剩下的部分: 只有一个Code属性,没有异常表
+     */
+    private static void writeCode(DataOutputStream out, int codeName, int maxStack, int maxLocals, byte[] code)
+            throws IOException {
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private int utf8(String value) throws IOException {
+        Integer index = constants.get("U" + value);
+        if (index != null) {
+            return index;
+        }
+        pool.writeByte(CONSTANT_UTF8);
+        pool.writeUTF(value);
+        return add("U" + value);
+    }
+
+    private int classRef(String internalName) throws IOException {
+        return ref(CONSTANT_CLASS, "C" + internalName, utf8(internalName));
+    }
+
+    private int string(String value) throws IOException {
+        return ref(CONSTANT_STRING, "S" + value, utf8(value));
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) throws IOException {
+        String key = tag + owner + "." + name + ":" + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        pool.writeByte(tag);
+        pool.writeShort(ownerIndex);
+        pool.writeShort(nameAndType);
+        return add(key);
+    }
+
+    private int nameAndType(String name, String descriptor) throws IOException {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        pool.writeByte(CONSTANT_NAME_AND_TYPE);
+        pool.writeShort(nameIndex);
+        pool.writeShort(descriptorIndex);
+        return add(key);
+    }
+
+    /**
+     * 只引用一个utf8常量的常量(类,字符串)
+     */
+    private int ref(int tag, String key, int utf8Index) throws IOException {
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        pool.writeByte(tag);
+        pool.writeShort(utf8Index);
+        return add(key);
+    }
+
+    private int add(String key) {
+        int index = poolCount++;
+        constants.put(key, index);
+        return index;
+    }
+
+    private static String internalName(Class<?> c) {
+        return c.getName().replace('.', '/');
+    }
+
+    private static byte hi(int index) {
+        return (byte) (index >>> 8);
+    }
+
+    private static byte lo(int index) {
+        return (byte) index;
+    }
+}
@@ -0,0 +1,227 @@
+package org.nunotaba;
+
+import org.nunotaba.Proxy.MyHandler;
+import org.nunotaba.Proxy.MyInterface;
+import org.nunotaba.Proxy.MyInterfaceFactory;
+import org.nunotaba.Proxy.MyInvocationHandler;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 创建一个代理要多久:
+ *   以前的做法: 把.java写到磁盘上,每次新建文件管理器调javac编译到一个目录,再从这个目录加载
+ *              (以前写的是./src/main/java和./target/classes,这里换成临时目录,不弄脏源码目录)
+ *   现在的做法: MyInterfaceFactory.createProxyObject,在内存里编译和加载
+ *   直接生成字节码: MyInterfaceFactory.createBytecodeProxy,不用javac
+ * 两种都先热身几次,再取平均; 第一次(冷启动)的时间单独打印
+ * 先跑的那种要负责把javac加载和编译热,第一次的时间会吃亏,比冷启动要分别跑disk和memory
+ * 生成的类是按方法体缓存的,所以memory每次用不同的方法体,量的是真的生成一个类的时间
+ *   bytecode的类只由接口决定,缓存总是命中,所以绕过缓存(createUncachedBytecodeProxy)量生成字节码加上定义类的时间,
+ *   再单独打印缓存命中的时间
+ *   cache: 同样的代理重复创建的时间,以及一时没人用的代理类GC之后还在缓存里,不会重新生成
+ * 没有用JMH,和其他模块一样用System.nanoTime计时
+ *
+ * 用法: ProxyBenchmark [每种做法创建多少个代理,默认20] [disk|memory|bytecode|cache|all,默认all]
+ */
+public class ProxyBenchmark {
+    private static final int WARMUP = 3;
+
+    private static int onDiskCount = 0;
+    private static int uniqueCount = 0;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        String mode = args.length > 1 ? args[1] : "all";
+        MyHandler handler = methodName -> "System.out.print(\"\");";
+        if (mode.equals("disk") || mode.equals("all")) {
+            benchmarkOnDisk(handler, count);
+        }
+        if (mode.equals("memory") || mode.equals("all")) {
+            benchmarkInMemory(count);
+        }
+        if (mode.equals("bytecode") || mode.equals("all")) {
+            benchmarkBytecode(count * 100);
+        }
+        if (mode.equals("cache") || mode.equals("all")) {
+            benchmarkCached(count * 1000);
+            checkSurvivesGc(count);
+        }
+    }
+
+    /**
+     * 每次的方法体都不一样,缓存不会命中
+     */
+    private static MyHandler uniqueHandler() {
+        int id = ++uniqueCount;
+        return methodName -> "System.out.print(\"" + id + "\".substring(0, 0));";
+    }
+
+    private static void benchmarkCached(int count) throws Exception {
+        MyHandler handler = methodName -> "System.out.print(\"\");";
+        long first = System.nanoTime();
+        MyInterface proxy = MyInterfaceFactory.createProxyObject(handler);
+        System.out.printf("cached:    first %.1f ms", (System.nanoTime() - first) / 1e6);
+        for (int i = 1; i < count / 10; ++i) {
+            MyInterfaceFactory.createProxyObject(handler);
+        }
+        long begin = System.nanoTime();
+        MyInterface last = proxy;
+        for (int i = 0; i < count; ++i) {
+            last = MyInterfaceFactory.createProxyObject(handler);
+        }
+        System.out.printf(", then %.3f ms per proxy (%d proxies)%n", (System.nanoTime() - begin) / 1e6 / count, count);
+        if (last.getClass() != proxy.getClass() || last == proxy) {
+            throw new IllegalStateException("a repeated proxy should be a new object of the cached class");
+        }
+        // 方法体不一样的要是另一个类
+        if (MyInterfaceFactory.createProxyObject(uniqueHandler()).getClass() == proxy.getClass()) {
+            throw new IllegalStateException("different function bodies share a proxy class");
+        }
+    }
+
+    /**
+     * 生成一批代理,扔掉之后GC: 缓存里的类不应该被清掉,同样的代理再创建一次还是原来的类,不用重新编译
+     */
+    private static void checkSurvivesGc(int count) throws Exception {
+        MyHandler[] handlers = new MyHandler[count];
+        String[] names = new String[count];
+        for (int i = 0; i < count; ++i) {
+            handlers[i] = uniqueHandler();
+            names[i] = MyInterfaceFactory.createProxyObject(handlers[i]).getClass().getName();
+        }
+        int filled = MyInterfaceFactory.cachedProxyClasses();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        int after = MyInterfaceFactory.cachedProxyClasses();
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            String name = MyInterfaceFactory.createProxyObject(handlers[i]).getClass().getName();
+            if (!name.equals(names[i])) {
+                throw new IllegalStateException("proxy class regenerated after GC: " + names[i] + " -> " + name);
+            }
+        }
+        System.out.printf("after GC:  %d cached classes before, %d after, %.3f ms per proxy%n",
+                filled, after, (System.nanoTime() - begin) / 1e6 / count);
+        if (after < filled) {
+            throw new IllegalStateException("GC emptied the proxy class cache: " + after + " < " + filled);
+        }
+    }
+
+    private static void benchmarkBytecode(int count) throws Exception {
+        int[] calls = new int[1];
+        MyInvocationHandler handler = methodName -> calls[0]++;
+        long first = System.nanoTime();
+        MyInterface proxy = MyInterfaceFactory.createUncachedBytecodeProxy(handler);
+        System.out.printf("bytecode:  first %.3f ms", (System.nanoTime() - first) / 1e6);
+        for (int i = 1; i < count / 10; ++i) {
+            MyInterfaceFactory.createUncachedBytecodeProxy(handler);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            MyInterface generated = MyInterfaceFactory.createUncachedBytecodeProxy(handler);
+            if (generated.getClass() == proxy.getClass()) {
+                throw new IllegalStateException("uncached bytecode proxy reused a class");
+            }
+            proxy = generated;
+        }
+        System.out.printf(", then %.3f ms per proxy (%d classes generated)", (System.nanoTime() - begin) / 1e6 / count, count);
+        proxy.func1();
+        proxy.func3();
+        if (calls[0] != 2) {
+            throw new IllegalStateException("bytecode proxy did not forward the calls");
+        }
+
+        // 缓存命中: 只调构造函数
+        int cachedCount = count * 10;
+        for (int i = 0; i < cachedCount / 10; ++i) {
+            MyInterfaceFactory.createBytecodeProxy(handler);
+        }
+        begin = System.nanoTime();
+        for (int i = 0; i < cachedCount; ++i) {
+            proxy = MyInterfaceFactory.createBytecodeProxy(handler);
+        }
+        System.out.printf(", %.4f ms cached%n", (System.nanoTime() - begin) / 1e6 / cachedCount);
+    }
+
+    private static void benchmarkOnDisk(MyHandler handler, int count) throws Exception {
+        Path dir = Files.createTempDirectory("proxy");
+        try {
+            long first = System.nanoTime();
+            onDisk(dir, handler);
+            System.out.printf("on disk:   first %.1f ms", (System.nanoTime() - first) / 1e6);
+            for (int i = 1; i < WARMUP; ++i) {
+                onDisk(dir, handler);
+            }
+            long begin = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                onDisk(dir, handler);
+            }
+            System.out.printf(", then %.1f ms per proxy%n", (System.nanoTime() - begin) / 1e6 / count);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void benchmarkInMemory(int count) throws Exception {
+        long first = System.nanoTime();
+        MyInterface proxy = MyInterfaceFactory.createProxyObject(uniqueHandler());
+        System.out.printf("in memory: first %.1f ms", (System.nanoTime() - first) / 1e6);
+        for (int i = 1; i < WARMUP; ++i) {
+            MyInterfaceFactory.createProxyObject(uniqueHandler());
+        }
+        MyHandler[] handlers = new MyHandler[count];
+        for (int i = 0; i < count; ++i) {
+            handlers[i] = uniqueHandler();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            proxy = MyInterfaceFactory.createProxyObject(handlers[i]);
+        }
+        System.out.printf(", then %.1f ms per proxy%n", (System.nanoTime() - begin) / 1e6 / count);
+        proxy.func1();
+    }
+
+    /**
+     * 以前的做法,源码和MyInterfaceFactory生成的一样
+     */
+    private static MyInterface onDisk(Path dir, MyHandler handler) throws Exception {
+        String className = "OnDiskProxy" + ++onDiskCount;
+        String source = "package org.nunotaba;\n" +
+                "\n" +
+                "import org.nunotaba.Proxy.MyInterface;\n" +
+                "\n" +
+                "public class " + className + " implements MyInterface {\n" +
+                "MyInterface myInterface;\n" +
+                "    public void func1() {\n        " + handler.functionBody("func1") + "\n    }\n" +
+                "    public void func2() {\n        " + handler.functionBody("func2") + "\n    }\n" +
+                "    public void func3() {\n        " + handler.functionBody("func3") + "\n    }\n" +
+                "}";
+        File javaFile = dir.resolve(className + ".java").toFile();
+        Files.writeString(javaFile.toPath(), source);
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            boolean success = compiler.getTask(null, fileManager, null, List.of("-d", dir.toString()), null,
+                    fileManager.getJavaFileObjectsFromFiles(List.of(javaFile))).call();
+            if (!success) {
+                throw new IllegalStateException("编译失败: " + className);
+            }
+        }
+        URLClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()}, ProxyBenchmark.class.getClassLoader());
+        return (MyInterface) loader.loadClass("org.nunotaba." + className).getConstructor().newInstance();
+    }
+}
@@ -0,0 +1,188 @@
+package org.nunotaba.TokenBucket;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// TokenBucketLimiter阻塞获取的检查:
+//   1.很多线程被限流的时候,acquire()和在外面忙等重试tryAcquire比: 发出去的令牌数(不超过 容量 + 速率 * 时间)和消耗的CPU时间
+//   2.等待的线程按到达顺序拿到令牌
+//   3.带超时的tryAcquire: 超时之前攒不够就马上返回false,攒得够就等到拿到为止
+//   4.等待的线程被中断抛InterruptedException,排在它后面的线程不受影响
+// 没有用JMH(这个模块不依赖任何第三方库),用System.nanoTime和ThreadMXBean计时
+//
+// 用法: BlockingAcquireBenchmark [每组测量的毫秒数,默认1000] [线程数,默认16]
+public class BlockingAcquireBenchmark {
+    private static final int CAPACITY = 10;
+    private static final double RATE = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors() + ", threads = " + threads
+                + ", capacity = " + CAPACITY + ", rate = " + (long) RATE + "/s");
+
+        System.out.printf("%14s %12s %16s%n", "", "tokens/s", "cpu ms per sec");
+        for (int blocking = 0; blocking < 2; ++blocking) {
+            double[] result = run(blocking == 1, threads, millis);
+            System.out.printf("%14s %12.0f %16.1f%n", blocking == 1 ? "acquire()" : "busy retry", result[0], result[1]);
+        }
+        checkFifo();
+        checkTimeout();
+        checkInterrupt();
+        System.out.println("all checks passed");
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * @return {每秒发出的令牌数, 所有线程每秒一共用了多少毫秒CPU}
+     */
+    private static double[] run(boolean blocking, int threadCount, long millis) throws InterruptedException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        TokenBucketLimiter limiter = new TokenBucketLimiter(CAPACITY, RATE);
+        LongAdder tokens = new LongAdder();
+        LongAdder cpu = new LongAdder();
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                long cpuBefore = bean.getCurrentThreadCpuTime();
+                long granted = 0;
+                try {
+                    while (true) {
+                        if (blocking) {
+                            // 最后一个令牌可能要等到deadline之后,用带超时的版本收尾
+                            if (!limiter.tryAcquire(1, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                                break;
+                            }
+                            ++granted;
+                        } else {
+                            if (System.nanoTime() >= deadline) {
+                                break;
+                            }
+                            if (limiter.tryAcquire(1)) {
+                                ++granted;
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                tokens.add(granted);
+                cpu.add(bean.getCurrentThreadCpuTime() - cpuBefore);
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        long limit = (long) (CAPACITY + RATE * seconds * 1.01) + 1;
+        String name = blocking ? "acquire()" : "busy retry";
+        check(tokens.sum() <= limit, name + " handed out " + tokens.sum() + " tokens, more than " + limit);
+        if (blocking) {
+            // 阻塞获取要把速率用满,不能因为睡过头少发
+            check(tokens.sum() >= RATE * seconds * 0.9, name + " only handed out " + tokens.sum() + " tokens");
+        }
+        return new double[]{tokens.sum() / seconds, cpu.sum() / 1e6 / seconds};
+    }
+
+    /**
+     * 容量1,每秒100个: 每5毫秒来一个线程,比补充得快,队列越排越长,拿到令牌的顺序应该和到达的顺序一样
+     */
+    private static void checkFifo() throws InterruptedException {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1, 100);
+        int count = 10;
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            int id = i;
+            Thread t = new Thread(() -> {
+                try {
+                    limiter.acquire();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                order.add(id);
+            });
+            threads.add(t);
+            t.start();
+            // 等它真的进了队列(或者已经拿到)再放下一个
+            while (t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING
+                    && t.getState() != Thread.State.TERMINATED) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(5);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (int i = 0; i < count; ++i) {
+            check(order.get(i) == i, "waiters were not served in arrival order: " + order);
+        }
+        System.out.println("fifo: " + count + " waiters served in arrival order");
+    }
+
+    private static void checkTimeout() throws InterruptedException {
+        // 每秒10个,拿空之后下一个要等100毫秒
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1, 10);
+        check(limiter.tryAcquire(1), "bucket should start full");
+
+        long begin = System.nanoTime();
+        boolean got = limiter.tryAcquire(1, 50, TimeUnit.MILLISECONDS);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        check(!got && waited < 20, "timeout shorter than the refill should fail at once, got=" + got + " after " + waited + " ms");
+
+        begin = System.nanoTime();
+        got = limiter.tryAcquire(1, 500, TimeUnit.MILLISECONDS);
+        waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        check(got && waited >= 50 && waited < 300, "should get the token after about 100 ms, got=" + got + " after " + waited + " ms");
+        System.out.println("timeout: failed fast, then acquired after " + waited + " ms");
+    }
+
+    private static void checkInterrupt() throws InterruptedException {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1, 10);
+        check(limiter.tryAcquire(1), "bucket should start full");
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch secondDone = new CountDownLatch(1);
+        Thread first = new Thread(() -> {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        Thread second = new Thread(() -> {
+            try {
+                limiter.acquire();
+                secondDone.countDown();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        first.start();
+        Thread.sleep(10);
+        second.start();
+        Thread.sleep(10);
+        // 中断队头,后面的线程要接着等并且拿到令牌
+        first.interrupt();
+        first.join();
+        check(interrupted.get(), "interrupted waiter should throw InterruptedException");
+        check(secondDone.await(1, TimeUnit.SECONDS), "waiter behind an interrupted one never got its token");
+        second.join();
+        System.out.println("interrupt: head waiter left, next waiter still served");
+    }
+}
@@ -0,0 +1,96 @@
+package org.nunotaba.TokenBucket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// 漏桶限流,用GCRA(Generic Cell Rate Algorithm)实现: 整个状态只有一个long,TAT(理论到达时间)
+//   每个许可占用interval = 1/速率 的时间,请求n个许可之后 TAT = max(TAT, now) + n * interval
+//   只要新的TAT不超过 now + capacity * interval 就放行,否则拒绝并且不改状态
+// 和容量相同,速率相同的令牌桶放行的请求完全一样(TAT - now 就是 桶里缺的令牌 * interval),
+// 但是不需要分别记令牌数和时间,所以不用打包,也没有容量的上限; 按key限流时每个key只要8个字节
+//
+// TAT的单位是1/256纳秒,速率很高(interval只有几纳秒)的时候也不会因为取整少发或者多发
+// 无锁: 拒绝的时候只读不写,放行是一次CAS
+public class GcraLimiter implements RateLimiter {
+
+    private static final int FRACTION_BITS = 8;
+
+    private final int capacity;
+    private final double tokensPerSecond;
+    // 每个许可的间隔,单位1/256纳秒,向上取整: 宁可少发一点,也不能多发
+    private final long interval;
+    // TAT最多可以领先当前时间多少
+    private final long tolerance;
+    private final LimiterClock clock;
+
+    private final AtomicLong tat;
+
+    /**
+     * 一开始可以突发capacity个
+     * @param capacity 最大的突发量
+     * @param tokensPerSecond 每秒多少个许可
+     */
+    public GcraLimiter(int capacity, double tokensPerSecond) {
+        this(capacity, tokensPerSecond, LimiterClock.SYSTEM);
+    }
+
+    public GcraLimiter(int capacity, double tokensPerSecond, LimiterClock clock) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        if (!(tokensPerSecond > 0)) {
+            throw new IllegalArgumentException("tokensPerSecond: " + tokensPerSecond);
+        }
+        this.capacity = capacity;
+        this.tokensPerSecond = tokensPerSecond;
+        this.interval = Math.max(1, (long) Math.ceil((1e9 * (1 << FRACTION_BITS)) / tokensPerSecond));
+        if (interval > Long.MAX_VALUE / 4 / capacity) {
+            throw new IllegalArgumentException("capacity " + capacity + " is too large for rate " + tokensPerSecond);
+        }
+        this.tolerance = interval * capacity;
+        this.clock = clock;
+        this.tat = new AtomicLong(now());
+    }
+
+    private long now() {
+        return clock.nanoTime() << FRACTION_BITS;
+    }
+
+    @Override
+    public boolean tryAcquire(int n) {
+        if (n <= 0 || n > capacity) {
+            throw new IllegalArgumentException("permits must be in [1, " + capacity + "]: " + n);
+        }
+        long now = now();
+        long increment = interval * n;
+        while (true) {
+            long t = tat.get();
+            // 用差值比较,时间溢出也没关系
+            long newTat = (t - now > 0 ? t : now) + increment;
+            if (newTat - now > tolerance) {
+                return false;
+            }
+            if (tat.compareAndSet(t, newTat)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 当前可以马上拿到的许可数,只是一个瞬间的快照
+     */
+    public int availableTokens() {
+        long backlog = tat.get() - now();
+        if (backlog <= 0) {
+            return capacity;
+        }
+        return (int) ((tolerance - backlog) / interval);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public double getTokensPerSecond() {
+        return tokensPerSecond;
+    }
+}
@@ -0,0 +1,262 @@
+package org.nunotaba.TokenBucket;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// KeyedTokenBucketRegistry的检查和吞吐量:
+//   1.每个key发出去的令牌不超过 容量 + 速率 * 时间
+//   2.key不停地换(老的key不再用),桶的个数不超过maxBuckets,空闲的桶会被驱逐; 被驱逐的key满了的时候再来会被拒绝,不会卡住
+//   3.key已经存在的时候,tryAcquire不分配对象(用ThreadMXBean量当前线程分配的字节数)
+//   4.1到32个线程,和 ConcurrentHashMap<Long, TokenBucketLimiter> 比吞吐量,以及每个key占用的内存
+// 没有用JMH(这个模块不依赖任何第三方库),先热身再用System.nanoTime计时
+//
+// 用法: KeyedRegistryBenchmark [每组测量的毫秒数,默认500] [key的个数,默认1000000]
+public class KeyedRegistryBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    private static final int CAPACITY = 10;
+    private static final double RATE = 100;
+
+    interface Limiter {
+        boolean tryAcquire(long key);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors() + ", keys = " + keys);
+
+        checkPerKeyLimit(8, 1000, millis);
+        checkBoundedWithChurn(millis);
+        checkRevivalWhenFull();
+        checkNoAllocation(keys);
+
+        System.out.printf("%n%8s %22s %22s%n", "threads", "ConcurrentHashMap", "registry");
+        for (int threads : THREADS) {
+            System.out.printf("%8d", threads);
+            for (int registry = 0; registry < 2; ++registry) {
+                Limiter limiter = newLimiter(registry == 1, keys);
+                run(limiter, threads, keys, millis / 5);
+                System.out.printf(" %18.2f M/s", run(limiter, threads, keys, millis));
+            }
+            System.out.println();
+        }
+        printMemory(keys);
+    }
+
+    private static Limiter newLimiter(boolean registry, int keys) {
+        if (registry) {
+            KeyedTokenBucketRegistry r = new KeyedTokenBucketRegistry(CAPACITY, RATE, 1, TimeUnit.MINUTES, keys);
+            return r::tryAcquire;
+        }
+        ConcurrentHashMap<Long, TokenBucketLimiter> map = new ConcurrentHashMap<>();
+        return key -> map.computeIfAbsent(key, k -> new TokenBucketLimiter(CAPACITY, RATE)).tryAcquire(1);
+    }
+
+    /**
+     * @return 每微秒的调用次数
+     */
+    private static double run(Limiter limiter, int threadCount, int keys, long millis) throws InterruptedException {
+        LongAdder calls = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long c = 0;
+                while (System.nanoTime() < deadline) {
+                    limiter.tryAcquire(1 + random.nextInt(keys));
+                    ++c;
+                }
+                calls.add(c);
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        return calls.sum() / (double) TimeUnit.MILLISECONDS.toMicros(millis);
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private static void checkPerKeyLimit(int threadCount, int keys, long millis) throws InterruptedException {
+        KeyedTokenBucketRegistry registry = new KeyedTokenBucketRegistry(CAPACITY, RATE, 1, TimeUnit.MINUTES, keys);
+        AtomicLongArray granted = new AtomicLongArray(keys + 1);
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    int key = 1 + random.nextInt(keys);
+                    int n = 1 + random.nextInt(3);
+                    if (registry.tryAcquire(key, n)) {
+                        granted.addAndGet(key, n);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        long limit = (long) (CAPACITY + RATE * seconds * 1.01) + 1;
+        long total = 0;
+        for (int key = 1; key <= keys; ++key) {
+            check(granted.get(key) <= limit, "key " + key + " got " + granted.get(key) + " tokens, limit " + limit);
+            total += granted.get(key);
+        }
+        check(registry.size() == keys, "expected " + keys + " buckets but got " + registry.size());
+        System.out.println("per-key limit: " + keys + " keys, " + total + " tokens granted, at most " + limit + " per key");
+    }
+
+    /**
+     * 一直用新的key,老的key空闲一段时间之后补满了就应该被驱逐,桶的个数不会超过上限
+     */
+    private static void checkBoundedWithChurn(long millis) {
+        int maxBuckets = 10_000;
+        // 每秒补充1000个,10毫秒就补满了; 空闲20毫秒就可以驱逐
+        KeyedTokenBucketRegistry registry = new KeyedTokenBucketRegistry(CAPACITY, 1000, 20, TimeUnit.MILLISECONDS, maxBuckets);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long key = 1;
+        long rejected = 0;
+        int maxSize = 0;
+        while (System.nanoTime() < deadline) {
+            // 一批新key,每个用一次
+            for (int i = 0; i < 1000; ++i) {
+                if (!registry.tryAcquire(key++)) {
+                    rejected++;
+                }
+            }
+            maxSize = Math.max(maxSize, registry.size());
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        int evicted = registry.evictIdle();
+        System.out.println("churn: " + (key - 1) + " distinct keys, max " + maxSize + " live buckets (limit "
+                + maxBuckets + "), " + rejected + " overflow rejections, " + evicted + " evicted at the end");
+        check(maxSize <= maxBuckets, "registry grew to " + maxSize + " buckets");
+        check(rejected == registry.getOverflowRejections(), "overflow counter mismatch");
+    }
+
+    /**
+     * 被驱逐的key再来的时候桶已经满了: 应该被拒绝并计入overflow,而不是一直重试;
+     * 占着名额的桶空闲够久之后,这个key又能用
+     */
+    private static void checkRevivalWhenFull() throws InterruptedException {
+        KeyedTokenBucketRegistry registry = new KeyedTokenBucketRegistry(2, 1000, 1, TimeUnit.MILLISECONDS, 1);
+        check(registry.tryAcquire(1), "first acquire of key 1 rejected");
+        Thread.sleep(20);
+        check(registry.evictIdle() == 1, "key 1 was not evicted");
+        check(registry.tryAcquire(2), "key 2 rejected");
+        long begin = System.nanoTime();
+        boolean revived = registry.tryAcquire(1);
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+        // key 2刚用过,不能驱逐
+        check(!revived, "key 1 revived while the registry is full");
+        check(registry.getOverflowRejections() == 1, "revival rejection not counted");
+        check(registry.size() == 1, "registry has " + registry.size() + " buckets");
+        Thread.sleep(20);
+        check(registry.tryAcquire(1), "key 1 rejected after key 2 went idle");
+        System.out.println("revival: evicted key rejected in " + micros + " us while full, revived after the other key went idle");
+    }
+
+    private static void checkNoAllocation(int keys) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        KeyedTokenBucketRegistry registry = new KeyedTokenBucketRegistry(CAPACITY, RATE, 1, TimeUnit.MINUTES, keys);
+        String[] names = new String[1000];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = "tenant-" + i;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // 先把所有key都建好,再热身让JIT编译完
+        for (int round = 0; round < 3; ++round) {
+            for (int key = 1; key <= keys; ++key) {
+                registry.tryAcquire(key);
+            }
+            for (String name : names) {
+                registry.tryAcquire(name);
+            }
+        }
+        long id = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(id);
+        int calls = 2_000_000;
+        for (int i = 0; i < calls; ++i) {
+            registry.tryAcquire(1 + random.nextInt(keys));
+            registry.tryAcquire(names[i % names.length]);
+        }
+        long allocated = bean.getThreadAllocatedBytes(id) - before;
+        System.out.println("allocation: " + allocated + " bytes for " + 2 * calls + " acquires on existing keys");
+        // getThreadAllocatedBytes本身会分配一点点
+        check(allocated < 4096, "hot path allocated " + allocated + " bytes");
+    }
+
+    private static void printMemory(int keys) {
+        long registry = usedAfter(() -> {
+            KeyedTokenBucketRegistry r = new KeyedTokenBucketRegistry(CAPACITY, RATE, 1, TimeUnit.MINUTES, keys);
+            for (int key = 1; key <= keys; ++key) {
+                r.tryAcquire(key);
+            }
+            return r;
+        });
+        long map = usedAfter(() -> {
+            ConcurrentHashMap<Long, TokenBucketLimiter> m = new ConcurrentHashMap<>();
+            for (long key = 1; key <= keys; ++key) {
+                m.computeIfAbsent(key, k -> new TokenBucketLimiter(CAPACITY, RATE)).tryAcquire(1);
+            }
+            return m;
+        });
+        System.out.printf("memory per key: registry %.1f bytes, ConcurrentHashMap %.1f bytes%n",
+                registry / (double) keys, map / (double) keys);
+    }
+
+    interface Builder {
+        Object build();
+    }
+
+    private static Object keep;
+
+    /**
+     * @return 建好的对象大概占用了多少堆内存
+     */
+    private static long usedAfter(Builder builder) {
+        long before = usedHeap();
+        keep = builder.build();
+        long used = usedHeap() - before;
+        keep = null;
+        return used;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
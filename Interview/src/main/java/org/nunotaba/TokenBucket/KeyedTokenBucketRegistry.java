@@ -0,0 +1,374 @@
+package org.nunotaba.TokenBucket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// 按key(API key,租户)限流: 每个key一个令牌桶,所有桶的容量和速率相同,第一次用到的时候才创建(一开始是满的)
+//
+// 不是每个key一个对象: 分成64个段,每个段一张开放寻址的表,放在一个AtomicLongArray里
+//   每个槽位两个long: [打散之后的key, 和TokenBucketLimiter一样格式的桶状态(见PackedBucket)]
+//   每个桶16字节,再加上装载因子留的空位
+// 热路径(key已经存在): 算hash,线性探测,CAS状态,不加锁也不分配对象
+// 慢路径(插入新key,复活被驱逐的key,扩容,清理): 加段锁
+//
+// 驱逐: 空闲超过idleTimeout,并且已经补满了的桶,留着它和重新创建一个满桶没有区别,可以直接丢掉
+//   驱逐只是把状态CAS成EVICTED,key留在原地当墓碑,探测链不断; 同一个key再来的时候就地复活
+//   墓碑多了或者表满了就重建一张表: 每个槽位复制过去之后把旧表里的状态CAS成MOVED,
+//   正在旧表上CAS的线程会失败,然后去读新表,已经扣掉的令牌不会丢
+// 内存有上限: 最多同时保留maxBuckets个桶; 满了先驱逐一遍(限制频率,不会每个新key都扫一遍全表),
+// 还放不下的话,新key的请求直接被拒绝(fail closed),见getOverflowRejections
+//
+// key: long的key用一个双射打散,所以0这个值保留不能用; 字符串key用64位hash,不同的字符串撞上同一个hash的概率可以忽略,
+// 撞上了就共用一个桶. 同一个registry里最好只用一种key
+public class KeyedTokenBucketRegistry {
+
+    // 状态的低24位是令牌数,最大的合法值是0xFFFF00,这两个值不会和真实的状态冲突
+    static final long EVICTED = -1L;
+    static final long MOVED = -2L;
+    // 空槽位的key
+    private static final long EMPTY = 0L;
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int INITIAL_SLOTS = 16;
+
+    private final PackedBucket bucket;
+    private final long idleTicks;
+    private final int maxSlotsPerSegment;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxBuckets;
+    // 所有段加起来没有被驱逐的桶,只在慢路径上修改
+    private final AtomicInteger liveBuckets = new AtomicInteger();
+    // 上一次因为满了而扫描全部段的时间,两次扫描至少隔sweepIntervalTicks
+    private final AtomicLong lastFullSweep;
+    private final long sweepIntervalTicks;
+    private final AtomicLong overflowRejections = new AtomicLong();
+
+    /**
+     * @param capacity 每个桶的容量
+     * @param tokensPerSecond 每个桶每秒补充多少令牌
+     * @param idleTimeout 空闲多久(并且已经补满)的桶可以被驱逐
+     * @param maxBuckets 最多同时保留多少个桶
+     */
+    public KeyedTokenBucketRegistry(int capacity, double tokensPerSecond, long idleTimeout, TimeUnit unit, int maxBuckets) {
+        if (maxBuckets <= 0) {
+            throw new IllegalArgumentException("maxBuckets: " + maxBuckets);
+        }
+        this.bucket = new PackedBucket(capacity, tokensPerSecond);
+        this.maxBuckets = maxBuckets;
+        this.idleTicks = bucket.ticks(unit.toNanos(idleTimeout));
+        this.sweepIntervalTicks = Math.max(bucket.ticks(TimeUnit.MILLISECONDS.toNanos(1)), idleTicks / 4);
+        // 时间只比较40位的差值,初值要是一个真实的时刻: 一开始就满了也能马上扫一遍
+        this.lastFullSweep = new AtomicLong(bucket.nowTicks() - sweepIntervalTicks);
+        // 每个段最多装到3/4; key在段之间分布不均匀,每个段按平均值的两倍留余量,再取2的幂
+        int perSegment = (int) Math.min(1 << 30, ((long) maxBuckets + SEGMENTS - 1) / SEGMENTS * 2 * 4 / 3 + 1);
+        this.maxSlotsPerSegment = Math.max(INITIAL_SLOTS, Integer.highestOneBit(perSegment - 1) << 1);
+        for (int i = 0; i < SEGMENTS; ++i) {
+            segments[i] = new Segment(Math.min(INITIAL_SLOTS, maxSlotsPerSegment));
+        }
+    }
+
+    /**
+     * @param key 不能是0
+     */
+    public boolean tryAcquire(long key, int n) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("key 0 is reserved");
+        }
+        return acquire(mix(key), bucket.need(n));
+    }
+
+    public boolean tryAcquire(CharSequence key, int n) {
+        return acquire(hash(key), bucket.need(n));
+    }
+
+    public boolean tryAcquire(long key) {
+        return tryAcquire(key, 1);
+    }
+
+    public boolean tryAcquire(CharSequence key) {
+        return tryAcquire(key, 1);
+    }
+
+    private boolean acquire(long hash, long need) {
+        Segment segment = segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+        long now = bucket.nowTicks();
+        while (true) {
+            AtomicLongArray table = segment.table;
+            int slot = find(table, hash);
+            if (slot < 0) {
+                // 第一次见到这个key
+                if (liveBuckets.get() >= maxBuckets) {
+                    sweepWhenFull(now);
+                }
+                if (!segment.insert(hash, now)) {
+                    overflowRejections.incrementAndGet();
+                    return false;
+                }
+                continue;
+            }
+            int index = (slot << 1) + 1;
+            while (true) {
+                long s = table.get(index);
+                if (s == MOVED) {
+                    // 正在重建或者已经重建完了,去读新表
+                    if (segment.table == table) {
+                        Thread.yield();
+                    }
+                    break;
+                }
+                if (s == EVICTED) {
+                    // 复活被驱逐的key也要占一个名额,和新key一样: 满了先驱逐一遍,还放不下就拒绝
+                    if (liveBuckets.get() >= maxBuckets) {
+                        sweepWhenFull(now);
+                    }
+                    if (!segment.insert(hash, now)) {
+                        overflowRejections.incrementAndGet();
+                        return false;
+                    }
+                    break;
+                }
+                long refilled = bucket.refill(s, now);
+                if (PackedBucket.tokens(refilled) < need) {
+                    return false;
+                }
+                if (table.compareAndSet(index, s, refilled - need)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 桶满了: 扫一遍所有段驱逐空闲的桶,sweepIntervalTicks之内只扫一次
+     */
+    private void sweepWhenFull(long now) {
+        long last = lastFullSweep.get();
+        if (PackedBucket.elapsed(last, now) >= sweepIntervalTicks && lastFullSweep.compareAndSet(last, now)) {
+            evictIdle();
+        }
+    }
+
+    /**
+     * @return 当前保留的桶的个数(不包括被驱逐的)
+     */
+    public int size() {
+        return liveBuckets.get();
+    }
+
+    /**
+     * @return 因为桶的个数达到上限,新key被直接拒绝的次数
+     */
+    public long getOverflowRejections() {
+        return overflowRejections.get();
+    }
+
+    /**
+     * 扫描所有段,驱逐空闲并且已经补满的桶; 平时插入新key发现表快满了也会自动做,这里给想定期清理的调用方用
+     * @return 驱逐了多少个
+     */
+    public int evictIdle() {
+        long now = bucket.nowTicks();
+        int evicted = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                evicted += segment.sweep(now);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return 槽位的下标,没有这个key时返回-1
+     */
+    private static int find(AtomicLongArray table, long hash) {
+        int mask = (table.length() >> 1) - 1;
+        int slot = (int) hash & mask;
+        for (int n = 0; n <= mask; ++n) {
+            long k = table.get(slot << 1);
+            if (k == hash) {
+                return slot;
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean evictable(long s, long now) {
+        return s != EVICTED && s != MOVED
+                && PackedBucket.elapsed(PackedBucket.time(s), now) >= idleTicks
+                && PackedBucket.tokens(bucket.refill(s, now)) >= bucket.capacityUnits;
+    }
+
+    private final class Segment {
+        volatile AtomicLongArray table;
+        // 下面两个只在持有段锁的时候读写
+        // 没有被驱逐的桶
+        int live;
+        // 墓碑(被驱逐了但是key还占着槽位)
+        int tombstones;
+
+        Segment(int slots) {
+            table = new AtomicLongArray(slots << 1);
+        }
+
+        /**
+         * 插入一个满的桶,或者复活被驱逐的桶; 别的线程已经插入了就什么都不做
+         * @return false表示桶的个数到了上限,放不下
+         */
+        synchronized boolean insert(long hash, long now) {
+            AtomicLongArray t = table;
+            int slot = find(t, hash);
+            if (slot >= 0) {
+                int index = (slot << 1) + 1;
+                if (t.get(index) == EVICTED) {
+                    if (!reserve()) {
+                        return false;
+                    }
+                    // 只有持有段锁的线程会修改EVICTED的槽位,直接写
+                    t.set(index, bucket.state(now, bucket.capacity));
+                    --tombstones;
+                    ++live;
+                }
+                return true;
+            }
+            if (!reserve()) {
+                return false;
+            }
+            int slots = t.length() >> 1;
+            if ((live + tombstones + 1) * 4 > slots * 3) {
+                sweep(now);
+                // 清理之后还超过一半就扩容,否则原样大小重建,去掉墓碑
+                int newSlots = (live + 1) * 2 > slots ? slots << 1 : slots;
+                if (newSlots > maxSlotsPerSegment) {
+                    if ((live + 1) * 4 > slots * 3) {
+                        // 这个段分到的key太多了,把占的名额还回去
+                        liveBuckets.decrementAndGet();
+                        return false;
+                    }
+                    newSlots = slots;
+                }
+                t = rebuild(newSlots);
+            }
+            int mask = (t.length() >> 1) - 1;
+            slot = (int) hash & mask;
+            while (t.get(slot << 1) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            // 先写状态再写key,无锁的读线程看到key的时候状态一定已经是好的
+            t.set((slot << 1) + 1, bucket.state(now, bucket.capacity));
+            t.set(slot << 1, hash);
+            ++live;
+            return true;
+        }
+
+        /**
+         * 占一个桶的名额
+         * @return false表示已经有maxBuckets个桶了
+         */
+        private boolean reserve() {
+            int n;
+            do {
+                n = liveBuckets.get();
+                if (n >= maxBuckets) {
+                    return false;
+                }
+            } while (!liveBuckets.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        /**
+         * 持有段锁的时候调用
+         * @return 驱逐了多少个
+         */
+        int sweep(long now) {
+            AtomicLongArray t = table;
+            int evicted = 0;
+            for (int slot = 0; slot < t.length() >> 1; ++slot) {
+                if (t.get(slot << 1) == EMPTY) {
+                    continue;
+                }
+                int index = (slot << 1) + 1;
+                long s = t.get(index);
+                // CAS失败说明刚刚有人在用,不驱逐
+                if (evictable(s, now) && t.compareAndSet(index, s, EVICTED)) {
+                    ++evicted;
+                }
+            }
+            live -= evicted;
+            tombstones += evicted;
+            liveBuckets.addAndGet(-evicted);
+            return evicted;
+        }
+
+        /**
+         * 持有段锁的时候调用: 把活着的桶搬到一张新表里,丢掉墓碑
+         */
+        AtomicLongArray rebuild(int slots) {
+            AtomicLongArray old = table;
+            AtomicLongArray t = new AtomicLongArray(slots << 1);
+            int mask = slots - 1;
+            int moved = 0;
+            for (int slot = 0; slot < old.length() >> 1; ++slot) {
+                long hash = old.get(slot << 1);
+                if (hash == EMPTY) {
+                    continue;
+                }
+                int oldIndex = (slot << 1) + 1;
+                long s = old.get(oldIndex);
+                if (s == EVICTED) {
+                    continue;
+                }
+                int target = (int) hash & mask;
+                while (t.get(target << 1) != EMPTY) {
+                    target = (target + 1) & mask;
+                }
+                int newIndex = (target << 1) + 1;
+                t.set(target << 1, hash);
+                // 复制过去之后把旧的状态换成MOVED,期间有人扣了令牌就重新复制一遍
+                while (true) {
+                    t.set(newIndex, s);
+                    if (old.compareAndSet(oldIndex, s, MOVED)) {
+                        break;
+                    }
+                    s = old.get(oldIndex);
+                }
+                ++moved;
+            }
+            live = moved;
+            tombstones = 0;
+            table = t;
+            return t;
+        }
+    }
+
+    /**
+     * murmur3的fmix64,是一个双射: 不同的key打散之后还是不同的,0还是0
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * 字符串的64位hash(FNV-1a再打散),不分配对象; 0留给空槽位
+     */
+    static long hash(CharSequence key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = mix(h);
+        return h == EMPTY ? 1 : h;
+    }
+}
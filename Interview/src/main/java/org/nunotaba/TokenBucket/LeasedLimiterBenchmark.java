@@ -0,0 +1,194 @@
+package org.nunotaba.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// LeasedRateLimiter和NestedRateLimiter的检查和吞吐量:
+//   1.用ManualClock: 租约过期之后没用掉的令牌回到共享桶,租出去的令牌不超过maxOutstanding,结束的线程的租约会被回收
+//   2.租户桶挂在全局桶下面: 每个租户不超过自己的速率,所有租户加起来不超过全局的速率
+//   3.1到32个线程,直接用共享的令牌桶和分批租比吞吐量,以及每1000次调用访问了几次共享桶
+//     分两种情况: 不限流(速率远高于调用速率)和限流(大部分调用被拒绝); 都检查放行的不超过 容量 + 速率 * 时间 + maxOutstanding
+// 没有用JMH(这个模块不依赖任何第三方库),先热身再用System.nanoTime计时
+//
+// 用法: LeasedLimiterBenchmark [每组测量的毫秒数,默认500] [每次租多少个,默认64]
+public class LeasedLimiterBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    private static final int CAPACITY = 4096;
+    private static final int MAX_OUTSTANDING = 4096;
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+        int leaseSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors() + ", lease = " + leaseSize
+                + ", max outstanding = " + MAX_OUTSTANDING);
+
+        checkLeases();
+        checkNested(millis);
+
+        double[] rates = {1e9, 1e6};
+        for (double rate : rates) {
+            System.out.printf("%nrate %.0f/s%n%8s %28s %28s%n", rate, "threads", "shared bucket (calls/shared)",
+                    "leased (calls/shared)");
+            for (int threads : THREADS) {
+                System.out.printf("%8d", threads);
+                for (int leased = 0; leased < 2; ++leased) {
+                    run(leased == 1 ? leaseSize : 0, rate, threads, millis / 5);
+                    double[] result = run(leased == 1 ? leaseSize : 0, rate, threads, millis);
+                    System.out.printf(" %14.2f M/s %7.1f/1k", result[0], result[1]);
+                }
+                System.out.println();
+            }
+        }
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private static void checkLeases() throws InterruptedException {
+        ManualClock clock = new ManualClock();
+        // 几乎不补充,看得清令牌去了哪里
+        TokenBucketLimiter global = new TokenBucketLimiter(100, 0.001, clock);
+        LeasedRateLimiter leased = new LeasedRateLimiter(global, 10, 10, TimeUnit.MILLISECONDS, 50, clock);
+
+        check(leased.tryAcquire(1), "first acquire should lease a batch");
+        check(global.availableTokens() == 90 && leased.getOutstanding() == 10,
+                "lease should take 10 tokens, global has " + global.availableTokens());
+        for (int i = 0; i < 9; ++i) {
+            check(leased.tryAcquire(1), "lease should serve 10 acquires");
+        }
+        check(leased.getParentAcquires() == 1, "acquires inside the lease touched the global bucket");
+
+        // 过期之后同一个线程再来: 剩下的还回去(这里剩0个),租新的一批
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        check(leased.tryAcquire(1), "acquire after expiry should lease again");
+        check(global.availableTokens() == 80, "global should have 80 tokens, has " + global.availableTokens());
+
+        // 8个线程各拿1个: 最多只能再租4批(outstanding到50),剩下的直接向全局桶要1个
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            Thread t = new Thread(() -> check(leased.tryAcquire(1), "worker should get a token"));
+            threads.add(t);
+            t.start();
+            t.join();
+        }
+        check(leased.getOutstanding() <= 50, "outstanding " + leased.getOutstanding() + " exceeds the bound");
+        check(global.availableTokens() == 80 - 40 - 4, "global should have 36 tokens, has " + global.availableTokens());
+
+        // 线程都结束了,它们的租约没有过期也要回收; 主线程的租约过期之后也回收
+        long returned = leased.reclaimExpired();
+        check(returned == 4 * 9, "dead threads should return 36 tokens, returned " + returned);
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        returned = leased.reclaimExpired();
+        check(returned == 9 && leased.getOutstanding() == 0, "expired lease should return 9 tokens, returned " + returned);
+        // 一共放行了 10 + 1 + 8 = 19 个
+        check(global.availableTokens() == 100 - 19, "global should have 81 tokens, has " + global.availableTokens());
+        System.out.println("leases: expiry returns unused tokens, outstanding bounded, dead threads reclaimed");
+    }
+
+    /**
+     * 4个租户各自每秒2万个,挂在每秒5万个的全局桶下面,每个租户2个线程拼命调用
+     */
+    private static void checkNested(long millis) throws InterruptedException {
+        int tenants = 4;
+        double tenantRate = 20_000;
+        double globalRate = 50_000;
+        // 容量够20毫秒的量: 线程比CPU多的时候,一个时间片里全局桶不会因为装满了而丢令牌
+        int capacity = 1000;
+        TokenBucketLimiter global = new TokenBucketLimiter(capacity, globalRate);
+        NestedRateLimiter[] limiters = new NestedRateLimiter[tenants];
+        LongAdder[] granted = new LongAdder[tenants];
+        for (int i = 0; i < tenants; ++i) {
+            limiters[i] = new NestedRateLimiter(new TokenBucketLimiter(capacity, tenantRate), global);
+            granted[i] = new LongAdder();
+        }
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < tenants * 2; ++i) {
+            int tenant = i % tenants;
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    if (limiters[tenant].tryAcquire(1)) {
+                        granted[tenant].increment();
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        long total = 0;
+        StringBuilder perTenant = new StringBuilder();
+        for (int i = 0; i < tenants; ++i) {
+            long g = granted[i].sum();
+            check(g <= capacity + tenantRate * seconds * 1.01 + 1, "tenant " + i + " got " + g + " tokens");
+            total += g;
+            perTenant.append(' ').append(g);
+        }
+        check(total <= capacity + globalRate * seconds * 1.01 + 1, "tenants got " + total + " tokens in total");
+        // 全局是瓶颈,应该基本用满
+        check(total >= globalRate * seconds * 0.8, "tenants only got " + total + " tokens in total");
+        System.out.printf("nested: %d tenants got%s tokens, total %d (global limit %.0f)%n",
+                tenants, perTenant, total, capacity + globalRate * seconds);
+    }
+
+    /**
+     * @param leaseSize 0表示直接用共享的令牌桶
+     * @return {每微秒的调用次数, 每1000次调用访问了几次共享桶}
+     */
+    private static double[] run(int leaseSize, double rate, int threadCount, long millis) throws InterruptedException {
+        TokenBucketLimiter global = new TokenBucketLimiter(CAPACITY, rate);
+        LeasedRateLimiter leased = leaseSize > 0
+                ? new LeasedRateLimiter(global, leaseSize, 1, TimeUnit.MILLISECONDS, MAX_OUTSTANDING) : null;
+        RateLimiter limiter = leased != null ? leased : global;
+        LongAdder calls = new LongAdder();
+        LongAdder tokens = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] begin = new long[1];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long deadline = begin[0] + TimeUnit.MILLISECONDS.toNanos(millis);
+                long c = 0;
+                long granted = 0;
+                while (System.nanoTime() < deadline) {
+                    int n = 1 + random.nextInt(4);
+                    if (limiter.tryAcquire(n)) {
+                        granted += n;
+                    }
+                    ++c;
+                }
+                calls.add(c);
+                tokens.add(granted);
+            });
+            threads.add(t);
+            t.start();
+        }
+        begin[0] = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - begin[0]) / 1e9;
+        double limit = CAPACITY + rate * seconds * 1.01 + MAX_OUTSTANDING;
+        check(tokens.sum() <= limit, "handed out " + tokens.sum() + " tokens, more than " + (long) limit);
+        double shared = leased != null ? leased.getParentAcquires() : calls.sum();
+        return new double[]{calls.sum() / (double) TimeUnit.MILLISECONDS.toMicros(millis), shared * 1000 / calls.sum()};
+    }
+}
@@ -0,0 +1,209 @@
+package org.nunotaba.TokenBucket;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+// 分批租令牌: 每个线程一次从共享的令牌桶里租leaseSize个,之后的tryAcquire只改自己的租约,不碰共享的状态
+// 很多线程同时限流的时候,共享桶上的CAS大约减少到原来的1/leaseSize
+//
+// 租约的有效期是leaseTime,过期之后没用掉的令牌还回共享桶:
+//   线程自己下一次调用时发现过期就还; 线程不再调用或者已经结束时,别的线程租新约的时候顺手回收(限制频率),也可以调用reclaimExpired
+// 误差: 租出去还没用掉的令牌最多maxOutstanding个,超过了就不再租,直接向共享桶一个一个要
+//   所以任意长度为d的时间段里放行的不超过 容量 + 速率 * d + maxOutstanding
+//   另外租约里的令牌只给这个线程用,别的线程可能被拒绝,哪怕总数还没到上限; leaseTime越短越公平
+// Java拿不到当前线程在哪个核上,所以按线程租,不是按核
+public class LeasedRateLimiter implements RateLimiter {
+
+    private static final AtomicLongFieldUpdater<Lease> REMAINING =
+            AtomicLongFieldUpdater.newUpdater(Lease.class, "remaining");
+    private static final AtomicLongFieldUpdater<Lease> GRANTED =
+            AtomicLongFieldUpdater.newUpdater(Lease.class, "granted");
+
+    private final TokenBucketLimiter parent;
+    private final int leaseSize;
+    private final long leaseNanos;
+    private final int maxOutstanding;
+    private final LimiterClock clock;
+
+    // 所有租约里租出去的令牌之和(包括已经用掉的),租约结束的时候减掉
+    private final AtomicLong outstanding = new AtomicLong();
+    private final ConcurrentLinkedQueue<Lease> leases = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Lease> lease = ThreadLocal.withInitial(this::newLease);
+    private final AtomicLong lastReclaim;
+    // 访问共享桶的次数,看租约省掉了多少共享的写
+    private final LongAdder parentAcquires = new LongAdder();
+
+    static final class Lease {
+        final Thread owner;
+        // 过期的时刻,之前的租约结束之后才会改
+        volatile long expiresAt;
+        // 还剩多少令牌,主人用CAS扣,回收的线程用getAndSet(0)拿走
+        volatile long remaining;
+        // 这个租约一共租了多少,结束租约的线程把它换成0,保证outstanding只减一次
+        volatile long granted;
+
+        Lease(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    public LeasedRateLimiter(TokenBucketLimiter parent, int leaseSize, long leaseTime, TimeUnit unit, int maxOutstanding) {
+        this(parent, leaseSize, leaseTime, unit, maxOutstanding, LimiterClock.SYSTEM);
+    }
+
+    /**
+     * @param parent 共享的令牌桶
+     * @param leaseSize 每次租多少个,不超过parent的容量
+     * @param leaseTime 租约的有效期
+     * @param maxOutstanding 租出去还没用掉的令牌最多多少个,也就是允许的误差
+     * @param clock 和parent用同一个时钟
+     */
+    public LeasedRateLimiter(TokenBucketLimiter parent, int leaseSize, long leaseTime, TimeUnit unit, int maxOutstanding,
+                             LimiterClock clock) {
+        if (leaseSize <= 0 || leaseSize > parent.getCapacity()) {
+            throw new IllegalArgumentException("leaseSize must be in [1, " + parent.getCapacity() + "]: " + leaseSize);
+        }
+        if (leaseTime <= 0) {
+            throw new IllegalArgumentException("leaseTime: " + leaseTime);
+        }
+        if (maxOutstanding < 0) {
+            throw new IllegalArgumentException("maxOutstanding: " + maxOutstanding);
+        }
+        this.parent = parent;
+        this.leaseSize = leaseSize;
+        this.leaseNanos = unit.toNanos(leaseTime);
+        this.maxOutstanding = maxOutstanding;
+        this.clock = clock;
+        this.lastReclaim = new AtomicLong(clock.nanoTime());
+    }
+
+    private Lease newLease() {
+        Lease l = new Lease(Thread.currentThread());
+        leases.add(l);
+        return l;
+    }
+
+    @Override
+    public boolean tryAcquire(int n) {
+        if (n <= 0 || n > parent.getCapacity()) {
+            throw new IllegalArgumentException("permits must be in [1, " + parent.getCapacity() + "]: " + n);
+        }
+        Lease l = lease.get();
+        long now = clock.nanoTime();
+        if (now - l.expiresAt < 0) {
+            long r = l.remaining;
+            // 只有回收的线程会和主人抢,CAS失败说明租约被收走了,走慢路径
+            if (r >= n && REMAINING.compareAndSet(l, r, r - n)) {
+                return true;
+            }
+        }
+        return renew(l, n, now);
+    }
+
+    /**
+     * 租约过期或者不够用了: 先把剩下的还回去,再租一批
+     * 共享桶里不够一批就有多少租多少(至少这一次的n个); 误差的上限不够一批就只要这一次的n个,不租
+     * 被限流的时候大部分调用都走到这里,只访问一次共享桶,而且拒绝的时候只读不写
+     */
+    private boolean renew(Lease l, int n, long now) {
+        end(l);
+        reclaimIfDue(now);
+        int batch = Math.max(leaseSize, n);
+        if (outstanding.get() + batch > maxOutstanding) {
+            batch = n;
+        }
+        parentAcquires.increment();
+        int got = parent.tryAcquireUpTo(n, batch);
+        if (got == 0) {
+            return false;
+        }
+        if (got > n) {
+            if (outstanding.addAndGet(got) <= maxOutstanding) {
+                // 先写过期时间和余额,最后写granted: 回收的线程看到granted不是0的时候,前两个一定是新的
+                l.expiresAt = now + leaseNanos;
+                l.remaining = got - n;
+                l.granted = got;
+                return true;
+            }
+            // 别的线程同时也租了,超过了误差的上限,多拿的退回去
+            outstanding.addAndGet(-got);
+            parent.release(got - n);
+        }
+        return true;
+    }
+
+    /**
+     * 结束一个租约,没用掉的令牌还回共享桶; 主人和回收的线程都可能调用,只有一个会真的结束它
+     * @return 还回去的令牌数
+     */
+    private long end(Lease l) {
+        // 被限流的时候租约大多已经结束了,先读一下,不用每次都写
+        if (l.granted == 0) {
+            return 0;
+        }
+        long g = GRANTED.getAndSet(l, 0);
+        if (g == 0) {
+            return 0;
+        }
+        long r = REMAINING.getAndSet(l, 0);
+        if (r > 0) {
+            parent.release((int) r);
+        }
+        outstanding.addAndGet(-g);
+        return r;
+    }
+
+    private void reclaimIfDue(long now) {
+        long last = lastReclaim.get();
+        if (now - last >= leaseNanos && lastReclaim.compareAndSet(last, now)) {
+            reclaim(now);
+        }
+    }
+
+    /**
+     * 回收所有过期的租约,以及已经结束的线程的租约
+     * @return 还回共享桶的令牌数
+     */
+    public long reclaimExpired() {
+        return reclaim(clock.nanoTime());
+    }
+
+    private long reclaim(long now) {
+        long returned = 0;
+        for (Lease l : leases) {
+            boolean dead = !l.owner.isAlive();
+            if (dead || (l.granted != 0 && now - l.expiresAt >= 0)) {
+                returned += end(l);
+            }
+            if (dead) {
+                leases.remove(l);
+            }
+        }
+        return returned;
+    }
+
+    /**
+     * @return 租出去还没结束的令牌数(包括租约里已经用掉的),不超过maxOutstanding
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return 访问共享桶的次数
+     */
+    public long getParentAcquires() {
+        return parentAcquires.sum();
+    }
+
+    public int getLeaseSize() {
+        return leaseSize;
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+}
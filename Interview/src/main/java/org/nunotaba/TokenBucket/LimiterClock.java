@@ -0,0 +1,12 @@
+package org.nunotaba.TokenBucket;
+
+/**
+ * 限流器用的时钟,单位纳秒,只用差值(和System.nanoTime一样,原点没有意义)
+ * 测试和benchmark里换成ManualClock,结果就是确定的
+ */
+public interface LimiterClock {
+
+    LimiterClock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+}
@@ -0,0 +1,24 @@
+package org.nunotaba.TokenBucket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 手动拨的时钟: 不调用advance时间就不走,多个线程可以同时读
+ */
+public class ManualClock implements LimiterClock {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Override
+    public long nanoTime() {
+        return now.get();
+    }
+
+    public void advance(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration: " + duration);
+        }
+        now.addAndGet(unit.toNanos(duration));
+    }
+}
@@ -0,0 +1,40 @@
+package org.nunotaba.TokenBucket;
+
+// 嵌套限流: 每个租户一个自己的令牌桶,挂在一个上一级的限流器(全局的桶,或者LeasedRateLimiter)下面
+// 两级都拿到才放行: 先扣租户自己的桶,再向上一级要; 上一级拒绝了就把租户桶里扣掉的还回去
+// 所以一个租户用不满全局的额度,也不会因为被全局拒绝而白白耗掉自己的额度
+// 可以一层套一层: parent本身也可以是NestedRateLimiter
+public class NestedRateLimiter implements RateLimiter {
+
+    private final TokenBucketLimiter own;
+    private final RateLimiter parent;
+
+    /**
+     * @param own 这个租户自己的桶
+     * @param parent 上一级的限流器,很多租户共用
+     */
+    public NestedRateLimiter(TokenBucketLimiter own, RateLimiter parent) {
+        this.own = own;
+        this.parent = parent;
+    }
+
+    @Override
+    public boolean tryAcquire(int n) {
+        if (!own.tryAcquire(n)) {
+            return false;
+        }
+        if (parent.tryAcquire(n)) {
+            return true;
+        }
+        own.release(n);
+        return false;
+    }
+
+    public TokenBucketLimiter getOwn() {
+        return own;
+    }
+
+    public RateLimiter getParent() {
+        return parent;
+    }
+}
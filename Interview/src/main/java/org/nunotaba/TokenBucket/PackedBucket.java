@@ -0,0 +1,132 @@
+package org.nunotaba.TokenBucket;
+
+// 令牌桶的状态打包在一个long里,TokenBucketLimiter和KeyedTokenBucketRegistry共用这里的算法
+//   高40位: 上一次refill的时间,单位是1024纳秒(约1微秒)的tick,相对于origin,只用差值所以溢出也没关系
+//   低24位: 当前的令牌数,定点数,低8位是小数部分,所以容量最多65535
+// 这里只有不可变的配置和纯函数,状态本身放在调用方的AtomicLong/AtomicLongArray里
+final class PackedBucket {
+
+    static final int TICK_SHIFT = 10;
+    static final int TOKEN_BITS = 24;
+    static final int FRACTION_BITS = 8;
+    static final long ONE_TOKEN = 1L << FRACTION_BITS;
+    static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    static final long TIME_MASK = (1L << (64 - TOKEN_BITS)) - 1;
+    static final int MAX_CAPACITY = (int) (TOKEN_MASK >> FRACTION_BITS);
+    // 允许的时钟先后的偏差,2^31个tick,约37分钟
+    static final long MAX_SKEW_TICKS = 1L << 31;
+
+    final int capacity;
+    final long capacityUnits;
+    final double tokensPerSecond;
+    // 每个tick补充多少个定点单位,以及它的倒数
+    private final double unitsPerTick;
+    private final double ticksPerUnit;
+    private final LimiterClock clock;
+    // 时间的原点,tick都是相对它计算的
+    private final long origin;
+
+    PackedBucket(int capacity, double tokensPerSecond) {
+        this(capacity, tokensPerSecond, LimiterClock.SYSTEM);
+    }
+
+    PackedBucket(int capacity, double tokensPerSecond, LimiterClock clock) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be in [1, " + MAX_CAPACITY + "]: " + capacity);
+        }
+        if (!(tokensPerSecond > 0)) {
+            throw new IllegalArgumentException("tokensPerSecond: " + tokensPerSecond);
+        }
+        this.capacity = capacity;
+        this.capacityUnits = (long) capacity << FRACTION_BITS;
+        this.tokensPerSecond = tokensPerSecond;
+        this.unitsPerTick = tokensPerSecond * ONE_TOKEN * (1L << TICK_SHIFT) / 1e9;
+        this.ticksPerUnit = 1 / unitsPerTick;
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+    }
+
+    long nowTicks() {
+        return (clock.nanoTime() - origin) >>> TICK_SHIFT;
+    }
+
+    long ticks(long nanos) {
+        return nanos >>> TICK_SHIFT;
+    }
+
+    /**
+     * @return 在now这个时刻有n个令牌的状态
+     */
+    long state(long now, int n) {
+        return pack(now, (long) n << FRACTION_BITS);
+    }
+
+    /**
+     * 检查permits是否合法
+     * @return n个令牌对应的定点单位
+     */
+    long need(int n) {
+        if (n <= 0 || n > capacity) {
+            throw new IllegalArgumentException("permits must be in [1, " + capacity + "]: " + n);
+        }
+        return (long) n << FRACTION_BITS;
+    }
+
+    /**
+     * 懒加载的refill: 算出到now为止应该有多少令牌,返回新的state,不修改任何东西
+     * 不足一个定点单位的时间留到下一次,补充速率低的时候也不会丢令牌
+     */
+    long refill(long s, long now) {
+        long last = time(s);
+        long tokens = tokens(s);
+        long elapsed = elapsed(last, now);
+        if (elapsed <= 0) {
+            return s;
+        }
+        if (tokens >= capacityUnits) {
+            return pack(now, capacityUnits);
+        }
+        long add = (long) (elapsed * unitsPerTick);
+        if (tokens + add >= capacityUnits) {
+            return pack(now, capacityUnits);
+        }
+        if (add == 0) {
+            return s;
+        }
+        // 不足一个单位的那部分时间留给下一次,向下取整: 宁可少补一点,也不能多发
+        long carry = (long) ((elapsed * unitsPerTick - add) * ticksPerUnit);
+        return pack(now - carry, tokens + add);
+    }
+
+    /**
+     * @param s 已经refill到现在的状态,令牌不够need
+     * @return 还要等多少纳秒才能攒够need个定点单位,向上取整再多加一个tick,醒来的时候一定够了(除非被别人拿走)
+     */
+    long nanosUntil(long s, long need) {
+        long deficit = need - tokens(s);
+        long ticks = (long) Math.ceil(deficit * ticksPerUnit) + 1;
+        return ticks << TICK_SHIFT;
+    }
+
+    /**
+     * 40位的差值做符号扩展: 别的线程用更晚的now更新过state时差值是负的,调用方当作没有经过时间
+     * 这种负数很小(两个线程读时钟的先后); 比MAX_SKEW_TICKS还负,只能是空闲了6.5天以上,40位的差值回绕了,按回绕之后的正数算
+     * 所以空闲时间在[0, 2^40 - MAX_SKEW_TICKS)个tick(约13天)之内都是准的; 更久的只在13天的整数倍附近的半小时里会少补
+     */
+    static long elapsed(long last, long now) {
+        long d = ((now - last) << TOKEN_BITS) >> TOKEN_BITS;
+        return d < -MAX_SKEW_TICKS ? d + (1L << (64 - TOKEN_BITS)) : d;
+    }
+
+    static long pack(long ticks, long tokens) {
+        return ((ticks & TIME_MASK) << TOKEN_BITS) | tokens;
+    }
+
+    static long time(long s) {
+        return s >>> TOKEN_BITS;
+    }
+
+    static long tokens(long s) {
+        return s & TOKEN_MASK;
+    }
+}
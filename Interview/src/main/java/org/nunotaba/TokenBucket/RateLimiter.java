@@ -0,0 +1,18 @@
+package org.nunotaba.TokenBucket;
+
+/**
+ * 限流器的公共接口: 令牌桶(TokenBucketLimiter),漏桶(GcraLimiter),滑动窗口日志(SlidingWindowLogLimiter)
+ * 都是非阻塞的,拿不到马上返回false
+ */
+public interface RateLimiter {
+
+    /**
+     * 一次拿n个许可(带权重的请求),要么全拿到,要么一个都不拿
+     * @return 是否拿到了
+     */
+    boolean tryAcquire(int n);
+
+    default boolean tryAcquireToken() {
+        return tryAcquire(1);
+    }
+}
@@ -0,0 +1,233 @@
+package org.nunotaba.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 几种限流算法的比较,限制都是每秒100个:
+//   令牌桶(TokenBucketLimiter,容量100),漏桶(GcraLimiter,容量100),滑动窗口日志(SlidingWindowLogLimiter,每秒100个)
+//
+// 1.准确性: 用ManualClock模拟60秒有突发的流量(平时每秒50个左右,时不时一下子来几百个),结果是确定的
+//   统计放行了多少,任意1秒/100毫秒里最多放行了多少,并检查:
+//     令牌桶和漏桶: 任意长度为d的时间段里放行的不超过 容量 + 速率 * d
+//     滑动窗口: 任意1秒里不超过100
+//     漏桶和令牌桶对每个请求的判断基本一样: 令牌桶的时间精度是1024纳秒,补充的时刻会比整毫秒晚一点点,
+//     正好卡在整毫秒上的请求可能不一样,不超过1%
+//   令牌桶空闲很多天(时间戳的40位差值会回绕)之后还能补满
+// 2.吞吐量: 真实时钟,1到32个线程不停地tryAcquire(1到4个许可),速率设成每秒100万,大部分请求会被限流
+// 没有用JMH(这个模块不依赖任何第三方库),先热身再用System.nanoTime计时
+//
+// 用法: RateLimiterBenchmark [每组测量的毫秒数,默认500] [随机种子,默认42]
+public class RateLimiterBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    private static final String[] NAMES = {"token bucket", "GCRA", "sliding log"};
+
+    private static final int LIMIT = 100;
+    private static final int SIMULATED_MILLIS = 60_000;
+
+    interface Factory {
+        RateLimiter create(int capacity, double perSecond, LimiterClock clock);
+    }
+
+    private static final Factory[] FACTORIES = {
+            (capacity, perSecond, clock) -> new TokenBucketLimiter(capacity, perSecond, clock),
+            (capacity, perSecond, clock) -> new GcraLimiter(capacity, perSecond, clock),
+            // 窗口长度取 capacity / 速率,每个窗口最多放行capacity个,平均速率和另外两个一样
+            (capacity, perSecond, clock) -> new SlidingWindowLogLimiter(capacity,
+                    Math.round(capacity * 1e9 / perSecond), TimeUnit.NANOSECONDS, clock),
+    };
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors());
+
+        accuracy(seed);
+        longIdle();
+
+        System.out.printf("%nthroughput (M calls/s)%n%8s %16s", "threads", "synchronized");
+        for (String name : NAMES) {
+            System.out.printf(" %16s", name);
+        }
+        System.out.println();
+        for (int threads : THREADS) {
+            System.out.printf("%8d", threads);
+            for (int i = -1; i < FACTORIES.length; ++i) {
+                run(i, threads, millis / 5);
+                System.out.printf(" %12.2f M/s", run(i, threads, millis));
+            }
+            System.out.println();
+        }
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    // ---------- 准确性 ----------
+
+    /**
+     * 令牌桶的时间戳只有40位(约13天),空闲6.5天以上差值的符号位就变了,以前会被当成没有经过时间,桶永远补不回来
+     */
+    private static void longIdle() {
+        int[] days = {1, 6, 7, 8, 13, 14, 20, 26, 30};
+        for (int d : days) {
+            for (int left : new int[]{0, LIMIT / 2}) {
+                ManualClock clock = new ManualClock();
+                TokenBucketLimiter limiter = new TokenBucketLimiter(LIMIT, LIMIT, clock);
+                check(limiter.tryAcquire(LIMIT - left), "could not drain the bucket");
+                clock.advance(d, TimeUnit.DAYS);
+                check(limiter.tryAcquire(LIMIT), "bucket with " + left + " tokens not refilled after " + d + " idle days");
+            }
+        }
+        System.out.println("long idle: drained and half-full buckets refill after up to " + days[days.length - 1] + " idle days");
+    }
+
+    private static void accuracy(long seed) {
+        int[][] requests = traffic(seed);
+        long offered = 0;
+        int requestCount = 0;
+        for (int[] perMilli : requests) {
+            requestCount += perMilli.length;
+            for (int n : perMilli) {
+                offered += n;
+            }
+        }
+        System.out.printf("%nbursty traffic: %d permits offered in %d s, limit %d/s%n",
+                offered, SIMULATED_MILLIS / 1000, LIMIT);
+        System.out.printf("%14s %10s %14s %14s %20s%n", "", "granted", "max in 1 s", "max in 100 ms", "differs from bucket");
+
+        boolean[][] bucketDecisions = null;
+        for (int i = 0; i < FACTORIES.length; ++i) {
+            ManualClock clock = new ManualClock();
+            RateLimiter limiter = FACTORIES[i].create(LIMIT, LIMIT, clock);
+            int[] granted = new int[SIMULATED_MILLIS];
+            boolean[][] decisions = new boolean[SIMULATED_MILLIS][];
+            long total = 0;
+            for (int ms = 0; ms < SIMULATED_MILLIS; ++ms) {
+                decisions[ms] = new boolean[requests[ms].length];
+                for (int r = 0; r < requests[ms].length; ++r) {
+                    int n = requests[ms][r];
+                    if (limiter.tryAcquire(n)) {
+                        decisions[ms][r] = true;
+                        granted[ms] += n;
+                        total += n;
+                    }
+                }
+                clock.advance(1, TimeUnit.MILLISECONDS);
+            }
+            int maxSecond = maxInWindow(granted, 1000);
+            int maxTenth = maxInWindow(granted, 100);
+            int differs = 0;
+            if (bucketDecisions == null) {
+                bucketDecisions = decisions;
+            } else {
+                for (int ms = 0; ms < SIMULATED_MILLIS; ++ms) {
+                    for (int r = 0; r < decisions[ms].length; ++r) {
+                        if (decisions[ms][r] != bucketDecisions[ms][r]) {
+                            ++differs;
+                        }
+                    }
+                }
+            }
+            System.out.printf("%14s %10d %14d %14d %20d%n", NAMES[i], total, maxSecond, maxTenth, differs);
+
+            if (limiter instanceof SlidingWindowLogLimiter) {
+                check(maxSecond <= LIMIT, NAMES[i] + " granted " + maxSecond + " in one second");
+            } else {
+                // 一个窗口覆盖d毫秒的时间,跨度是d-1毫秒,再加上取整最多多1个
+                check(maxSecond <= LIMIT + LIMIT * 999 / 1000 + 1, NAMES[i] + " granted " + maxSecond + " in one second");
+                check(maxTenth <= LIMIT + LIMIT * 99 / 1000 + 1, NAMES[i] + " granted " + maxTenth + " in 100 ms");
+            }
+            if (limiter instanceof GcraLimiter) {
+                check(differs * 100L <= requestCount, "GCRA disagrees with the token bucket on " + differs + " requests");
+            }
+        }
+    }
+
+    /**
+     * @return 每一毫秒到达的请求,每个请求要1到3个许可
+     */
+    private static int[][] traffic(long seed) {
+        Random random = new Random(seed);
+        int[][] requests = new int[SIMULATED_MILLIS][];
+        int burstLeft = 0;
+        for (int ms = 0; ms < SIMULATED_MILLIS; ++ms) {
+            // 平时每秒大约50个请求
+            int count = random.nextInt(20) == 0 ? 1 : 0;
+            if (burstLeft == 0 && random.nextInt(2000) == 0) {
+                // 突发: 在接下来的几毫秒里来几百个
+                burstLeft = 100 + random.nextInt(400);
+            }
+            if (burstLeft > 0) {
+                int now = Math.min(burstLeft, 1 + random.nextInt(100));
+                count += now;
+                burstLeft -= now;
+            }
+            requests[ms] = new int[count];
+            for (int r = 0; r < count; ++r) {
+                requests[ms][r] = random.nextInt(10) == 0 ? 2 + random.nextInt(2) : 1;
+            }
+        }
+        return requests;
+    }
+
+    private static int maxInWindow(int[] perMilli, int window) {
+        int sum = 0;
+        int max = 0;
+        for (int ms = 0; ms < perMilli.length; ++ms) {
+            sum += perMilli[ms];
+            if (ms >= window) {
+                sum -= perMilli[ms - window];
+            }
+            max = Math.max(max, sum);
+        }
+        return max;
+    }
+
+    // ---------- 吞吐量 ----------
+
+    /**
+     * @param which -1是加锁的令牌桶,其他是FACTORIES的下标
+     * @return 每微秒的调用次数
+     */
+    private static double run(int which, int threadCount, long millis) throws InterruptedException {
+        int capacity = 1000;
+        double rate = 1_000_000;
+        RateLimiter limiter = which < 0 ? new SynchronizedTokenBucketLimiter(capacity, rate)
+                : FACTORIES[which].create(capacity, rate, LimiterClock.SYSTEM);
+        LongAdder calls = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long c = 0;
+                while (System.nanoTime() < deadline) {
+                    limiter.tryAcquire(1 + random.nextInt(4));
+                    ++c;
+                }
+                calls.add(c);
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        return calls.sum() / (double) TimeUnit.MILLISECONDS.toMicros(millis);
+    }
+}
@@ -0,0 +1,95 @@
+package org.nunotaba.TokenBucket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// 滑动窗口日志: 记下最近limit个许可的时间,任意一个长度为window的时间段里放行的许可不超过limit
+// 和令牌桶不同,没有"攒着的突发量": 窗口里用满了limit个就必须等最早的那个滑出窗口
+//
+// 日志是一个长度为limit的环,第i个许可(从0开始编号)的时间放在 i % limit 这个槽位
+//   再放行n个许可(编号seq到seq+n-1)之后,窗口里最多只能有它们和之前的limit-n个,
+//   所以编号为 seq+n-1-limit 的那一个必须已经滑出窗口,只要检查这一个槽位
+// 无锁: 先读那个槽位判断,再CAS计数器占下编号,最后把时间写进自己的槽位
+//   槽位旁边记着写进去的是第几个许可: 如果前面的线程占了编号还没写完时间,保守地当作还在窗口里,拒绝
+//   不同线程读时钟和CAS的先后可能差一点,所以时间是近似按编号递增的
+// 内存: 每个许可16字节,limit很大(比如每分钟几百万)的时候用令牌桶或者GcraLimiter
+public class SlidingWindowLogLimiter implements RateLimiter {
+
+    public static final int MAX_LIMIT = 1 << 24;
+
+    private final int limit;
+    private final long windowNanos;
+    private final LimiterClock clock;
+
+    // 已经放行的许可的个数,也就是下一个许可的编号
+    private final AtomicLong count = new AtomicLong();
+    // 每个槽位: 放行的时间,以及它是第几个许可
+    private final AtomicLongArray times;
+    private final AtomicLongArray seqs;
+
+    /**
+     * @param limit 每个窗口最多放行多少个许可
+     * @param window 窗口的长度
+     */
+    public SlidingWindowLogLimiter(int limit, long window, TimeUnit unit) {
+        this(limit, window, unit, LimiterClock.SYSTEM);
+    }
+
+    public SlidingWindowLogLimiter(int limit, long window, TimeUnit unit, LimiterClock clock) {
+        if (limit <= 0 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be in [1, " + MAX_LIMIT + "]: " + limit);
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("window: " + window);
+        }
+        this.limit = limit;
+        this.windowNanos = unit.toNanos(window);
+        this.clock = clock;
+        this.times = new AtomicLongArray(limit);
+        this.seqs = new AtomicLongArray(limit);
+        for (int i = 0; i < limit; ++i) {
+            seqs.set(i, -1);
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(int n) {
+        if (n <= 0 || n > limit) {
+            throw new IllegalArgumentException("permits must be in [1, " + limit + "]: " + n);
+        }
+        long now = clock.nanoTime();
+        while (true) {
+            long seq = count.get();
+            long oldest = seq + n - 1 - limit;
+            if (oldest >= 0) {
+                int slot = (int) (oldest % limit);
+                // 编号对不上说明前面的线程占了编号还没写完时间,当作还在窗口里
+                if (seqs.get(slot) != oldest || now - times.get(slot) < windowNanos) {
+                    if (count.get() != seq) {
+                        // 读的时候别人放行了新的许可,槽位可能已经被覆盖,重新来
+                        continue;
+                    }
+                    return false;
+                }
+            }
+            if (count.compareAndSet(seq, seq + n)) {
+                for (long i = seq; i < seq + n; ++i) {
+                    int slot = (int) (i % limit);
+                    // 先写时间再写编号,读到编号的线程一定能读到对应的时间
+                    times.set(slot, now);
+                    seqs.set(slot, i);
+                }
+                return true;
+            }
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public long getWindow(TimeUnit unit) {
+        return unit.convert(windowNanos, TimeUnit.NANOSECONDS);
+    }
+}
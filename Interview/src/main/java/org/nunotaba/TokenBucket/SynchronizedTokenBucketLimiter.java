@@ -0,0 +1,57 @@
+package org.nunotaba.TokenBucket;
+
+// 加锁版本的令牌桶,留着和无锁的TokenBucketLimiter做对比
+// 逻辑和最初的版本一样(synchronized + double),去掉了每次调用的打印,并修了两个问题:
+//   1.用System.nanoTime(),currentTimeMillis在两次调用间隔不到1毫秒时算出来的间隔是0,又把时间更新成了现在,令牌永远补不上
+//   2.补充之后令牌数不能超过容量
+public class SynchronizedTokenBucketLimiter implements RateLimiter {
+    private final double capacity;
+
+    private double currTokens;
+
+    // 每秒补充多少个令牌
+    private final double tokenFillingVelocity;
+
+    // 上一次refill的时间
+    private long lastFilledBucketTime;
+
+    public SynchronizedTokenBucketLimiter(double capacity, double tokenFillingVelocity) {
+        this(capacity, capacity, tokenFillingVelocity);
+    }
+
+    public SynchronizedTokenBucketLimiter(double capacity, double currTokens, double tokenFillingVelocity){
+        this.capacity = capacity;
+        this.currTokens = currTokens;
+        this.tokenFillingVelocity = tokenFillingVelocity;
+        this.lastFilledBucketTime = System.nanoTime();
+    }
+
+    @Override
+    public synchronized boolean tryAcquireToken(){
+        return tryAcquire(1);
+    }
+
+    @Override
+    public synchronized boolean tryAcquire(int n){
+        refill();
+
+        if(currTokens >= n){
+            currTokens -= n;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void refill(){
+        long now = System.nanoTime();
+        long timeGap = now - lastFilledBucketTime;
+        currTokens = Double.min(capacity, currTokens + timeGap * tokenFillingVelocity / 1e9);
+
+        lastFilledBucketTime = now;
+    }
+
+    public synchronized int availableTokens() {
+        refill();
+        return (int) currTokens;
+    }
+}
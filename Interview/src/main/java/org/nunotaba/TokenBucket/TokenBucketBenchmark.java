@@ -0,0 +1,102 @@
+package org.nunotaba.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 无锁的TokenBucketLimiter和加锁的SynchronizedTokenBucketLimiter在1到32个线程下的吞吐量
+// 每个线程不停地调用tryAcquire(1到4个令牌),打印每秒的调用次数和发出去的令牌数
+// 补充速率设得比调用速率低,所以大部分调用会被限流,测的是真实的过载场景
+// 同时检查发出去的令牌不超过 初始容量 + 速率 * 时间
+//
+// 没有用JMH(这个模块不依赖任何第三方库),所以和其他模块的benchmark一样: 先热身一轮,再用System.nanoTime计时
+// 用法: TokenBucketBenchmark [每组测量的毫秒数,默认500] [每秒补充的令牌数,默认1000000]
+public class TokenBucketBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    private static final int CAPACITY = 1000;
+    private static final int MAX_PERMITS = 4;
+
+    interface Limiter {
+        boolean tryAcquire(int n);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 1_000_000;
+        System.out.println("cpus = " + Runtime.getRuntime().availableProcessors() + ", capacity = " + CAPACITY
+                + ", rate = " + (long) rate + "/s");
+        System.out.printf("%8s %30s %30s%n", "threads", "synchronized (calls/tokens)", "lock-free CAS (calls/tokens)");
+        for (int threads : THREADS) {
+            System.out.printf("%8d", threads);
+            for (int lockFree = 0; lockFree < 2; ++lockFree) {
+                run(lockFree == 1, rate, threads, millis / 5);
+                double[] result = run(lockFree == 1, rate, threads, millis);
+                System.out.printf(" %16.2f M/s %8.2f M/s", result[0], result[1]);
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return {每微秒的调用次数, 每微秒发出的令牌数}
+     */
+    private static double[] run(boolean lockFree, double rate, int threadCount, long millis) throws InterruptedException {
+        Limiter limiter;
+        if (lockFree) {
+            TokenBucketLimiter l = new TokenBucketLimiter(CAPACITY, rate);
+            limiter = l::tryAcquire;
+        } else {
+            SynchronizedTokenBucketLimiter l = new SynchronizedTokenBucketLimiter(CAPACITY, rate);
+            limiter = l::tryAcquire;
+        }
+        LongAdder calls = new LongAdder();
+        LongAdder tokens = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] window = new long[2];
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long deadline = window[0] + TimeUnit.MILLISECONDS.toNanos(millis);
+                long c = 0;
+                long granted = 0;
+                while (System.nanoTime() < deadline) {
+                    int n = 1 + random.nextInt(MAX_PERMITS);
+                    if (limiter.tryAcquire(n)) {
+                        granted += n;
+                    }
+                    ++c;
+                }
+                calls.add(c);
+                tokens.add(granted);
+            });
+            threads.add(t);
+            t.start();
+        }
+        // 桶是在这之前建好的,从建好开始算时间,检查上限时不会算少
+        window[0] = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        window[1] = System.nanoTime();
+
+        double seconds = (window[1] - window[0]) / 1e9;
+        double limit = CAPACITY + rate * seconds * 1.01 + MAX_PERMITS;
+        if (tokens.sum() > limit) {
+            throw new IllegalStateException((lockFree ? "lock-free" : "synchronized") + " handed out " + tokens.sum()
+                    + " tokens, more than the limit " + (long) limit);
+        }
+        double micros = TimeUnit.MILLISECONDS.toMicros(millis);
+        return new double[]{calls.sum() / micros, tokens.sum() / micros};
+    }
+}
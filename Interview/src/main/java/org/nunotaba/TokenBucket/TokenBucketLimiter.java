@@ -1,62 +1,233 @@
 package org.nunotaba.TokenBucket;
 
-import com.sun.org.apache.xerces.internal.impl.dv.xs.SchemaDVFactoryImpl;
-import sun.tools.jstat.Token;
-
-import java.awt.image.AreaAveragingScaleFilter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 // 手写一个令牌桶(限流器):主要是考察多线程编程的能力.
 // 主要就是两个方法:1.获取一个令牌 2.refill装桶--->懒加载的核心
-public class TokenBucketLimiter {
-    private double capacity;
+//
+// 无锁版本: 令牌数和上一次refill的时间打包在一个long里,一次CAS同时更新两者,格式见PackedBucket
+// 热路径上没有锁,没有日志,也不分配对象
+// 加锁的版本见SynchronizedTokenBucketLimiter
+//
+// 阻塞获取(acquire/带超时的tryAcquire): 令牌不够的时候不用在外面忙等重试
+//   等待的线程按到达顺序排队(FIFO),只有队头算出令牌够的时间点,定时park到那个时候
+//   队头拿到令牌或者离开的时候只唤醒下一个,其他线程一直park着,不会一起醒来抢令牌
+//   队列不为空时,新来的阻塞获取直接排到队尾,不插队; 不阻塞的tryAcquire不排队,可能抢在队头前面拿走令牌,队头醒来发现不够就重新算时间
+public class TokenBucketLimiter implements RateLimiter {
+
+    public static final int MAX_CAPACITY = PackedBucket.MAX_CAPACITY;
+
+    private final PackedBucket bucket;
+
+    private final AtomicLong state;
+
+    // 阻塞获取时等待的线程,队头是下一个能拿令牌的
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 桶一开始是满的
+     * @param capacity 桶的容量,也就是最大的突发量,不超过MAX_CAPACITY
+     * @param tokensPerSecond 每秒补充多少个令牌
+     */
+    public TokenBucketLimiter(int capacity, double tokensPerSecond) {
+        this(capacity, capacity, tokensPerSecond);
+    }
 
-    private double currTokens;
+    public TokenBucketLimiter(int capacity, double tokensPerSecond, LimiterClock clock) {
+        this(capacity, capacity, tokensPerSecond, clock);
+    }
 
-    private double tokenFillingVelocity;
+    public TokenBucketLimiter(int capacity, int currTokens, double tokensPerSecond) {
+        this(capacity, currTokens, tokensPerSecond, LimiterClock.SYSTEM);
+    }
 
-    // 上一次refill的时间
-    private long lastFilledBucketTime;
+    /**
+     * @param clock 非阻塞的tryAcquire按这个时钟补充令牌; 阻塞获取要真的park,只能用LimiterClock.SYSTEM
+     */
+    public TokenBucketLimiter(int capacity, int currTokens, double tokensPerSecond, LimiterClock clock) {
+        this.bucket = new PackedBucket(capacity, tokensPerSecond, clock);
+        if (currTokens < 0 || currTokens > capacity) {
+            throw new IllegalArgumentException("currTokens: " + currTokens);
+        }
+        this.state = new AtomicLong(bucket.state(0, currTokens));
+    }
 
-    public TokenBucketLimiter(double capacity, double currTokens, double tokenFillingVelocity, long lastFilledBucketTime){
-        this.capacity = capacity;
-        this.currTokens = currTokens;
-        this.tokenFillingVelocity = tokenFillingVelocity;
-        this.lastFilledBucketTime = lastFilledBucketTime;
+    @Override
+    public boolean tryAcquire(int n) {
+        long need = bucket.need(n);
+        long now = bucket.nowTicks();
+        while (true) {
+            long s = state.get();
+            long refilled = bucket.refill(s, now);
+            if (PackedBucket.tokens(refilled) < need) {
+                // 令牌不够就直接返回,不写共享变量; 被限流的时候请求最多,这时不应该再去抢CAS
+                return false;
+            }
+            if (state.compareAndSet(s, refilled - need)) {
+                return true;
+            }
+        }
     }
 
-    public synchronized boolean tryAcquireToken(){
-        refill();
-        
-        if(currTokens >= 1){
-            // System.out.println("Number of Tokens comes " + currTokens + " to " + (currTokens - 1));
-            --currTokens;
-            System.out.println("线程 " + ThreadLocal.class.getName() + "拿走一个令牌");
-            return true;
-        } else {
-            System.out.println("限流了,现在很挤,拿不到令牌");
-            return false;
+    /**
+     * 能拿多少拿多少,至少min个,最多max个; 给LeasedRateLimiter一次租一批用
+     * @return 拿到的个数,不够min个时返回0
+     */
+    int tryAcquireUpTo(int min, int max) {
+        long need = bucket.need(min);
+        bucket.need(max);
+        long now = bucket.nowTicks();
+        while (true) {
+            long s = state.get();
+            long refilled = bucket.refill(s, now);
+            long tokens = PackedBucket.tokens(refilled);
+            if (tokens < need) {
+                return 0;
+            }
+            int n = (int) Math.min(max, tokens >> PackedBucket.FRACTION_BITS);
+            if (state.compareAndSet(s, refilled - ((long) n << PackedBucket.FRACTION_BITS))) {
+                return n;
+            }
         }
     }
 
-    public synchronized void refill(){
-        long timeGap = System.currentTimeMillis() - lastFilledBucketTime;
-        double filledTokens = Double.min(capacity, timeGap * tokenFillingVelocity / 1000);
-        System.out.println("补充了 " + (filledTokens) + " 个tokens");
-        currTokens += filledTokens;
+    /**
+     * 阻塞直到拿到一个令牌
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
 
-        lastFilledBucketTime = System.currentTimeMillis();
+    /**
+     * 阻塞直到拿到n个令牌,和前面排队的线程按顺序来
+     */
+    public void acquire(int n) throws InterruptedException {
+        acquire(n, false, 0L);
     }
 
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return tryAcquire(1, timeout, unit);
+    }
 
+    /**
+     * 最多等timeout拿n个令牌; 如果算出来超时之前不可能攒够,马上返回false,不白等
+     * @return 是否拿到了
+     */
+    public boolean tryAcquire(int n, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(n, true, System.nanoTime() + unit.toNanos(timeout));
+    }
 
+    private boolean acquire(int n, boolean timed, long deadline) throws InterruptedException {
+        long need = bucket.need(n);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        // 没有人排队就先试一次,不用进队列
+        if (waiters.isEmpty() && tryAcquire(n)) {
+            return true;
+        }
+        Thread current = Thread.currentThread();
+        waiters.add(current);
+        try {
+            while (true) {
+                long remaining = timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+                if (waiters.peek() == current) {
+                    long s = state.get();
+                    long refilled = bucket.refill(s, bucket.nowTicks());
+                    if (PackedBucket.tokens(refilled) >= need) {
+                        if (state.compareAndSet(s, refilled - need)) {
+                            return true;
+                        }
+                        continue;
+                    }
+                    long wait = bucket.nanosUntil(refilled, need);
+                    if (wait > remaining) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, wait);
+                } else if (timed) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    // 等前一个线程拿到令牌之后叫醒
+                    LockSupport.park(this);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiters.remove(current);
+            // 不管自己是不是队头都唤醒新的队头: 自己离开的时候可能刚好变成了队头,前一个线程唤醒的是自己
+            // 多唤醒一次没关系,队头醒来会重新算时间再park
+            Thread next = waiters.peek();
+            if (next != null) {
+                LockSupport.unpark(next);
+            }
+        }
+    }
+
+    /**
+     * 把拿到了但是没有用掉的令牌还回桶里(租出去的令牌过期,嵌套的限流器上一级拒绝了),桶最多还到满
+     * 还回来之后唤醒阻塞获取的队头,让它重新算要等多久
+     */
+    public void release(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("permits: " + n);
+        }
+        if (n == 0) {
+            return;
+        }
+        long units = (long) Math.min(n, bucket.capacity) << PackedBucket.FRACTION_BITS;
+        long now = bucket.nowTicks();
+        while (true) {
+            long s = state.get();
+            long refilled = bucket.refill(s, now);
+            long tokens = Math.min(bucket.capacityUnits, PackedBucket.tokens(refilled) + units);
+            if (state.compareAndSet(s, PackedBucket.pack(PackedBucket.time(refilled), tokens))) {
+                break;
+            }
+        }
+        Thread head = waiters.peek();
+        if (head != null) {
+            LockSupport.unpark(head);
+        }
+    }
+
+    /**
+     * @return 当前可用的令牌数(向下取整),只是一个瞬间的快照
+     */
+    public int availableTokens() {
+        return (int) (PackedBucket.tokens(bucket.refill(state.get(), bucket.nowTicks())) >> PackedBucket.FRACTION_BITS);
+    }
+
+    public int getCapacity() {
+        return bucket.capacity;
+    }
+
+    public double getTokensPerSecond() {
+        return bucket.tokensPerSecond;
+    }
 
     public static void main(String[] args) throws InterruptedException {
-        TokenBucketLimiter tokenBucketLimiter = new TokenBucketLimiter(20, 20, 5, System.currentTimeMillis());
+        TokenBucketLimiter tokenBucketLimiter = new TokenBucketLimiter(20, 5);
+        AtomicInteger granted = new AtomicInteger();
 
         for(int index = 0; index < 50; ++index){
-            new Thread(tokenBucketLimiter::tryAcquireToken, "Thread " + index).start();
+            new Thread(() -> {
+                if (tokenBucketLimiter.tryAcquireToken()) {
+                    granted.incrementAndGet();
+                }
+            }, "Thread " + index).start();
             Thread.sleep(100);
         }
-
+        // 5秒内: 一开始的20个加上每秒补充的5个
+        System.out.println("拿到令牌的线程: " + granted.get() + " / 50, 剩余令牌: " + tokenBucketLimiter.availableTokens());
     }
 }
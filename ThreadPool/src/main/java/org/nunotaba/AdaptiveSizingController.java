@@ -0,0 +1,196 @@
+package org.nunotaba;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 根据任务在队列里等待的时间自动调整线程数(在corePoolSize和maxSize之间)
+ * 每个周期统计一次这段时间内排队时间的分位数:
+ * 超过目标就多开线程,远低于目标而且线程大部分空闲就回收一个辅助线程
+ * 每次决策都会通过Listener回调出去
+ */
+public class AdaptiveSizingController {
+
+    /**
+     * 每个周期的决策结果
+     */
+    public enum Action {
+        GROW, SHRINK, HOLD
+    }
+
+    public static final class Decision {
+        private final Action action;
+        private final int oldSize;
+        private final int newSize;
+        private final long observedWaitNanos;
+        private final double utilization;
+        private final int queueSize;
+
+        Decision(Action action, int oldSize, int newSize, long observedWaitNanos, double utilization, int queueSize) {
+            this.action = action;
+            this.oldSize = oldSize;
+            this.newSize = newSize;
+            this.observedWaitNanos = observedWaitNanos;
+            this.utilization = utilization;
+            this.queueSize = queueSize;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        public int getOldSize() {
+            return oldSize;
+        }
+
+        /**
+         * @return 决策希望达到的线程数,回收是在辅助线程下一次空闲的时候才真正发生
+         */
+        public int getNewSize() {
+            return newSize;
+        }
+
+        public long getObservedWaitNanos() {
+            return observedWaitNanos;
+        }
+
+        public double getUtilization() {
+            return utilization;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        @Override
+        public String toString() {
+            return action + " " + oldSize + " -> " + newSize + " (wait " + TimeUnit.NANOSECONDS.toMicros(observedWaitNanos)
+                    + "us, utilization " + String.format("%.2f", utilization) + ", queue " + queueSize + ")";
+        }
+    }
+
+    /**
+     * 每做一次决策回调一次,在控制器自己的线程里调用
+     * 抛出的异常交给这个线程的UncaughtExceptionHandler报告,控制器继续运行
+     */
+    public interface Listener {
+        void onDecision(Decision decision);
+    }
+
+    // 线程空闲比例高于这个值才允许回收
+    private static final double SHRINK_UTILIZATION = 0.5;
+
+    private final long targetWaitNanos;
+    private final double percentile;
+    private final long periodNanos;
+    private final Listener listener;
+
+    private volatile Thread thread;
+    private long[] lastCounts = new long[LatencyHistogram.BUCKETS];
+    private long lastBusyNanos;
+    private long lastTickNanos;
+
+    /**
+     * @param targetWait 排队时间的目标值
+     * @param percentile 用哪个分位数和目标值比较,比如99
+     * @param period 决策周期,同时也是辅助线程检查回收请求的最长间隔
+     * @param unit targetWait和period的单位
+     * @param listener 每次决策的回调,可以为null
+     */
+    public AdaptiveSizingController(long targetWait, double percentile, long period, TimeUnit unit, Listener listener) {
+        if (targetWait <= 0 || period <= 0 || percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException();
+        }
+        this.targetWaitNanos = unit.toNanos(targetWait);
+        this.percentile = percentile;
+        this.periodNanos = unit.toNanos(period);
+        this.listener = listener;
+    }
+
+    long periodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * 由MyThreadPool.setSizingController调用,启动一个守护线程周期性地做决策
+     */
+    synchronized void start(MyThreadPool pool) {
+        if (thread != null) {
+            throw new IllegalStateException("The controller is already attached to a pool");
+        }
+        lastCounts = pool.queueWaitHistogram().counts();
+        lastBusyNanos = pool.busyNanos();
+        lastTickNanos = System.nanoTime();
+        Thread t = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(periodNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Decision decision = tick(pool);
+                    if (listener != null) {
+                        listener.onDecision(decision);
+                    }
+                } catch (RuntimeException e) {
+                    // 一次决策(或者listener)出错不能让调整线程数的线程退出,报告之后继续下一轮
+                    Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                }
+            }
+        }, "adaptive-sizing-controller");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * 停止决策线程,线程数保持现状
+     */
+    public void stop() {
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    Decision tick(MyThreadPool pool) {
+        long[] counts = pool.queueWaitHistogram().counts();
+        long[] window = new long[counts.length];
+        for (int i = 0; i < counts.length; ++i) {
+            window[i] = counts[i] - lastCounts[i];
+        }
+        lastCounts = counts;
+
+        // 利用率 = 这段时间内所有线程执行任务的总时间 / (线程数 * 时间)
+        long now = System.nanoTime();
+        long busy = pool.busyNanos();
+        long elapsed = Math.max(1, now - lastTickNanos);
+        long busyInWindow = busy - lastBusyNanos;
+        lastTickNanos = now;
+        lastBusyNanos = busy;
+
+        long observedWait = LatencyHistogram.valueAtPercentile(window, percentile);
+        int size = pool.getPoolSize();
+        double utilization = size == 0 ? 1.0 : Math.min(1.0, (double) busyInWindow / ((double) size * elapsed));
+        int queueSize = pool.blockingQueue.size();
+
+        if (observedWait > targetWaitNanos && size < pool.getMaxSize()) {
+            // 超出目标越多,一次多开的线程就越多,但一次最多翻倍
+            double overshoot = (double) observedWait / targetWaitNanos;
+            int step = (int) Math.min(Math.max(1, size), Math.max(1, Math.round(size * (overshoot - 1))));
+            int grown = 0;
+            for (int i = 0; i < step && pool.growWorker(); ++i) {
+                ++grown;
+            }
+            if (grown > 0) {
+                return new Decision(Action.GROW, size, size + grown, observedWait, utilization, queueSize);
+            }
+        } else if (observedWait < targetWaitNanos / 2 && utilization < SHRINK_UTILIZATION
+                && size > pool.getCorePoolSize() && queueSize == 0) {
+            pool.requestShrink();
+            return new Decision(Action.SHRINK, size, size - 1, observedWait, utilization, queueSize);
+        }
+        return new Decision(Action.HOLD, size, size, observedWait, utilization, queueSize);
+    }
+}
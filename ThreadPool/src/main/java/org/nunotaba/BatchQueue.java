@@ -0,0 +1,18 @@
+package org.nunotaba;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 可以一次放入一批元素的阻塞队列: 整批只抢一次位置(一次CAS),而不是每个元素抢一次
+ * 线程池的executeAll用它把一批任务放进队列(见MyThreadPool.offerAll)
+ */
+interface BatchQueue<E> extends BlockingQueue<E> {
+
+    /**
+     * 按顺序放入items,放不下就停下,不阻塞
+     * @param items 要放入的元素,不能包含null
+     * @return 放进去的个数,放进去的总是items最前面的这么多个
+     */
+    int offerAll(List<? extends E> items);
+}
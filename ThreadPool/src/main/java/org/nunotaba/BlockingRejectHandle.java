@@ -0,0 +1,65 @@
+package org.nunotaba;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 背压: 队列满了就让提交线程阻塞等待队列腾出位置,最多等timeout
+ * 超时之后抛出RejectedExecutionException,不会无限期地卡住生产者
+ */
+public class BlockingRejectHandle implements RejectHandle {
+
+    private final long timeout;
+    private final TimeUnit timeUnit;
+
+    private final LongAdder acceptedAfterWait = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public BlockingRejectHandle(long timeout, TimeUnit timeUnit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        this.timeout = timeout;
+        this.timeUnit = timeUnit;
+    }
+
+    @Override
+    public void reject(Runnable rejectedCommand, MyThreadPool pool) {
+        if (pool.isShutdown()) {
+            timedOut.increment();
+            throw new RejectedExecutionException("The pool has been shut down");
+        }
+        try {
+            if (pool.blockingQueue.offer(rejectedCommand, timeout, timeUnit)) {
+                // 等待的时候线程池可能被关闭了,撤回来拒绝掉,不能留在没有线程处理的队列里
+                if (pool.recheckQueued(rejectedCommand)) {
+                    timedOut.increment();
+                    throw new RejectedExecutionException("The pool was shut down while waiting for queue space");
+                }
+                acceptedAfterWait.increment();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            timedOut.increment();
+            throw new RejectedExecutionException("Interrupted while waiting for queue space", e);
+        }
+        timedOut.increment();
+        throw new RejectedExecutionException("The Blocking Queue is still full after " + timeout + " " + timeUnit);
+    }
+
+    /**
+     * @return 等待之后成功放入队列的任务数
+     */
+    public long getAcceptedAfterWaitCount() {
+        return acceptedAfterWait.sum();
+    }
+
+    /**
+     * @return 等待超时(或者等待时被中断,或者线程池已经关闭)而被拒绝的任务数
+     */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+}
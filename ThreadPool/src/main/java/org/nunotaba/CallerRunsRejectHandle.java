@@ -0,0 +1,38 @@
+package org.nunotaba;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 由提交任务的线程自己执行被拒绝的任务
+ * 提交线程忙着执行任务的时候就没法继续提交,相当于一个天然的负反馈,让生产者慢下来
+ * 线程池已经关闭的时候直接丢掉任务
+ */
+public class CallerRunsRejectHandle implements RejectHandle {
+
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    @Override
+    public void reject(Runnable rejectedCommand, MyThreadPool pool) {
+        if (pool.isShutdown()) {
+            discarded.increment();
+            return;
+        }
+        callerRuns.increment();
+        rejectedCommand.run();
+    }
+
+    /**
+     * @return 由提交线程自己执行的任务数
+     */
+    public long getCallerRunsCount() {
+        return callerRuns.sum();
+    }
+
+    /**
+     * @return 线程池关闭之后被丢掉的任务数
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+}
@@ -0,0 +1,70 @@
+package org.nunotaba;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 丢掉队列里最老的任务,再把新任务放进队列
+ * 和直接重新调用execute不同,这里是一个有上限的循环: 不会递归,也不会在持续过载的时候无限自旋
+ * 重试maxRetries次之后还放不进去,就丢掉新任务
+ */
+public class DiscardOldestRejectHandle implements RejectHandle {
+
+    private final int maxRetries;
+
+    private final LongAdder discardedOldest = new LongAdder();
+    private final LongAdder requeued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public DiscardOldestRejectHandle(int maxRetries) {
+        if (maxRetries < 1) {
+            throw new IllegalArgumentException("maxRetries must be at least 1");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    @Override
+    public void reject(Runnable rejectedCommand, MyThreadPool pool) {
+        // 优先级队列满的时候,线程池已经把最不紧急的任务换出来交给我们了,直接丢掉它就行
+        // 线程池关闭之后也不能为了新任务丢掉已经接收的任务
+        if (pool.blockingQueue instanceof PriorityTaskQueue || pool.isShutdown()) {
+            dropped.increment();
+            return;
+        }
+        for (int i = 0; i < maxRetries; ++i) {
+            if (pool.blockingQueue.poll() != null) {
+                discardedOldest.increment();
+            }
+            if (pool.blockingQueue.offer(rejectedCommand)) {
+                // 放回去的同时线程池被关闭了,撤回来丢掉
+                if (pool.recheckQueued(rejectedCommand)) {
+                    dropped.increment();
+                } else {
+                    requeued.increment();
+                }
+                return;
+            }
+        }
+        dropped.increment();
+    }
+
+    /**
+     * @return 为了腾位置被丢掉的老任务数
+     */
+    public long getDiscardedOldestCount() {
+        return discardedOldest.sum();
+    }
+
+    /**
+     * @return 腾出位置之后成功放入队列的新任务数
+     */
+    public long getRequeuedCount() {
+        return requeued.sum();
+    }
+
+    /**
+     * @return 重试之后仍然放不进去而被丢掉的新任务数(包括优先级队列换出来的任务和线程池关闭之后提交的任务)
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+}
@@ -1,9 +1,8 @@
 package org.nunotaba;
 
-public class DiscardRejectHandle implements RejectHandle {
-    @Override
-    public void reject(Runnable rejectedCommand, MyThreadPool pool) {
-        pool.blockingQueue.poll();
-        pool.execute(rejectedCommand);
+// 丢掉最老的任务再试一次,不再递归调用execute
+public class DiscardRejectHandle extends DiscardOldestRejectHandle {
+    public DiscardRejectHandle() {
+        super(1);
     }
 }
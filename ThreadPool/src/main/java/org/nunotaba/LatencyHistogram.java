@@ -0,0 +1,106 @@
+package org.nunotaba;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * HDR风格的直方图: 每个2的幂区间再平均分成SUB_COUNT个桶,相对误差固定在1/SUB_COUNT以内
+ * 记录的时候只是一次数组下标计算加一次原子加法,不分配任何对象
+ * 和LongAdder一样按线程分成多个条带,不同线程记录同一个桶的时候不会争抢同一个缓存行
+ * 每个条带有1888个桶(约15KB),第一次有线程记到它的时候才分配: 没人记录的直方图几乎不占内存,
+ * 只有几个线程在记录的时候也只有几个条带
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // long最多63位有效数字,第一个区间是[0, SUB_COUNT)
+    static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_COUNT;
+
+    // 条带数取不小于CPU核数的2的幂,最多16个
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    /**
+     * @param value 要记录的值(比如纳秒),负数按0处理
+     */
+    public void record(long value) {
+        // identityHashCode算过一次就记在对象头里,每个线程固定落在一个条带上
+        int stripe = System.identityHashCode(Thread.currentThread()) & (STRIPES - 1);
+        AtomicLongArray counts = stripes.get(stripe);
+        if (counts == null) {
+            counts = createStripe(stripe);
+        }
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+    }
+
+    private AtomicLongArray createStripe(int stripe) {
+        AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        // 别的线程抢先建好了就用它的
+        return stripes.compareAndSet(stripe, null, counts) ? counts : stripes.get(stripe);
+    }
+
+    /**
+     * 读取的时候不加锁,和记录并发进行,所以只是一个近似的瞬间值
+     * @return 当前所有桶计数的拷贝,可以和上一次的拷贝相减得到一段时间内的分布
+     */
+    public long[] counts() {
+        long[] copy = new long[BUCKETS];
+        for (int s = 0; s < STRIPES; ++s) {
+            AtomicLongArray stripe = stripes.get(s);
+            if (stripe == null) {
+                continue;
+            }
+            for (int i = 0; i < BUCKETS; ++i) {
+                copy[i] += stripe.get(i);
+            }
+        }
+        return copy;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+        return ((shift + 1) << SUB_BITS) + sub;
+    }
+
+    /**
+     * @return 这个桶里能出现的最大值
+     */
+    static long highestValueOf(int index) {
+        int bucket = index >>> SUB_BITS;
+        int sub = index & (SUB_COUNT - 1);
+        if (bucket == 0) {
+            return sub;
+        }
+        int shift = bucket - 1;
+        return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param counts counts()返回的数组,或者两次拷贝的差
+     * @param percentile 0到100之间
+     * @return 对应分位数的值,没有数据的时候返回0
+     */
+    public static long valueAtPercentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(counts.length - 1);
+    }
+}
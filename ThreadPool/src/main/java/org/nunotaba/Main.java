@@ -26,6 +26,8 @@ public class Main {
 
 
         System.out.println("Main Thread is not blocked");
+        // 已经接收的任务做完之后线程全部退出,程序可以正常结束
+        myThreadPool.shutdown();
 
     }
 }
\ No newline at end of file
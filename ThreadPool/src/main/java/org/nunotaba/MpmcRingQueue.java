@@ -0,0 +1,418 @@
+package org.nunotaba;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 有界的多生产者多消费者无锁环形队列(Dmitry Vyukov的算法)
+ * 每个槽位有一个序号,生产者和消费者只通过CAS抢各自的下标,不需要ReentrantLock
+ * 队列空或者满的时候,阻塞方法先自旋,再yield,最后才park
+ * 实现了BlockingQueue,可以直接传给MyThreadPool的构造函数
+ * offerAll一次CAS把tail往后挪好几格,抢下一段连续的槽位,整批放进去(见BatchQueue)
+ *
+ * remove(Object)把元素所在的槽位清成null,消费者取到null就跳过这个槽位接着取下一个
+ *   消费者用getAndSet取元素,和remove的CAS只有一个能成功,同一个元素不会既被取走又被删掉
+ *   size()会把删掉了还没被跳过的槽位也算进去
+ * 开启了线程池的统计之后,入队时间记在和槽位对应的数组里,出队时记下排队时间,不分配对象(见QueueWaitRecorder)
+ * 注意: iterator()只是一个弱一致性的快照,不支持Iterator.remove
+ */
+public class MpmcRingQueue<E> extends RingQueueHeadPad<E> implements BatchQueue<E>, QueueWaitRecorder {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    // sequences[i] == pos 表示这个槽位可以写入第pos个元素, == pos + 1 表示第pos个元素已经可以读了
+    private final AtomicLongArray sequences;
+
+    // 每个槽位的入队时间和记录排队时间的直方图,没开启统计的时候都是null
+    // 时间在发布序号之前写,消费者读到序号之后再读时间
+    private volatile long[] enqueueTimes;
+    private volatile LatencyHistogram waitHistogram;
+
+    // 阻塞之前先自旋多少次,再yield多少次
+    private final int spinTries;
+    private final int yieldTries;
+
+    // park住的消费者和生产者,有新元素或者新空位的时候唤醒一个
+    private final Waiters notEmpty = new Waiters();
+    private final Waiters notFull = new Waiters();
+    private final Ready hasElements = () -> size() > 0;
+    private final Ready hasSpace = () -> remainingCapacity() > 0;
+
+    /**
+     * @param capacity 容量,会向上取整到2的幂
+     */
+    public MpmcRingQueue(int capacity) {
+        this(capacity, 100, 10);
+    }
+
+    /**
+     * @param capacity 容量,会向上取整到2的幂
+     * @param spinTries 阻塞之前自旋(Thread.onSpinWait)的次数
+     * @param yieldTries 自旋之后Thread.yield的次数,之后才park
+     */
+    public MpmcRingQueue(int capacity, int spinTries, int yieldTries) {
+        if (capacity < 2 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 2 and 2^30");
+        }
+        if (spinTries < 0 || yieldTries < 0) {
+            throw new IllegalArgumentException("spinTries and yieldTries must not be negative");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        this.spinTries = spinTries;
+        this.yieldTries = yieldTries;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail;
+        int index;
+        while (true) {
+            index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (casTail(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail;
+            } else if (diff < 0) {
+                // 这个槽位上一轮的元素还没被取走,说明队列满了
+                return false;
+            } else {
+                // 别的生产者已经抢走了这个位置
+                pos = tail;
+            }
+        }
+        buffer.lazySet(index, e);
+        long[] times = enqueueTimes;
+        if (times != null) {
+            times[index] = System.nanoTime();
+        }
+        sequences.set(index, pos + 1);
+        notEmpty.signal();
+        return true;
+    }
+
+    /**
+     * 从tail开始数出连续的空槽位,一次CAS抢下这一段,再按顺序写入和发布
+     * 空槽位的序号只有抢到这个位置的生产者会改,所以CAS成功的时候数出来的这些槽位一定还是空的
+     */
+    @Override
+    public int offerAll(List<? extends E> items) {
+        int n = items.size();
+        for (int i = 0; i < n; ++i) {
+            if (items.get(i) == null) {
+                throw new NullPointerException();
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long pos;
+        int k;
+        while (true) {
+            pos = tail;
+            k = 0;
+            while (k < n && k <= mask && sequences.get((int) (pos + k) & mask) == pos + k) {
+                ++k;
+            }
+            if (k == 0) {
+                if (sequences.get((int) pos & mask) - pos < 0) {
+                    // 第一个槽位上一轮的元素还没被取走,队列满了
+                    return 0;
+                }
+                // 别的生产者已经抢走了这个位置
+                continue;
+            }
+            if (casTail(pos, pos + k)) {
+                break;
+            }
+        }
+        long[] times = enqueueTimes;
+        long now = times != null ? System.nanoTime() : 0;
+        for (int i = 0; i < k; ++i) {
+            int index = (int) (pos + i) & mask;
+            buffer.lazySet(index, items.get(i));
+            if (times != null) {
+                times[index] = now;
+            }
+            sequences.set(index, pos + i + 1);
+        }
+        notEmpty.signal(k);
+        return k;
+    }
+
+    @Override
+    public E poll() {
+        long pos = head;
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (casHead(pos, pos + 1)) {
+                    E e = buffer.getAndSet(index, null);
+                    LatencyHistogram histogram = waitHistogram;
+                    if (histogram != null && e != null) {
+                        recordWait(histogram, index);
+                    }
+                    sequences.set(index, pos + mask + 1);
+                    notFull.signal();
+                    if (e != null) {
+                        return e;
+                    }
+                    // 这个元素已经被remove删掉了,接着取下一个
+                }
+                pos = head;
+            } else if (diff < 0) {
+                // 这个槽位还没有写入,说明队列空了
+                return null;
+            } else {
+                pos = head;
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        while (true) {
+            long h = head;
+            E found = null;
+            // 跳过被remove删掉的槽位
+            for (long pos = h; pos - h <= mask; ++pos) {
+                int index = (int) pos & mask;
+                if (sequences.get(index) != pos + 1) {
+                    break;
+                }
+                if ((found = buffer.get(index)) != null) {
+                    break;
+                }
+            }
+            // head没动过说明中间没有元素被取走,看到的是一致的
+            if (head == h) {
+                return found;
+            }
+        }
+    }
+
+    private void recordWait(LatencyHistogram histogram, int index) {
+        long enqueued = enqueueTimes[index];
+        // 开启统计之前入队的元素没有时间
+        if (enqueued != 0) {
+            histogram.record(System.nanoTime() - enqueued);
+        }
+    }
+
+    @Override
+    public synchronized void recordWaitInto(LatencyHistogram histogram) {
+        if (enqueueTimes == null) {
+            enqueueTimes = new long[mask + 1];
+        }
+        waitHistogram = histogram;
+    }
+
+    /**
+     * 删掉队列里的一个元素: 只有线程池在execute和shutdown撞上的时候用,扫一遍整个队列
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        for (long pos = head, end = tail; pos < end; ++pos) {
+            int index = (int) pos & mask;
+            if (sequences.get(index) != pos + 1) {
+                // 还没写入,或者已经被取走了
+                continue;
+            }
+            E e = buffer.get(index);
+            if (e != null && (e == o || o.equals(e)) && buffer.compareAndSet(index, e, null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = deadlineOf(timeout, unit);
+        int tries = 0;
+        while (!offer(e)) {
+            if (!idle(notFull, tries++, deadline, hasSpace)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = deadlineOf(timeout, unit);
+        int tries = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (!idle(notEmpty, tries++, deadline, hasElements)) {
+                return null;
+            }
+        }
+        return e;
+    }
+
+    private static long deadlineOf(long timeout, TimeUnit unit) {
+        long nanos = unit.toNanos(timeout);
+        if (nanos == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return System.nanoTime() + nanos;
+    }
+
+    /**
+     * 等待策略: 先自旋,再yield,最后park直到被唤醒或者超时
+     * @return false表示已经超时
+     */
+    private boolean idle(Waiters waiters, int tries, long deadline, Ready ready) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        if (tries < spinTries) {
+            Thread.onSpinWait();
+        } else if (tries < spinTries + yieldTries) {
+            Thread.yield();
+        } else {
+            Thread current = Thread.currentThread();
+            // 先登记再检查一遍,对方发信号之前一定能看到我们的登记
+            waiters.add(current);
+            if (!ready.check()) {
+                if (remaining == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            waiters.remove(current);
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        // 先读head再读tail,得到的差值不会是负数
+        long h = head;
+        long t = tail;
+        long size = t - h;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return mask + 1 - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            ++n;
+        }
+        return n;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        for (long pos = head, end = tail; pos < end; ++pos) {
+            E e = buffer.get((int) pos & mask);
+            if (e != null) {
+                snapshot.add(e);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    private interface Ready {
+        boolean check();
+    }
+}
+
+/*
+ * 下面几个类只是为了把head和tail隔开,分别放在不同的缓存行里,避免生产者和消费者互相伪共享
+ * Java里字段顺序不能保证,但是父类的字段一定排在子类前面,所以用继承来插入填充
+ */
+abstract class RingQueuePad0<E> extends AbstractQueue<E> {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p08, p09, p0a, p0b, p0c, p0d, p0e, p0f;
+}
+
+abstract class RingQueueTail<E> extends RingQueuePad0<E> {
+    private static final AtomicLongFieldUpdater<? super RingQueueTail<?>> TAIL =
+            AtomicLongFieldUpdater.newUpdater(RingQueueTail.class, "tail");
+
+    // 下一个要写入的位置
+    volatile long tail;
+
+    final boolean casTail(long expect, long update) {
+        return TAIL.compareAndSet(this, expect, update);
+    }
+}
+
+abstract class RingQueueTailPad<E> extends RingQueueTail<E> {
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+    long p18, p19, p1a, p1b, p1c, p1d, p1e, p1f;
+}
+
+abstract class RingQueueHead<E> extends RingQueueTailPad<E> {
+    private static final AtomicLongFieldUpdater<? super RingQueueHead<?>> HEAD =
+            AtomicLongFieldUpdater.newUpdater(RingQueueHead.class, "head");
+
+    // 下一个要读取的位置
+    volatile long head;
+
+    final boolean casHead(long expect, long update) {
+        return HEAD.compareAndSet(this, expect, update);
+    }
+}
+
+abstract class RingQueueHeadPad<E> extends RingQueueHead<E> {
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+    long p28, p29, p2a, p2b, p2c, p2d, p2e, p2f;
+}
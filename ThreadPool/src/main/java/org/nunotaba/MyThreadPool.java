@@ -1,11 +1,24 @@
 package org.nunotaba;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class MyThreadPool {
 
@@ -21,97 +34,1199 @@ public class MyThreadPool {
     private final TimeUnit timeUnit;
 
     // 阻塞队列存放到达的所有任务
+    // 工作窃取模式下只存放外部线程提交的任务
     public final BlockingQueue<Runnable> blockingQueue;
 
     // 采用的拒绝策略
     private final RejectHandle rejectHandle;
 
+    // 是否开启工作窃取模式
+    private final boolean workStealing;
+
+    // 创建线程的工厂,默认是平台线程,也可以换成虚拟线程(WorkerFactories.virtual(...))
+    private volatile ThreadFactory threadFactory = Thread::new;
+
+    // 线程每次从阻塞队列里最多批量取出多少个任务,1表示每次只取一个
+    private volatile int drainBatchSize = 1;
+
+    // 根据排队时间自动调整线程数的控制器,为null表示不开启
+    private volatile AdaptiveSizingController sizingController;
+
+    // 为true时记录排队时间和执行时间: 执行时间由线程自己记
+    // 排队时间: 队列自己能记的(QueueWaitRecorder)由队列记,新线程直接带走的任务由Worker记,其他的任务包装成TimedTask
+    private volatile boolean timed;
+
+    // 队列自己记录排队时间,任务放进共享队列之前不用包装
+    private final boolean queueRecordsWait;
+
+    // 任务数,拒绝数,活跃线程数和耗时的统计
+    private final PoolMetrics metrics = new PoolMetrics();
+
+    // 控制器要求回收的辅助线程数,由空闲的辅助线程认领
+    private final AtomicInteger retireRequests = new AtomicInteger();
+
+    // 为true时核心线程空闲超过timeout也会退出,低峰期把线程栈还回去
+    private volatile boolean allowCoreThreadTimeOut;
+
 
 
     public MyThreadPool(int corePoolSize, int maxSize, int timeout, TimeUnit timeUnit, BlockingQueue<Runnable> queue, RejectHandle rejectHandle) {
+        this(corePoolSize, maxSize, timeout, timeUnit, queue, rejectHandle, false);
+    }
+
+    /**
+     * @param workStealing 为true时每个线程拥有自己的双端队列,
+     *                     线程内部提交的任务放入自己的队列,空闲的线程从别人队列的另一端偷任务
+     */
+    public MyThreadPool(int corePoolSize, int maxSize, int timeout, TimeUnit timeUnit, BlockingQueue<Runnable> queue, RejectHandle rejectHandle, boolean workStealing) {
         this.corePoolSize = corePoolSize;
         this.maxSize = maxSize;
         this.timeout = timeout;
         this.timeUnit = timeUnit;
         this.blockingQueue = queue;
         this.rejectHandle = rejectHandle;
+        this.workStealing = workStealing;
+        this.queueRecordsWait = queue instanceof QueueWaitRecorder;
     }
 
 
+    // 和ThreadPoolExecutor一样,用一个int同时存放运行状态和线程数量
+    // 高3位: 运行状态  低29位: 线程数量
+    // 这样一次CAS就能同时检查状态并修改线程数,提交任务的路径上不需要任何锁
+    private static final int COUNT_BITS = Integer.SIZE - 3;
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
+
+    // 运行状态存放在高位,数值是单调递增的
+    // RUNNING:    接收新任务,处理队列里的任务
+    // SHUTDOWN:   不再接收新任务,但是会把已经接收的任务全部做完
+    // STOP:       不再接收新任务,不处理队列里的任务,中断正在执行的任务
+    // TIDYING:    所有线程都已经退出,正在执行收尾工作
+    // TERMINATED: 收尾工作完成
+    private static final int RUNNING = -1 << COUNT_BITS;
+    private static final int SHUTDOWN = 0;
+    private static final int STOP = 1 << COUNT_BITS;
+    private static final int TIDYING = 2 << COUNT_BITS;
+    private static final int TERMINATED = 3 << COUNT_BITS;
+
+    private final AtomicInteger ctl = new AtomicInteger(ctlOf(RUNNING, 0));
+
+    // 曾经同时存活的最大线程数,用来验证线程数从来没有超过上限
+    private final AtomicInteger largestPoolSize = new AtomicInteger(0);
+
+    // 工作窃取模式下所有存活的线程,只在线程创建和退出的时候修改(写时复制),窃取的时候直接遍历数组
+    private volatile Worker[] workers = new Worker[0];
+    private final Object workersLock = new Object();
+
+    // 工作窃取模式下没有任务可做而park住的线程
+    private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+
+    // 当前线程对应的Worker,线程不再是Worker的子类,所以通过ThreadLocal找到自己
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<>();
+
+    // 所有存活的线程,关闭线程池的时候用来中断它们
+    private final Set<Worker> allWorkers = ConcurrentHashMap.newKeySet();
+
+    // STOP之后退出的线程缓冲区和自己的队列里还没执行的任务,由shutdownNow收集返回
+    private final ConcurrentLinkedQueue<Runnable> stoppedTasks = new ConcurrentLinkedQueue<>();
+
+    // 进入TERMINATED状态时打开
+    private final CountDownLatch termination = new CountDownLatch(1);
+
+    private static int runStateOf(int c) {
+        return c & ~COUNT_MASK;
+    }
 
-    // 存放核心线程
-    List<Thread> coreList = new ArrayList<>();
+    private static int workerCountOf(int c) {
+        return c & COUNT_MASK;
+    }
 
-    // 存放辅助线程
-    List<Thread> supportList = new ArrayList<>();
+    private static int ctlOf(int runState, int workerCount) {
+        return runState | workerCount;
+    }
 
+    private static boolean isRunning(int c) {
+        return c < SHUTDOWN;
+    }
 
+    private static boolean runStateAtLeast(int c, int state) {
+        return c >= state;
+    }
 
 
     // 希望线程池执行的任务
-    // TODO 解决这里的线程安全问题
     void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        metrics.submitted.increment();
+
+        // 0.工作窃取模式下,线程池自己的线程提交的任务直接放进自己的队列头部
+        // SHUTDOWN之后也接收,因为这是已经接收的任务拆出来的子任务,这个线程退出之前一定会把自己的队列做完
+        if (workStealing) {
+            Worker current = currentWorker.get();
+            if (current != null && !runStateAtLeast(ctl.get(), STOP)) {
+                current.localDeque.offerFirst(wrapLocal(command));
+                signalWork();
+                return;
+            }
+        }
+        command = wrap(command);
+
+        // 线程池已经关闭,不再接收新任务
+        if (!isRunning(ctl.get())) {
+            reject(command);
+            return;
+        }
+
         // 1.当我们的线程小于corePoolSize的时候,我们应当创建线程
-        if(coreList.size() < corePoolSize){
-            Thread thread = new coreThread();
-            coreList.add(thread);
-            thread.start();
+        // 新线程直接把command当作第一个任务,不用再去队列里绕一圈
+        if (workerCountOf(ctl.get()) < corePoolSize && addWorker(command, true)) {
+            return;
         }
 
         // 2.成功放入了阻塞队列内部,直接返回
-        if(blockingQueue.offer(command)){
+        if (blockingQueue.offer(command)) {
+            if (recheckQueued(command)) {
+                reject(command);
+            }
             return;
         }
 
         // 3.没有大于最大线程数,我暂时可以让辅助线程来执行.
-        if(coreList.size() + supportList.size() < maxSize){
-            Thread thread = new supportThread();
-            supportList.add(thread);
-            thread.start();
+        if (addWorker(command, false)) {
+            return;
         }
 
-        if(!blockingQueue.offer(command)){
-            // 这里就会触发拒绝策略
-            rejectHandle.reject(command, this);
+        // 这里就会触发拒绝策略
+        rejectOrEvict(command);
+    }
+
+    /**
+     * 带优先级提交,只有队列是PriorityTaskQueue的时候优先级才生效
+     * 低优先级的任务排队越久越靠前,不会一直被高优先级的任务插队
+     * @param priority PrioritizedTask.MIN_PRIORITY到PrioritizedTask.MAX_PRIORITY之间,越大越紧急
+     */
+    void execute(Runnable command, int priority) {
+        if (command == null) {
+            throw new NullPointerException();
         }
+        execute(PrioritizedTask.withPriority(command, priority));
     }
 
+    /**
+     * 带截止时间提交,只有队列是PriorityTaskQueue的时候才生效,截止时间越早越先执行
+     * @param deadline 从现在开始算,希望多久之内开始执行
+     * @param unit deadline的单位
+     */
+    void execute(Runnable command, long deadline, TimeUnit unit) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        execute(PrioritizedTask.withDeadline(command, PrioritizedTask.saturatedAdd(System.nanoTime(), unit.toNanos(deadline))));
+    }
 
-    // Task 任务,是未来我们核心线程要执行的逻辑
-    // 把任务抽象成一个类
-    class coreThread extends Thread {
-        @Override
-        public void run() {
-            while (true) {
+    /**
+     * 批量提交任务: 线程数的检查和CAS对整批任务只做一次,而不是每个任务做一次; 队列支持的话入队也整批做(见BatchQueue)
+     * 放不下的任务仍然逐个交给拒绝策略
+     * @param commands 要执行的任务,不能包含null
+     */
+    void executeAll(Collection<? extends Runnable> commands) {
+        for (Runnable command : commands) {
+            if (command == null) {
+                throw new NullPointerException();
+            }
+        }
+        int n = commands.size();
+        if (n == 0) {
+            return;
+        }
+        metrics.submitted.add(n);
+
+        // 0.工作窃取模式下,线程池自己的线程提交的任务直接放进自己的队列
+        if (workStealing) {
+            Worker current = currentWorker.get();
+            if (current != null && !runStateAtLeast(ctl.get(), STOP)) {
+                for (Runnable command : commands) {
+                    current.localDeque.offerFirst(wrapLocal(command));
+                }
+                signalWork(n);
+                return;
+            }
+        }
+
+        if (!isRunning(ctl.get())) {
+            for (Runnable command : commands) {
+                reject(wrap(command));
+            }
+            return;
+        }
+
+        Iterator<? extends Runnable> it = commands.iterator();
+
+        // 1.一次CAS预留所有还能创建的核心线程,每个新线程带走一个任务
+        int cores = reserveWorkers(n, true);
+        for (int i = 0; i < cores; ++i) {
+            startWorker(wrap(it.next()), true);
+        }
+
+        // 2.剩下的任务整批放入阻塞队列,第一个放不下的任务留给辅助线程
+        List<Runnable> rest = new ArrayList<>(n - cores);
+        while (it.hasNext()) {
+            rest.add(wrap(it.next()));
+        }
+        int queued = offerAll(rest);
+        if (queued > 0) {
+            recheckQueued(rest.subList(0, queued));
+        }
+        if (queued == rest.size()) {
+            return;
+        }
+
+        // 3.队列满了,一次CAS预留所有还能创建的辅助线程,每个新线程带走一个任务
+        int next = queued;
+        int supports = reserveWorkers(rest.size() - next, false);
+        if (supports == 0) {
+            rejectOrEvict(rest.get(next++));
+        } else {
+            for (int i = 0; i < supports; ++i) {
+                startWorker(rest.get(next++), false);
+            }
+        }
+
+        // 4.还剩下的任务再整批试一次队列,放不下的那个拒绝掉,后面的接着试
+        while (next < rest.size()) {
+            int offered = offerAll(rest.subList(next, rest.size()));
+            if (offered > 0) {
+                recheckQueued(rest.subList(next, next + offered));
+                next += offered;
+            }
+            if (next < rest.size()) {
+                rejectOrEvict(rest.get(next++));
+            }
+        }
+    }
+
+    /**
+     * 按顺序把一批任务放进阻塞队列,放不下就停
+     * 队列实现了BatchQueue的时候整批只抢一次位置,其他的队列只能一个一个放
+     * @return 放进去的个数
+     */
+    private int offerAll(List<Runnable> commands) {
+        if (blockingQueue instanceof BatchQueue) {
+            return ((BatchQueue<Runnable>) blockingQueue).offerAll(commands);
+        }
+        int n = 0;
+        for (Runnable command : commands) {
+            if (!blockingQueue.offer(command)) {
+                break;
+            }
+            ++n;
+        }
+        return n;
+    }
+
+    /**
+     * 任务放进队列之后的检查,execute和把任务重新放回队列的拒绝策略都要做
+     * 放进去的同时线程池被关闭了,能撤回就撤回,撤不回说明已经被某个线程取走了(或者队列不支持撤回)
+     * @return true表示任务被撤回了,调用方要把它当作没有被接收的任务处理
+     */
+    boolean recheckQueued(Runnable command) {
+        int recheck = ctl.get();
+        if (!isRunning(recheck) && tryRemove(command)) {
+            return true;
+        }
+        if (workerCountOf(recheck) == 0) {
+            // corePoolSize为0或者辅助线程刚好全部退出的时候,队列里的任务可能没有人来取
+            addWorker(null, false);
+        } else if (workStealing) {
+            signalWork();
+        }
+        return false;
+    }
+
+    /**
+     * 一批任务放进队列之后的检查,和execute的一样
+     * 线程池已经关闭了就把还能撤回的任务全部撤回来,再逐个交给拒绝策略(拒绝策略可能抛异常,所以先撤完再拒绝)
+     */
+    private void recheckQueued(List<Runnable> batch) {
+        int recheck = ctl.get();
+        if (!isRunning(recheck)) {
+            List<Runnable> withdrawn = new ArrayList<>();
+            for (Runnable command : batch) {
+                if (tryRemove(command)) {
+                    withdrawn.add(command);
+                }
+            }
+            if (withdrawn.size() < batch.size() && workerCountOf(recheck) == 0) {
+                // 撤不回来的任务要有线程把它做完
+                addWorker(null, false);
+            }
+            for (Runnable command : withdrawn) {
+                reject(command);
+            }
+            return;
+        }
+        if (workerCountOf(recheck) == 0) {
+            addWorker(null, false);
+        } else if (workStealing) {
+            signalWork(batch.size());
+        }
+    }
+
+    /**
+     * 从队列里撤回一个刚放进去的任务
+     * 队列不支持remove的时候当作撤不回,和ThreadPoolExecutor一样: 任务留在队列里,SHUTDOWN之后的线程会把它做完
+     */
+    private boolean tryRemove(Runnable command) {
+        try {
+            return blockingQueue.remove(command);
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private void reject(Runnable command) {
+        metrics.recordRejected(rejectHandle);
+        rejectHandle.reject(command, this);
+    }
+
+    /**
+     * 优先级队列满的时候,先把队列里最不紧急的任务换出来交给拒绝策略,而不是直接拒绝新任务
+     */
+    private void rejectOrEvict(Runnable command) {
+        if (blockingQueue instanceof PriorityTaskQueue) {
+            Runnable victim = ((PriorityTaskQueue) blockingQueue).offerOrEvict(command);
+            if (victim != null) {
+                reject(victim);
+            }
+            return;
+        }
+        reject(command);
+    }
+
+    /**
+     * @return 去掉线程池自己加的包装之后的任务
+     */
+    static Runnable unwrap(Runnable command) {
+        return command instanceof TimedTask ? ((TimedTask) command).task : command;
+    }
+
+    /**
+     * 需要统计排队时间的时候给任务打上提交时间,已经包装过的任务(比如被拒绝策略重新提交)保持原来的时间
+     * 队列自己记录排队时间的时候不包装,提交的路径上不分配对象;
+     * 其他的队列(比如ArrayBlockingQueue)没有地方放时间,只能每个任务分配一个TimedTask
+     */
+    private Runnable wrap(Runnable command) {
+        if (!timed || queueRecordsWait || command instanceof TimedTask) {
+            return command;
+        }
+        return new TimedTask(command);
+    }
+
+    /**
+     * 放进线程自己的双端队列的任务总是要包装才能记录排队时间; ConcurrentLinkedDeque每个任务本来就要分配一个节点
+     */
+    private Runnable wrapLocal(Runnable command) {
+        if (!timed || command instanceof TimedTask) {
+            return command;
+        }
+        return new TimedTask(command);
+    }
+
+    /**
+     * 通过CAS给线程数+1,成功之后才真正创建线程
+     * 多个线程同时提交任务的时候,只有CAS成功的那些才能创建线程,所以线程数不会超过上限
+     * @param firstTask 新线程的第一个任务,可以为null
+     * @param core 以corePoolSize还是maxSize作为上限
+     * @return 是否创建了新线程
+     */
+    private boolean addWorker(Runnable firstTask, boolean core) {
+        if (reserveWorkers(1, core, firstTask != null) == 0) {
+            return false;
+        }
+        startWorker(firstTask, core);
+        return true;
+    }
+
+    /**
+     * 一次CAS最多给线程数加上wanted,不会超过上限
+     * @return 实际预留的线程数,调用者必须对每一个都调用startWorker
+     */
+    private int reserveWorkers(int wanted, boolean core) {
+        return reserveWorkers(wanted, core, true);
+    }
+
+    /**
+     * @param withTask 新线程是否带着第一个任务,SHUTDOWN状态下只允许为了处理队列里剩下的任务而创建不带任务的线程
+     */
+    private int reserveWorkers(int wanted, boolean core, boolean withTask) {
+        int reserved;
+        int size;
+        while (true) {
+            int c = ctl.get();
+            if (!isRunning(c) && (withTask || runStateAtLeast(c, STOP) || blockingQueue.isEmpty())) {
+                return 0;
+            }
+            int count = workerCountOf(c);
+            reserved = Math.min(wanted, (core ? corePoolSize : maxSize) - count);
+            if (reserved <= 0) {
+                return 0;
+            }
+            if (ctl.compareAndSet(c, c + reserved)) {
+                size = count + reserved;
+                break;
+            }
+            // CAS失败说明别的线程修改了ctl,重新读取之后再判断
+        }
+
+        int largest;
+        while (size > (largest = largestPoolSize.get()) && !largestPoolSize.compareAndSet(largest, size)) {
+            // 自旋直到记录下最大值
+        }
+        return reserved;
+    }
+
+    /**
+     * 创建并启动一个已经通过reserveWorkers预留过名额的线程
+     */
+    private void startWorker(Runnable firstTask, boolean core) {
+        Worker worker = null;
+        try {
+            worker = core ? new coreWorker(firstTask) : new supportWorker(firstTask);
+            registerWorker(worker);
+            worker.thread.start();
+        } catch (Throwable e) {
+            if (worker != null) {
+                deregisterWorker(worker);
+            }
+            decrementWorkerCount();
+            tryTerminate();
+            throw e;
+        }
+    }
+
+    private void registerWorker(Worker worker) {
+        allWorkers.add(worker);
+        if (!workStealing) {
+            // 只有窃取的时候才需要遍历所有线程,虚拟线程可能有几十万个,不能每次都复制数组
+            return;
+        }
+        synchronized (workersLock) {
+            Worker[] current = workers;
+            Worker[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = worker;
+            workers = next;
+        }
+    }
+
+    private void deregisterWorker(Worker worker) {
+        allWorkers.remove(worker);
+        if (!workStealing) {
+            return;
+        }
+        synchronized (workersLock) {
+            Worker[] current = workers;
+            for (int i = 0; i < current.length; ++i) {
+                if (current[i] == worker) {
+                    Worker[] next = new Worker[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    workers = next;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void decrementWorkerCount() {
+        ctl.decrementAndGet();
+    }
+
+    /**
+     * 线程的主循环,核心线程和辅助线程只在getTask上有区别
+     */
+    private void runWorker(Worker worker) {
+        Runnable command = worker.firstTask;
+        worker.firstTask = null;
+        if (command != null && worker.createdNanos != 0 && !(command instanceof TimedTask)) {
+            // 新线程直接带走的任务,排队时间就是创建和启动线程的时间
+            metrics.queueWait.record(System.nanoTime() - worker.createdNanos);
+        }
+        boolean completedAbruptly = true;
+        if (workStealing) {
+            currentWorker.set(worker);
+        }
+        try {
+            while (command != null || (command = getTask(worker)) != null) {
+                // 执行任务的时候持有自己的锁,shutdown只会中断拿得到锁的(也就是空闲的)线程
+                worker.runLock.lock();
                 try {
+                    // STOP之后要保证任务能看到中断;否则清掉shutdown唤醒空闲线程时留下的中断,不能影响任务
+                    if ((runStateAtLeast(ctl.get(), STOP)
+                            || (Thread.interrupted() && runStateAtLeast(ctl.get(), STOP)))
+                            && !worker.thread.isInterrupted()) {
+                        worker.thread.interrupt();
+                    }
+                    metrics.active.increment();
+                    boolean timing = timed;
+                    long start = timing ? System.nanoTime() : 0;
+                    try {
+                        command.run();
+                    } finally {
+                        if (timing) {
+                            long elapsed = System.nanoTime() - start;
+                            metrics.runTime.record(elapsed);
+                            metrics.busyNanos.add(elapsed);
+                        }
+                        metrics.active.decrement();
+                        metrics.completed.increment();
+                    }
+                } finally {
+                    worker.runLock.unlock();
+                }
+                command = null;
+            }
+            completedAbruptly = false;
+        } finally {
+            processWorkerExit(worker, completedAbruptly);
+        }
+    }
+
+    /**
+     * 获取下一个任务,返回null说明这个线程应该退出(此时线程数已经减过了)
+     * 阻塞等待的时候被中断说明线程池的状态变了,回到循环开头重新检查,而不是把中断当成错误
+     */
+    private Runnable getTask(Worker worker) {
+        if (workStealing) {
+            return getTaskWorkStealing(worker);
+        }
+        long keepAliveNanos = timeUnit.toNanos(timeout);
+        long idleSince = System.nanoTime();
+        while (true) {
+            int c = ctl.get();
+            // STOP之后直接退出; SHUTDOWN之后把队列和自己缓冲区里的任务做完再退出
+            if (runStateAtLeast(c, STOP)
+                    || (runStateAtLeast(c, SHUTDOWN) && blockingQueue.isEmpty() && isBufferEmpty(worker))) {
+                decrementWorkerCount();
+                return null;
+            }
+
+            // 先把上次批量取出来的任务做完
+            Runnable buffered = pollBuffer(worker);
+            if (buffered != null) {
+                return buffered;
+            }
+            try {
+                if (worker.isCore() && !allowCoreThreadTimeOut) {
                     // 如果这里没有数据,就会阻塞住,这就是阻塞等待
-                    Runnable command = blockingQueue.take();
-                    command.run();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                    return blockingQueue.take();
+                }
+                // 如果这里没有数据,就会阻塞住,这就是阻塞等待
+                // 但是我们只会等待1s,1s结束,直接返回null
+                // 开启了控制器的时候每个周期醒来一次,看看有没有回收请求
+                AdaptiveSizingController controller = sizingController;
+                long slice = controller == null ? keepAliveNanos : Math.min(keepAliveNanos, controller.periodNanos());
+                Runnable command = blockingQueue.poll(slice, TimeUnit.NANOSECONDS);
+                if (command != null) {
+                    return command;
                 }
+            } catch (InterruptedException e) {
+                // 被shutdown或者allowCoreThreadTimeOut唤醒,重新检查状态
+                continue;
+            }
+            if (!worker.isCore() && tryRetire()) {
+                return null;
+            }
+            if (System.nanoTime() - idleSince >= keepAliveNanos && tryExitIdle()) {
+                return null;
             }
         }
     }
 
-    class supportThread extends Thread {
-        @Override
-        public void run() {
-            while(true) {
+    private static boolean isBufferEmpty(Worker worker) {
+        ArrayDeque<Runnable> buffer = worker.buffer;
+        if (buffer == null) {
+            return true;
+        }
+        synchronized (buffer) {
+            return buffer.isEmpty();
+        }
+    }
+
+    /**
+     * 工作窃取模式: 自己的队列头部(LIFO) -> 外部提交的共享队列 -> 别人队列的尾部(FIFO)
+     * 都没有的话就park,等待有新任务时被唤醒
+     * SHUTDOWN之后所有队列都找不到任务就退出,shutdown会中断park住的线程
+     */
+    private Runnable getTaskWorkStealing(Worker worker) {
+        long idleNanos = timeUnit.toNanos(timeout);
+        long idleSince = 0;
+        while (true) {
+            int c = ctl.get();
+            if (runStateAtLeast(c, STOP)) {
+                decrementWorkerCount();
+                return null;
+            }
+            Runnable command = findTask(worker);
+            if (command != null) {
+                return command;
+            }
+            if (runStateAtLeast(c, SHUTDOWN)) {
+                decrementWorkerCount();
+                return null;
+            }
+
+            // 先登记成空闲线程,再检查一遍,避免提交任务的线程在我们park之前错过唤醒
+            idleWorkers.offer(worker);
+            command = findTask(worker);
+            if (command != null) {
+                idleWorkers.remove(worker);
+                return command;
+            }
+
+            if (worker.isCore() && !allowCoreThreadTimeOut) {
+                LockSupport.park(this);
+            } else {
+                if (!worker.isCore() && tryRetire()) {
+                    idleWorkers.remove(worker);
+                    return null;
+                }
+                if (idleSince == 0) {
+                    idleSince = System.nanoTime();
+                }
+                long remaining = idleNanos - (System.nanoTime() - idleSince);
+                if (remaining <= 0) {
+                    idleWorkers.remove(worker);
+                    if (tryExitIdle()) {
+                        return null;
+                    }
+                    idleSince = 0;
+                    continue;
+                }
+                AdaptiveSizingController controller = sizingController;
+                LockSupport.parkNanos(this, controller == null ? remaining : Math.min(remaining, controller.periodNanos()));
+            }
+            idleWorkers.remove(worker);
+            // 中断只是用来唤醒的,状态在循环开头重新检查; 不清掉的话之后的park会立刻返回,变成空转
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * 一次加锁从阻塞队列里取出最多drainBatchSize个任务放到自己的缓冲区,然后返回第一个
+     * 队列为空的时候返回null,由调用者去阻塞等待
+     * 缓冲区用它自己的锁保护,shutdownNow会来收走里面的任务; STOP之后不再从缓冲区取,也不再往里放
+     */
+    private Runnable pollBuffer(Worker worker) {
+        ArrayDeque<Runnable> buffer = worker.buffer;
+        int batch = drainBatchSize;
+        if (buffer == null) {
+            if (batch <= 1) {
+                return null;
+            }
+            buffer = worker.buffer = new ArrayDeque<>(batch);
+        }
+        synchronized (buffer) {
+            if (runStateAtLeast(ctl.get(), STOP)) {
+                return null;
+            }
+            Runnable command = buffer.poll();
+            if (command != null || batch <= 1) {
+                return command;
+            }
+            blockingQueue.drainTo(buffer, batch);
+            return buffer.poll();
+        }
+    }
+
+    private Runnable findTask(Worker worker) {
+        Runnable command = worker.localDeque.pollFirst();
+        if (command != null) {
+            return command;
+        }
+        int batch = drainBatchSize;
+        if (batch > 1) {
+            // 批量取到自己的队列里,取多了别的线程也可以来偷
+            int drained = blockingQueue.drainTo(worker.localDeque, batch);
+            if (drained > 1) {
+                signalWork(drained - 1);
+            }
+            command = worker.localDeque.pollFirst();
+        } else {
+            command = blockingQueue.poll();
+        }
+        if (command != null) {
+            return command;
+        }
+        Worker[] snapshot = workers;
+        int n = snapshot.length;
+        if (n > 1) {
+            // 从随机位置开始偷,避免所有线程都去偷同一个
+            int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; ++i) {
+                Worker victim = snapshot[(start + i) % n];
+                if (victim != worker && (command = victim.localDeque.pollLast()) != null) {
+                    return command;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 唤醒一个空闲的线程来处理新任务
+     */
+    private void signalWork() {
+        Worker idle = idleWorkers.poll();
+        if (idle != null) {
+            LockSupport.unpark(idle.thread);
+        }
+    }
+
+    /**
+     * 最多唤醒count个空闲的线程
+     */
+    private void signalWork(int count) {
+        Worker idle;
+        for (int i = 0; i < count && (idle = idleWorkers.poll()) != null; ++i) {
+            LockSupport.unpark(idle.thread);
+        }
+    }
+
+    /**
+     * 空闲超时的线程尝试退出
+     * 我是最后一个线程而且队列里还有任务的时候不能退出,否则这些任务没人执行
+     */
+    private boolean tryExitIdle() {
+        int c = ctl.get();
+        return (workerCountOf(c) > 1 || blockingQueue.isEmpty()) && ctl.compareAndSet(c, c - 1);
+    }
+
+    /**
+     * 辅助线程认领一个控制器发出的回收请求,线程数不会低于corePoolSize
+     */
+    private boolean tryRetire() {
+        while (true) {
+            int requests = retireRequests.get();
+            if (requests <= 0) {
+                return false;
+            }
+            int c = ctl.get();
+            if (workerCountOf(c) <= corePoolSize) {
+                // 已经回收到核心线程数了,剩下的请求作废
+                retireRequests.compareAndSet(requests, 0);
+                return false;
+            }
+            if (retireRequests.compareAndSet(requests, requests - 1)) {
+                if (ctl.compareAndSet(c, c - 1)) {
+                    return true;
+                }
+                // 线程数变了,把请求还回去重新来
+                retireRequests.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 线程因为任务抛出异常而意外结束的时候,要把线程数还回去,并且补一个线程
+     */
+    private void processWorkerExit(Worker worker, boolean completedAbruptly) {
+        ArrayDeque<Runnable> buffer = worker.buffer;
+        if (buffer != null) {
+            // 先处理缓冲区再注销: 还没注销的线程shutdownNow一定能找到,已经注销的它的任务一定在stoppedTasks或者队列里
+            synchronized (buffer) {
+                Runnable left;
+                if (runStateAtLeast(ctl.get(), STOP)) {
+                    // 队列可能已经被shutdownNow清空了,放回去就没人管了,交给shutdownNow返回
+                    while ((left = buffer.poll()) != null) {
+                        stoppedTasks.add(left);
+                    }
+                } else {
+                    // 缓冲区里还没来得及执行的任务放回阻塞队列
+                    while ((left = buffer.poll()) != null) {
+                        if (!blockingQueue.offer(left)) {
+                            reject(left);
+                        }
+                    }
+                }
+            }
+        }
+        if (workStealing) {
+            currentWorker.remove();
+            // 自己队列里剩下的任务不能跟着线程一起消失,和缓冲区一样在注销之前处理,用队列自己的锁和shutdownNow互斥
+            synchronized (worker.localDeque) {
+                Runnable left;
+                if (runStateAtLeast(ctl.get(), STOP)) {
+                    while ((left = worker.localDeque.pollLast()) != null) {
+                        stoppedTasks.add(left);
+                    }
+                } else {
+                    while ((left = worker.localDeque.pollLast()) != null) {
+                        if (!blockingQueue.offer(left)) {
+                            reject(left);
+                        }
+                    }
+                }
+            }
+        }
+        deregisterWorker(worker);
+        if (completedAbruptly) {
+            decrementWorkerCount();
+            addWorker(null, worker.isCore());
+        } else {
+            // 放回去的任务或者别人刚放进来的任务可能已经没有线程来取了
+            int c = ctl.get();
+            if (!runStateAtLeast(c, STOP) && workerCountOf(c) == 0 && !blockingQueue.isEmpty()) {
+                addWorker(null, false);
+            }
+        }
+        tryTerminate();
+    }
+
+    /**
+     * 线程池已经关闭而且没有线程了,就进入TERMINATED状态
+     * 还有线程的话中断一个空闲线程,让退出的消息一个接一个地传下去(有的线程可能在shutdown之后才开始阻塞等待)
+     */
+    private void tryTerminate() {
+        while (true) {
+            int c = ctl.get();
+            if (isRunning(c) || runStateAtLeast(c, TIDYING)
+                    || (runStateOf(c) == SHUTDOWN && !blockingQueue.isEmpty())) {
+                return;
+            }
+            if (workerCountOf(c) != 0) {
+                interruptIdleWorkers(true);
+                return;
+            }
+            if (ctl.compareAndSet(c, ctlOf(TIDYING, 0))) {
                 try {
-                    // 如果这里没有数据,就会阻塞住,这就是阻塞等待
-                    // 但是我们只会等待1s,1s结束,直接返回null
-                    Runnable command = blockingQueue.poll(timeout, timeUnit);
-                    if(command == null){
-                        break;
+                    AdaptiveSizingController controller = sizingController;
+                    if (controller != null) {
+                        controller.stop();
                     }
-                    command.run();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                } finally {
+                    ctl.set(ctlOf(TERMINATED, 0));
+                    termination.countDown();
+                }
+                return;
+            }
+            // CAS失败说明线程数或者状态变了,重新判断
+        }
+    }
+
+    /**
+     * 中断空闲的线程: 拿得到runLock说明它没有在执行任务,正阻塞在队列上或者park着
+     * @param onlyOne 只中断一个
+     */
+    private void interruptIdleWorkers(boolean onlyOne) {
+        for (Worker worker : allWorkers) {
+            Thread t = worker.thread;
+            if (!t.isInterrupted() && worker.runLock.tryLock()) {
+                try {
+                    t.interrupt();
+                } catch (SecurityException ignore) {
+                    // 没有权限中断也不影响关闭,线程超时醒来之后会自己检查状态
+                } finally {
+                    worker.runLock.unlock();
                 }
             }
+            if (onlyOne) {
+                break;
+            }
+        }
+    }
 
-            System.out.println("Support Thread " + Thread.currentThread().getName() + " is Over!");
+    /**
+     * 把运行状态推进到至少targetState,线程数保持不变
+     */
+    private void advanceRunState(int targetState) {
+        while (true) {
+            int c = ctl.get();
+            if (runStateAtLeast(c, targetState) || ctl.compareAndSet(c, ctlOf(targetState, workerCountOf(c)))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 有序关闭: 不再接收新任务,已经接收的任务(包括队列里的)全部执行完,然后线程退出
+     * 不会等待,需要等待的话调用awaitTermination
+     */
+    public void shutdown() {
+        advanceRunState(SHUTDOWN);
+        interruptIdleWorkers(false);
+        tryTerminate();
+    }
+
+    /**
+     * 立即关闭: 不再接收新任务,中断所有线程,返回还没开始执行的任务
+     * 正在执行的任务只能通过中断通知,不响应中断的任务会一直执行到结束
+     * @return 队列里(还包括各个线程批量取出来的缓冲区,工作窃取模式下各个线程自己的队列里)还没执行的任务,去掉了线程池自己加的包装
+     */
+    public List<Runnable> shutdownNow() {
+        advanceRunState(STOP);
+        for (Worker worker : allWorkers) {
+            worker.thread.interrupt();
+        }
+        List<Runnable> drained = new ArrayList<>();
+        // 各个线程批量取出来还没执行的任务; STOP之后线程不会再往缓冲区里放
+        for (Worker worker : allWorkers) {
+            ArrayDeque<Runnable> buffer = worker.buffer;
+            if (buffer != null) {
+                synchronized (buffer) {
+                    drained.addAll(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        Runnable left;
+        if (workStealing) {
+            for (Worker worker : workers) {
+                synchronized (worker.localDeque) {
+                    while ((left = worker.localDeque.pollLast()) != null) {
+                        drained.add(left);
+                    }
+                }
+            }
+        }
+        // 缓冲区和自己的队列都取完了再取stoppedTasks: 正在退出的线程持有锁的时候我们在等它,它放进stoppedTasks的任务在这里能取到
+        while ((left = stoppedTasks.poll()) != null) {
+            drained.add(left);
+        }
+        // 队列最后清: 在这之前退出的线程可能刚把缓冲区放回队列
+        blockingQueue.drainTo(drained);
+        if (!blockingQueue.isEmpty()) {
+            // DelayQueue之类的队列drainTo不一定能取完
+            while ((left = blockingQueue.poll()) != null) {
+                drained.add(left);
+            }
+        }
+        List<Runnable> tasks = new ArrayList<>(drained.size());
+        for (Runnable command : drained) {
+            Runnable task = unwrap(command);
+            tasks.add(task instanceof PrioritizedTask ? ((PrioritizedTask) task).task : task);
+        }
+        tryTerminate();
+        return tasks;
+    }
+
+    /**
+     * @return 是否已经调用过shutdown或者shutdownNow
+     */
+    public boolean isShutdown() {
+        return !isRunning(ctl.get());
+    }
+
+    /**
+     * @return 是否所有线程都已经退出,线程池彻底结束
+     */
+    public boolean isTerminated() {
+        return runStateAtLeast(ctl.get(), TERMINATED);
+    }
+
+    /**
+     * 阻塞直到线程池进入TERMINATED状态,或者超时,或者当前线程被中断
+     * @return true表示已经终止,false表示超时
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return termination.await(timeout, unit);
+    }
+
+    /**
+     * 允许核心线程空闲超过timeout之后退出,高峰期开出来的线程在低峰期可以全部回收
+     * 之后再有任务提交会重新创建核心线程
+     */
+    public void allowCoreThreadTimeOut(boolean value) {
+        if (value && timeout <= 0) {
+            throw new IllegalArgumentException("Core threads must have nonzero keep alive times");
+        }
+        if (value != allowCoreThreadTimeOut) {
+            allowCoreThreadTimeOut = value;
+            if (value) {
+                // 正在无限期等待的核心线程要醒过来换成限时等待
+                interruptIdleWorkers(false);
+            }
+        }
+    }
+
+    public boolean allowsCoreThreadTimeOut() {
+        return allowCoreThreadTimeOut;
+    }
+
+    /**
+     * 设置创建线程的工厂,比如换成虚拟线程
+     * 线程数的上限仍然是maxSize,所以同时运行的任务数有上限,队列满了之后照样走拒绝策略
+     * @param threadFactory 只对之后新创建的线程生效
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        if (threadFactory == null) {
+            throw new NullPointerException();
+        }
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * 设置线程每次从阻塞队列里批量取出的任务数
+     * 批量越大,加锁和唤醒的次数越少,但是取出来的任务其他空闲线程就拿不到了(工作窃取模式下可以偷)
+     * @param drainBatchSize 大于等于1,1表示每次只取一个任务
+     */
+    public void setDrainBatchSize(int drainBatchSize) {
+        if (drainBatchSize < 1) {
+            throw new IllegalArgumentException("drainBatchSize must be at least 1");
+        }
+        this.drainBatchSize = drainBatchSize;
+    }
+
+    /**
+     * 开启根据排队时间自动调整线程数的控制器,之后提交的任务都会记录排队时间
+     * @param controller 一个控制器只能绑定一个线程池
+     */
+    public void setSizingController(AdaptiveSizingController controller) {
+        if (controller == null) {
+            throw new NullPointerException();
+        }
+        enableMetrics();
+        sizingController = controller;
+        controller.start(this);
+    }
+
+    // 下面这些是给控制器用的
+
+    boolean growWorker() {
+        return addWorker(null, false);
+    }
+
+    void requestShrink() {
+        retireRequests.incrementAndGet();
+    }
+
+    LatencyHistogram queueWaitHistogram() {
+        return metrics.queueWait;
+    }
+
+    long busyNanos() {
+        return metrics.busyNanos.sum();
+    }
+
+    /**
+     * 开始记录排队时间和执行时间的直方图(之后提交的任务才会被记录)
+     * 计数器不受影响,一直都在统计
+     */
+    public void enableMetrics() {
+        if (queueRecordsWait) {
+            ((QueueWaitRecorder) blockingQueue).recordWaitInto(metrics.queueWait);
+        }
+        timed = true;
+    }
+
+    /**
+     * 不加锁地读取当前的统计数据,可以周期性地调用
+     * @return 统计数据的快照
+     */
+    public PoolMetrics.Snapshot metricsSnapshot() {
+        return metrics.snapshot(this);
+    }
+
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return 当前存活的线程数
+     */
+    public int getPoolSize() {
+        return workerCountOf(ctl.get());
+    }
+
+    /**
+     * @return 曾经同时存活的最大线程数
+     */
+    public int getLargestPoolSize() {
+        return largestPoolSize.get();
+    }
+
+
+    /**
+     * 带提交时间的任务,真正执行的时候记录排队时间; 执行时间由线程记
+     * 只用在没有别的地方可以放提交时间的时候,见wrap
+     */
+    final class TimedTask implements Runnable {
+        final Runnable task;
+        final long enqueueNanos = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            metrics.queueWait.record(System.nanoTime() - enqueueNanos);
+            task.run();
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    // Worker只是一段循环逻辑,真正执行它的线程由threadFactory创建,可以是平台线程也可以是虚拟线程
+    abstract class Worker implements Runnable {
+        Runnable firstTask;
+
+        final Thread thread;
+
+        // 工作窃取模式下自己的双端队列: 自己从头部取,别人从尾部偷
+        final Deque<Runnable> localDeque = workStealing ? new ConcurrentLinkedDeque<>() : null;
+
+        // 共享队列模式下批量取出来的任务,自己第一次批量取的时候创建; 用它自己的锁,shutdownNow也会来取
+        volatile ArrayDeque<Runnable> buffer;
+
+        // 执行任务期间持有,shutdown用tryLock判断这个线程是不是空闲的
+        final ReentrantLock runLock = new ReentrantLock();
+
+        // 开启统计时带着第一个任务创建的时刻,第一个任务的排队时间从这里算,不用包装; 否则是0
+        final long createdNanos;
+
+        Worker(Runnable firstTask) {
+            this.firstTask = firstTask;
+            this.createdNanos = timed && firstTask != null ? System.nanoTime() : 0;
+            this.thread = threadFactory.newThread(this);
+        }
+
+        abstract boolean isCore();
+
+        @Override
+        public void run() {
+            runWorker(this);
+        }
+    }
+
+    // Task 任务,是未来我们核心线程要执行的逻辑
+    // 把任务抽象成一个类
+    class coreWorker extends Worker {
+        coreWorker(Runnable firstTask) {
+            super(firstTask);
+        }
+
+        @Override
+        boolean isCore() {
+            return true;
+        }
+    }
+
+    class supportWorker extends Worker {
+        supportWorker(Runnable firstTask) {
+            super(firstTask);
+        }
+
+        @Override
+        boolean isCore() {
+            return false;
         }
     }
 
@@ -0,0 +1,146 @@
+package org.nunotaba;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 线程池的统计数据
+ * 计数器都是LongAdder,直方图是按线程分条带的LatencyHistogram,热路径上既没有锁也不分配对象
+ * snapshot()随时可以调用(比如每秒一次),不需要停下任何线程
+ */
+public class PoolMetrics {
+    // execute/executeAll收到的任务数,拒绝策略重新提交的任务会再算一次
+    final LongAdder submitted = new LongAdder();
+    // 执行结束的任务数,抛出异常的任务也算
+    final LongAdder completed = new LongAdder();
+    // 交给拒绝策略的任务数
+    final LongAdder rejected = new LongAdder();
+    // 正在执行任务的线程数
+    final LongAdder active = new LongAdder();
+    // 所有线程执行任务的总时间
+    final LongAdder busyNanos = new LongAdder();
+
+    // 按拒绝策略的类名分别计数,只有第一次遇到某个策略的时候才会创建LongAdder
+    private final ConcurrentHashMap<String, LongAdder> rejectedByHandler = new ConcurrentHashMap<>();
+
+    final LatencyHistogram queueWait = new LatencyHistogram();
+    final LatencyHistogram runTime = new LatencyHistogram();
+
+    void recordRejected(RejectHandle handler) {
+        rejected.increment();
+        rejectedByHandler.computeIfAbsent(handler.getClass().getName(), name -> new LongAdder()).increment();
+    }
+
+    Snapshot snapshot(MyThreadPool pool) {
+        Map<String, Long> byHandler = new LinkedHashMap<>();
+        rejectedByHandler.forEach((name, count) -> byHandler.put(name, count.sum()));
+        return new Snapshot(System.nanoTime(), submitted.sum(), completed.sum(), rejected.sum(),
+                Collections.unmodifiableMap(byHandler), active.sum(), pool.getPoolSize(), pool.getLargestPoolSize(),
+                pool.blockingQueue.size(), queueWait.counts(), runTime.counts());
+    }
+
+    /**
+     * 某一时刻的统计数据,不会再变化
+     * 直方图只有调用过MyThreadPool.enableMetrics()或者开启了控制器之后才有数据
+     */
+    public static final class Snapshot {
+        private final long timestampNanos;
+        private final long submitted;
+        private final long completed;
+        private final long rejected;
+        private final Map<String, Long> rejectedByHandler;
+        private final long activeWorkers;
+        private final int poolSize;
+        private final int largestPoolSize;
+        private final int queueSize;
+        private final long[] queueWaitCounts;
+        private final long[] runTimeCounts;
+
+        Snapshot(long timestampNanos, long submitted, long completed, long rejected, Map<String, Long> rejectedByHandler,
+                 long activeWorkers, int poolSize, int largestPoolSize, int queueSize, long[] queueWaitCounts, long[] runTimeCounts) {
+            this.timestampNanos = timestampNanos;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.rejected = rejected;
+            this.rejectedByHandler = rejectedByHandler;
+            this.activeWorkers = activeWorkers;
+            this.poolSize = poolSize;
+            this.largestPoolSize = largestPoolSize;
+            this.queueSize = queueSize;
+            this.queueWaitCounts = queueWaitCounts;
+            this.runTimeCounts = runTimeCounts;
+        }
+
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return 拒绝策略类名 -> 被它处理的任务数
+         */
+        public Map<String, Long> getRejectedByHandler() {
+            return rejectedByHandler;
+        }
+
+        public long getActiveWorkers() {
+            return activeWorkers;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public int getLargestPoolSize() {
+            return largestPoolSize;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        /**
+         * @param percentile 0到100之间
+         * @return 排队时间的分位数(纳秒)
+         */
+        public long queueWaitAtPercentile(double percentile) {
+            return LatencyHistogram.valueAtPercentile(queueWaitCounts, percentile);
+        }
+
+        /**
+         * @param percentile 0到100之间
+         * @return 执行时间的分位数(纳秒)
+         */
+        public long runTimeAtPercentile(double percentile) {
+            return LatencyHistogram.valueAtPercentile(runTimeCounts, percentile);
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted + ", completed=" + completed + ", rejected=" + rejected + " " + rejectedByHandler
+                    + ", active=" + activeWorkers + ", poolSize=" + poolSize + ", largestPoolSize=" + largestPoolSize
+                    + ", queueSize=" + queueSize
+                    + ", queueWait p50/p99=" + micros(queueWaitAtPercentile(50)) + "/" + micros(queueWaitAtPercentile(99)) + "us"
+                    + ", runTime p50/p99=" + micros(runTimeAtPercentile(50)) + "/" + micros(runTimeAtPercentile(99)) + "us";
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+}
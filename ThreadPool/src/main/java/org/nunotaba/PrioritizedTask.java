@@ -0,0 +1,62 @@
+package org.nunotaba;
+
+/**
+ * 带优先级或者截止时间的任务,由MyThreadPool.execute(command, priority)和execute(command, deadline, unit)创建
+ * 只有线程池的队列是PriorityTaskQueue的时候优先级才会生效,否则和普通任务一样先进先出
+ */
+public final class PrioritizedTask implements Runnable {
+    public static final int MIN_PRIORITY = 1;
+    public static final int NORM_PRIORITY = 5;
+    public static final int MAX_PRIORITY = 10;
+
+    final Runnable task;
+    final int priority;
+    // System.nanoTime()意义下的截止时间,只有hasDeadline为true时才有意义
+    final long deadlineNanos;
+    final boolean hasDeadline;
+
+    private PrioritizedTask(Runnable task, int priority, long deadlineNanos, boolean hasDeadline) {
+        this.task = task;
+        this.priority = priority;
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = hasDeadline;
+    }
+
+    static PrioritizedTask withPriority(Runnable task, int priority) {
+        if (priority < MIN_PRIORITY || priority > MAX_PRIORITY) {
+            throw new IllegalArgumentException("priority must be between " + MIN_PRIORITY + " and " + MAX_PRIORITY);
+        }
+        return new PrioritizedTask(task, priority, 0, false);
+    }
+
+    static PrioritizedTask withDeadline(Runnable task, long deadlineNanos) {
+        return new PrioritizedTask(task, MAX_PRIORITY, deadlineNanos, true);
+    }
+
+    /**
+     * nanoTime意义下的时间加上一段时间,溢出的时候取Long.MAX_VALUE(或者Long.MIN_VALUE),
+     * 否则很远的截止时间(比如用Long.MAX_VALUE表示没有截止时间)会变成负数,反而排到最前面
+     */
+    static long saturatedAdd(long time, long nanos) {
+        long r = time + nanos;
+        // 两个同号的数相加,结果变了号说明溢出了
+        if (((time ^ r) & (nanos ^ r)) < 0) {
+            return nanos > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        return r;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    @Override
+    public void run() {
+        task.run();
+    }
+
+    @Override
+    public String toString() {
+        return task.toString();
+    }
+}
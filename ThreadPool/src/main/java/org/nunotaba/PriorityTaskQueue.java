@@ -0,0 +1,354 @@
+package org.nunotaba;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 按优先级和截止时间排序的有界阻塞队列,底层是无锁的跳表(ConcurrentSkipListSet)
+ *
+ * 每个任务在入队时算出一个"虚拟截止时间":
+ *   带截止时间的任务: 就是它的截止时间
+ *   带优先级的任务:   入队时间 + (MAX_PRIORITY - priority) * agingStep
+ *   普通任务:         按NORM_PRIORITY计算
+ * 队列总是先取虚拟截止时间最早的任务,所以低优先级的任务等得足够久之后一定会排到前面(老化),不会饿死
+ * 跳表两端都可以取,所以队列满的时候可以直接找到最不紧急的任务交给拒绝策略
+ * 每个节点本来就记着入队时间,开启了线程池的统计之后出队时顺便记下排队时间(见QueueWaitRecorder)
+ */
+public class PriorityTaskQueue extends AbstractQueue<Runnable> implements BatchQueue<Runnable>, QueueWaitRecorder {
+
+    private final int capacity;
+    // 每个优先级比最高优先级多等的纳秒数,下标是优先级
+    private final long[] agingNanos;
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>();
+    // 已经放入(或者正在放入)的任务数,入队之前先在这里占位,保证不超过容量
+    private final AtomicInteger count = new AtomicInteger();
+    // 虚拟截止时间相同的时候先进先出
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Waiters notEmpty = new Waiters();
+    private final Waiters notFull = new Waiters();
+
+    // 记录排队时间的直方图,没开启统计的时候是null
+    private volatile LatencyHistogram waitHistogram;
+
+    /**
+     * 默认每差一个优先级多等10毫秒
+     * @param capacity 容量
+     */
+    public PriorityTaskQueue(int capacity) {
+        this(capacity, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param capacity 容量
+     * @param agingStep 优先级每低一级,最多比最高优先级的任务多等多久
+     * @param unit agingStep的单位
+     */
+    public PriorityTaskQueue(int capacity, long agingStep, TimeUnit unit) {
+        if (capacity <= 0 || agingStep < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+        long step = unit.toNanos(agingStep);
+        this.agingNanos = new long[PrioritizedTask.MAX_PRIORITY + 1];
+        for (int p = PrioritizedTask.MIN_PRIORITY; p <= PrioritizedTask.MAX_PRIORITY; ++p) {
+            int steps = PrioritizedTask.MAX_PRIORITY - p;
+            // agingStep很大的时候乘法也会溢出
+            agingNanos[p] = steps != 0 && step > Long.MAX_VALUE / steps ? Long.MAX_VALUE : steps * step;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Runnable task;
+        final long rank;
+        final long seq;
+        final long enqueueNanos;
+
+        Entry(Runnable task, long rank, long seq, long enqueueNanos) {
+            this.task = task;
+            this.rank = rank;
+            this.seq = seq;
+            this.enqueueNanos = enqueueNanos;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int c = Long.compare(rank, other.rank);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    private Entry entryOf(Runnable task) {
+        return entryOf(task, System.nanoTime(), sequence.getAndIncrement());
+    }
+
+    private Entry entryOf(Runnable task, long now, long seq) {
+        Runnable inner = MyThreadPool.unwrap(task);
+        long rank;
+        if (inner instanceof PrioritizedTask) {
+            PrioritizedTask prioritized = (PrioritizedTask) inner;
+            rank = prioritized.hasDeadline ? prioritized.deadlineNanos
+                    : PrioritizedTask.saturatedAdd(now, agingNanos[prioritized.priority]);
+        } else {
+            rank = PrioritizedTask.saturatedAdd(now, agingNanos[PrioritizedTask.NORM_PRIORITY]);
+        }
+        return new Entry(task, rank, seq, now);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            int c = count.get();
+            if (c >= capacity) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                break;
+            }
+        }
+        entries.add(entryOf(task));
+        notEmpty.signal();
+        return true;
+    }
+
+    /**
+     * 一次CAS占住整批的名额,入队时间和序号也整批只取一次
+     */
+    @Override
+    public int offerAll(List<? extends Runnable> tasks) {
+        int n = tasks.size();
+        for (int i = 0; i < n; ++i) {
+            if (tasks.get(i) == null) {
+                throw new NullPointerException();
+            }
+        }
+        int k;
+        while (true) {
+            int c = count.get();
+            k = Math.min(n, capacity - c);
+            if (k <= 0) {
+                return 0;
+            }
+            if (count.compareAndSet(c, c + k)) {
+                break;
+            }
+        }
+        long now = System.nanoTime();
+        long seq = sequence.getAndAdd(k);
+        for (int i = 0; i < k; ++i) {
+            entries.add(entryOf(tasks.get(i), now, seq + i));
+        }
+        notEmpty.signal(k);
+        return k;
+    }
+
+    /**
+     * 队列满的时候,如果新任务比队列里最不紧急的任务更紧急,就把那个任务换出来
+     * @return 需要交给拒绝策略的任务: 被换出来的任务,或者新任务自己; 成功放入且没有换出任务时返回null
+     */
+    public Runnable offerOrEvict(Runnable task) {
+        if (offer(task)) {
+            return null;
+        }
+        Entry incoming = entryOf(task);
+        while (true) {
+            Entry worst;
+            try {
+                worst = entries.last();
+            } catch (NoSuchElementException e) {
+                // 刚好被取空了,重新尝试正常入队
+                if (offer(task)) {
+                    return null;
+                }
+                continue;
+            }
+            if (incoming.compareTo(worst) >= 0) {
+                return task;
+            }
+            // 谁成功删除了worst谁就拥有它的名额,count不变
+            if (entries.remove(worst)) {
+                entries.add(incoming);
+                notEmpty.signal();
+                return worst.task;
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        Entry entry = entries.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        count.decrementAndGet();
+        notFull.signal();
+        LatencyHistogram histogram = waitHistogram;
+        if (histogram != null) {
+            histogram.record(System.nanoTime() - entry.enqueueNanos);
+        }
+        return entry.task;
+    }
+
+    @Override
+    public void recordWaitInto(LatencyHistogram histogram) {
+        waitHistogram = histogram;
+    }
+
+    /**
+     * @return 取出最不紧急的任务,队列为空时返回null
+     */
+    public Runnable pollLowest() {
+        Entry entry = entries.pollLast();
+        if (entry == null) {
+            return null;
+        }
+        count.decrementAndGet();
+        notFull.signal();
+        return entry.task;
+    }
+
+    /**
+     * 按引用删除一个任务,需要遍历跳表,只在线程池关闭时撤回刚放进来的任务用
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        for (Entry entry : entries) {
+            if (entry.task == o && entries.remove(entry)) {
+                count.decrementAndGet();
+                notFull.signal();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Runnable peek() {
+        try {
+            return entries.first().task;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        offer(task, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = deadlineOf(timeout, unit);
+        while (!offer(task)) {
+            if (!await(notFull, deadline, false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = deadlineOf(timeout, unit);
+        Runnable task;
+        while ((task = poll()) == null) {
+            if (!await(notEmpty, deadline, true)) {
+                return null;
+            }
+        }
+        return task;
+    }
+
+    private static long deadlineOf(long timeout, TimeUnit unit) {
+        long nanos = unit.toNanos(timeout);
+        return PrioritizedTask.saturatedAdd(System.nanoTime(), nanos);
+    }
+
+    /**
+     * 登记之后再检查一遍条件,然后park
+     * @return false表示已经超时
+     */
+    private boolean await(Waiters waiters, long deadline, boolean forElements) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        Thread current = Thread.currentThread();
+        waiters.add(current);
+        boolean ready = forElements ? !entries.isEmpty() : count.get() < capacity;
+        if (!ready) {
+            if (remaining == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        waiters.remove(current);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, count.get());
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        Runnable task;
+        while (n < maxElements && (task = poll()) != null) {
+            c.add(task);
+            ++n;
+        }
+        return n;
+    }
+
+    /**
+     * @return 按紧急程度排好序的弱一致性快照,不支持remove
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot = new ArrayList<>();
+        for (Entry entry : entries) {
+            snapshot.add(entry.task);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
@@ -0,0 +1,90 @@
+package org.nunotaba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 比较MpmcRingQueue和ArrayBlockingQueue/LinkedBlockingQueue在1,4,16个生产者下的吞吐量
+ * 消费者固定为4个,生产者用put,消费者用take,和线程池里的用法一样
+ */
+public class QueueBenchmark {
+    private static final int CAPACITY = 1024;
+    private static final int CONSUMERS = 4;
+    private static final int ITEMS = 2_000_000;
+    private static final int[] PRODUCERS = {1, 4, 16};
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int producers : PRODUCERS) {
+            // 先热身一轮
+            run(() -> new MpmcRingQueue<>(CAPACITY), producers);
+            for (int round = 0; round < ROUNDS; ++round) {
+                System.out.printf("producers %2d: ArrayBlockingQueue %5.1f Mops/s, LinkedBlockingQueue %5.1f Mops/s, MpmcRingQueue %5.1f Mops/s%n",
+                        producers,
+                        run(() -> new ArrayBlockingQueue<>(CAPACITY), producers),
+                        run(() -> new LinkedBlockingQueue<>(CAPACITY), producers),
+                        run(() -> new MpmcRingQueue<>(CAPACITY), producers));
+            }
+        }
+    }
+
+    private static double run(Supplier<BlockingQueue<Integer>> factory, int producers) throws InterruptedException {
+        BlockingQueue<Integer> queue = factory.get();
+        int perProducer = ITEMS / producers;
+        int total = perProducer * producers;
+        int perConsumer = total / CONSUMERS;
+        Integer item = 1;
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < producers; ++i) {
+            threads.add(new Thread(() -> {
+                await(start);
+                try {
+                    for (int j = 0; j < perProducer; ++j) {
+                        queue.put(item);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (int i = 0; i < CONSUMERS; ++i) {
+            // 最后一个消费者把除不尽的部分也取走
+            int count = i == CONSUMERS - 1 ? total - perConsumer * (CONSUMERS - 1) : perConsumer;
+            threads.add(new Thread(() -> {
+                await(start);
+                try {
+                    for (int j = 0; j < count; ++j) {
+                        queue.take();
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return (double) total / TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
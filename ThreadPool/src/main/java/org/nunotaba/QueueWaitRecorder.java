@@ -0,0 +1,13 @@
+package org.nunotaba;
+
+/**
+ * 自己记录排队时间的队列: 入队的时候在自己的槽位(或者节点)里记下时间,出队的时候把排队时间记进直方图
+ * 线程池的队列实现了这个接口,开启统计之后就不用把每个任务包装成TimedTask,提交的路径上不分配对象
+ */
+interface QueueWaitRecorder {
+
+    /**
+     * 开始记录排队时间: 之后入队的任务,出队的时候记到histogram里
+     */
+    void recordWaitInto(LatencyHistogram histogram);
+}
@@ -0,0 +1,272 @@
+package org.nunotaba;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 关闭线程池的压测,共享队列模式和工作窃取模式各跑一遍:
+ * 1.很多线程一边提交一边调用shutdown,检查shutdown之前接收的任务全部执行完了,线程全部退出
+ *   ArrayBlockingQueue和MpmcRingQueue各跑一遍
+ * 2.shutdownNow返回的正好是还没执行的那些任务,包括线程批量取出来还没执行的
+ * 3.allowCoreThreadTimeOut之后空闲的核心线程会退出
+ * 4.BlockingRejectHandle等到队列有空位的时候线程池已经关闭了,任务被撤回来拒绝掉,不会被接收
+ * 5.executeAll放入队列的时候线程池已经关闭了,任务要么被执行要么被拒绝,不会留在已经终止的线程池的队列里
+ */
+public class ShutdownStress {
+    private static final int PRODUCERS = 16;
+    private static final int TASKS_PER_PRODUCER = 5_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (boolean workStealing : new boolean[]{false, true}) {
+            String mode = workStealing ? "work stealing" : "shared queue";
+            gracefulShutdown(workStealing, new ArrayBlockingQueue<>(256));
+            System.out.println(mode + ": every task accepted before shutdown() finished");
+            // 无锁队列: execute和shutdown撞上的时候要能撤回任务,不能抛异常,也不能把任务留在没人取的队列里
+            gracefulShutdown(workStealing, new MpmcRingQueue<>(256));
+            System.out.println(mode + ": same with MpmcRingQueue");
+            shutdownNow(workStealing, 1);
+            System.out.println(mode + ": shutdownNow() returned exactly the tasks that did not run");
+            shutdownNow(workStealing, 16);
+            System.out.println(mode + ": same with tasks drained in batches");
+            coreTimeout(workStealing);
+            System.out.println(mode + ": idle core threads timed out");
+            executeAllDuringShutdown(workStealing);
+            System.out.println(mode + ": executeAll() racing shutdown() left nothing in the queue");
+        }
+        requeueAfterShutdown();
+        System.out.println("blocking reject handle: task requeued after shutdown() was withdrawn and rejected");
+        System.exit(0);
+    }
+
+    private static void gracefulShutdown(boolean workStealing, BlockingQueue<Runnable> queue) throws InterruptedException {
+        LongAdder attempts = new LongAdder();
+        LongAdder executed = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        MyThreadPool pool = new MyThreadPool(4, 8, 10, TimeUnit.MILLISECONDS, queue,
+                (command, p) -> rejected.increment(), workStealing);
+        pool.setDrainBatchSize(8);
+
+        Runnable child = executed::increment;
+        Runnable task = () -> {
+            executed.increment();
+            // 工作窃取模式下线程内部提交的子任务,shutdown之后也要做完
+            attempts.increment();
+            pool.execute(child);
+        };
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; ++i) {
+            Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int j = 0; j < TASKS_PER_PRODUCER; ++j) {
+                    attempts.increment();
+                    pool.execute(task);
+                }
+            }, "producer-" + i);
+            producers.add(producer);
+            producer.start();
+        }
+
+        start.countDown();
+        // 在提交到一半左右的时候关闭
+        while (attempts.sum() < (long) PRODUCERS * TASKS_PER_PRODUCER / 2) {
+            Thread.yield();
+        }
+        pool.shutdown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        check(pool.awaitTermination(30, TimeUnit.SECONDS), "pool did not terminate");
+        check(pool.isTerminated() && pool.getPoolSize() == 0, "workers are still alive after termination");
+        long accepted = attempts.sum() - rejected.sum();
+        check(executed.sum() == accepted, "accepted " + accepted + " tasks but executed " + executed.sum());
+        check(rejected.sum() > 0, "nothing was submitted after shutdown, the test did not race");
+    }
+
+    /**
+     * @param drainBatchSize 大于1的时候,排队的任务先被线程一次取到缓冲区里,然后才调用shutdownNow
+     */
+    private static void shutdownNow(boolean workStealing, int drainBatchSize) throws InterruptedException {
+        LongAdder executed = new LongAdder();
+        MyThreadPool pool = new MyThreadPool(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThrowRejectHandle(), workStealing);
+        pool.setDrainBatchSize(drainBatchSize);
+
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Runnable blocker = () -> {
+            running.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        };
+        Set<Runnable> queued = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (drainBatchSize > 1) {
+            // 唯一的线程先卡在第一个任务上,后面的任务排好队之后再放开,线程会把它们一次取走
+            pool.execute(() -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            pool.execute(blocker);
+            for (int i = 0; i < drainBatchSize - 1; ++i) {
+                Runnable task = executed::increment;
+                queued.add(task);
+                pool.execute(task);
+            }
+            gate.countDown();
+            running.await();
+        } else {
+            pool.execute(blocker);
+            running.await();
+        }
+
+        for (int i = 0; i < 100; ++i) {
+            Runnable task = executed::increment;
+            queued.add(task);
+            pool.execute(task, PrioritizedTask.NORM_PRIORITY);
+        }
+
+        List<Runnable> pending = pool.shutdownNow();
+        check(interrupted.await(10, TimeUnit.SECONDS), "running task was not interrupted");
+        check(pool.awaitTermination(10, TimeUnit.SECONDS), "pool did not terminate");
+        check(executed.sum() == 0, "queued tasks ran after shutdownNow()");
+        check(pending.size() == queued.size(), "expected " + queued.size() + " pending tasks but got " + pending.size());
+        for (Runnable task : pending) {
+            check(queued.contains(task), "shutdownNow() returned a wrapped task: " + task);
+        }
+    }
+
+    private static void coreTimeout(boolean workStealing) throws InterruptedException {
+        MyThreadPool pool = new MyThreadPool(4, 4, 20, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThrowRejectHandle(), workStealing);
+        CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; ++i) {
+            pool.execute(done::countDown);
+        }
+        done.await();
+        check(pool.getPoolSize() == 4, "core threads were not started");
+
+        pool.allowCoreThreadTimeOut(true);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.getPoolSize() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        check(pool.getPoolSize() == 0, "idle core threads did not time out, poolSize = " + pool.getPoolSize());
+
+        // 线程全部退出之后还能继续提交
+        CountDownLatch again = new CountDownLatch(1);
+        pool.execute(again::countDown);
+        check(again.await(10, TimeUnit.SECONDS), "task submitted after the core threads timed out did not run");
+        pool.shutdown();
+        check(pool.awaitTermination(10, TimeUnit.SECONDS), "pool did not terminate");
+    }
+
+    private static void executeAllDuringShutdown(boolean workStealing) throws InterruptedException {
+        LongAdder executed = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        // 没有核心线程,任务都要先放进队列
+        MyThreadPool pool = new MyThreadPool(0, 1, 1, TimeUnit.SECONDS, queue,
+                (command, p) -> rejected.increment(), workStealing);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            tasks.add(executed::increment);
+        }
+        // executeAll先遍历一遍检查null,第二遍才真正提交; 在第二遍的时候关闭,正好插在检查运行状态和放入队列之间
+        Collection<Runnable> racing = new AbstractCollection<>() {
+            private int iterations;
+
+            @Override
+            public Iterator<Runnable> iterator() {
+                if (++iterations == 2) {
+                    pool.shutdown();
+                }
+                return tasks.iterator();
+            }
+
+            @Override
+            public int size() {
+                return tasks.size();
+            }
+        };
+        pool.executeAll(racing);
+
+        check(pool.awaitTermination(30, TimeUnit.SECONDS), "pool did not terminate");
+        check(queue.isEmpty(), queue.size() + " tasks left in the queue of a terminated pool");
+        check(executed.sum() + rejected.sum() == tasks.size(),
+                "executed " + executed.sum() + " and rejected " + rejected.sum() + " of " + tasks.size() + " tasks");
+    }
+
+    private static void requeueAfterShutdown() throws InterruptedException {
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+        BlockingRejectHandle handle = new BlockingRejectHandle(30, TimeUnit.SECONDS);
+        MyThreadPool pool = new MyThreadPool(1, 1, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1), handle);
+        LongAdder executed = new LongAdder();
+        pool.execute(() -> await(first));
+        pool.execute(() -> await(second));
+
+        // 线程在做第一个任务,队列里是第二个任务,第三个任务的提交线程在拒绝策略里等空位
+        LongAdder rejected = new LongAdder();
+        Thread producer = new Thread(() -> {
+            try {
+                pool.execute(executed::increment);
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+            }
+        }, "producer");
+        producer.start();
+        while (producer.getState() != Thread.State.TIMED_WAITING && producer.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+
+        // 关闭之后才空出位置: 线程取走第二个任务,卡在second上,提交线程放进去之后要发现线程池已经关闭了
+        pool.shutdown();
+        first.countDown();
+        producer.join();
+        second.countDown();
+
+        check(pool.awaitTermination(30, TimeUnit.SECONDS), "pool did not terminate");
+        check(rejected.sum() == 1 && handle.getTimedOutCount() == 1, "task requeued after shutdown was accepted");
+        check(executed.sum() == 0, "task requeued after shutdown was executed");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
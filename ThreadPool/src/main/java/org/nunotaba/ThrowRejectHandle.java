@@ -1,9 +1,22 @@
 package org.nunotaba;
 
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
 public class ThrowRejectHandle implements RejectHandle{
 
+    private final LongAdder thrown = new LongAdder();
+
     @Override
     public void reject(Runnable rejectedCommand, MyThreadPool pool) {
-        throw new RuntimeException("The Blocking Queue is Full......");
+        thrown.increment();
+        throw new RejectedExecutionException("The Blocking Queue is Full......");
+    }
+
+    /**
+     * @return 抛出异常的次数
+     */
+    public long getThrownCount() {
+        return thrown.sum();
     }
 }
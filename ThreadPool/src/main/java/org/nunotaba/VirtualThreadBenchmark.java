@@ -0,0 +1,52 @@
+package org.nunotaba;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 10万个同时在sleep的任务(模拟阻塞IO),比较平台线程和虚拟线程做worker的耗时
+ * 平台线程没法开10万个,只能开PLATFORM_THREADS个,剩下的任务在队列里排队
+ * 虚拟线程可以直接开到10万个,maxSize仍然限制了同时运行的任务数
+ */
+public class VirtualThreadBenchmark {
+    private static final int TASKS = 100_000;
+    private static final int PLATFORM_THREADS = 200;
+    private static final long SLEEP_MILLIS = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        MyThreadPool platform = new MyThreadPool(PLATFORM_THREADS, PLATFORM_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ThrowRejectHandle());
+        platform.setThreadFactory(WorkerFactories.platform("platform-worker-"));
+        System.out.printf("platform workers (%d threads): %d ms%n", PLATFORM_THREADS, run(platform));
+
+        if (!WorkerFactories.isVirtualSupported()) {
+            System.out.println("virtual workers: skipped, JDK " + System.getProperty("java.version") + " has no virtual threads");
+            System.exit(0);
+        }
+        MyThreadPool virtual = new MyThreadPool(TASKS, TASKS, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1_000), new ThrowRejectHandle());
+        virtual.setThreadFactory(WorkerFactories.virtual("virtual-worker-"));
+        System.out.printf("virtual workers (up to %d threads): %d ms%n", TASKS, run(virtual));
+        System.exit(0);
+    }
+
+    private static long run(MyThreadPool pool) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TASKS);
+        Runnable task = () -> {
+            try {
+                Thread.sleep(SLEEP_MILLIS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            done.countDown();
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < TASKS; ++i) {
+            pool.execute(task);
+        }
+        done.await();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,44 @@
+package org.nunotaba;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * park住的线程,count不为0的时候才需要去唤醒,所以没有等待者的时候offer/poll只多一次volatile读
+ */
+final class Waiters {
+    private final ConcurrentLinkedQueue<Thread> threads = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    void add(Thread thread) {
+        count.incrementAndGet();
+        threads.add(thread);
+    }
+
+    void remove(Thread thread) {
+        if (threads.remove(thread)) {
+            count.decrementAndGet();
+        }
+    }
+
+    void signal() {
+        if (count.get() == 0) {
+            return;
+        }
+        Thread thread = threads.poll();
+        if (thread != null) {
+            count.decrementAndGet();
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * 唤醒最多n个线程,一下子来了n个元素(或者空出n个位置)的时候用
+     */
+    void signal(int n) {
+        for (int i = 0; i < n && count.get() != 0; ++i) {
+            signal();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.nunotaba;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 比较共享队列模式和工作窃取模式在细粒度任务下的吞吐量
+ * 每个外部任务在线程池内部再拆成很多小任务,这正是共享队列锁竞争最严重的场景
+ */
+public class WorkStealingBenchmark {
+    private static final int ROOT_TASKS = 1_000;
+    private static final int CHILDREN_PER_ROOT = 1_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        // 可以通过第一个参数指定线程数,默认是CPU核数
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        System.out.println("threads = " + threads + ", tasks per round = " + (long) ROOT_TASKS * CHILDREN_PER_ROOT);
+        MyThreadPool shared = newPool(threads, false);
+        MyThreadPool stealing = newPool(threads, true);
+
+        // 先热身,让JIT编译完
+        run(shared);
+        run(stealing);
+
+        for (int round = 0; round < ROUNDS; ++round) {
+            long sharedNanos = run(shared);
+            long stealingNanos = run(stealing);
+            System.out.printf("round %d: shared queue %.1f Mtasks/s, work stealing %.1f Mtasks/s%n", round,
+                    throughput(sharedNanos), throughput(stealingNanos));
+        }
+        System.exit(0);
+    }
+
+    private static MyThreadPool newPool(int threads, boolean workStealing) {
+        return new MyThreadPool(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThrowRejectHandle(), workStealing);
+    }
+
+    private static long run(MyThreadPool pool) throws InterruptedException {
+        AtomicLong remaining = new AtomicLong((long) ROOT_TASKS * CHILDREN_PER_ROOT);
+        CountDownLatch done = new CountDownLatch(1);
+        Runnable child = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        };
+        Runnable root = () -> {
+            for (int i = 0; i < CHILDREN_PER_ROOT; ++i) {
+                pool.execute(child);
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROOT_TASKS; ++i) {
+            pool.execute(root);
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private static double throughput(long nanos) {
+        return (double) ROOT_TASKS * CHILDREN_PER_ROOT / TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,77 @@
+package org.nunotaba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多生产者压测: 很多线程同时提交任务,检查线程数从来没有超过maxSize
+ * 同时检查每个任务要么被执行了,要么被拒绝了,不会凭空消失
+ */
+public class WorkerCapStress {
+    private static final int CORE_POOL_SIZE = 4;
+    private static final int MAX_SIZE = 8;
+    private static final int PRODUCERS = 128;
+    private static final int TASKS_PER_PRODUCER = 2_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        LongAdder executed = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        MyThreadPool pool = new MyThreadPool(CORE_POOL_SIZE, MAX_SIZE, 10, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(16), (command, p) -> rejected.increment());
+
+        Runnable task = () -> {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            executed.increment();
+            running.decrementAndGet();
+        };
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; ++i) {
+            Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int j = 0; j < TASKS_PER_PRODUCER; ++j) {
+                    pool.execute(task);
+                }
+            }, "producer-" + i);
+            producers.add(producer);
+            producer.start();
+        }
+
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        long submitted = (long) PRODUCERS * TASKS_PER_PRODUCER;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (executed.sum() + rejected.sum() < submitted && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        System.out.println("submitted = " + submitted + ", executed = " + executed.sum() + ", rejected = " + rejected.sum());
+        System.out.println("largestPoolSize = " + pool.getLargestPoolSize() + ", max concurrently running = " + maxRunning.get());
+
+        if (pool.getLargestPoolSize() > MAX_SIZE || maxRunning.get() > MAX_SIZE) {
+            throw new IllegalStateException("Worker cap " + MAX_SIZE + " was exceeded!");
+        }
+        if (executed.sum() + rejected.sum() != submitted) {
+            throw new IllegalStateException("Some tasks were lost!");
+        }
+        System.out.println("Worker cap holds with " + PRODUCERS + " producers");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,55 @@
+package org.nunotaba;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 给MyThreadPool.setThreadFactory用的线程工厂
+ * 虚拟线程只有JDK 21以上才有,这里通过反射去拿Thread.ofVirtual(),低版本的JDK上也能编译
+ */
+public final class WorkerFactories {
+
+    private WorkerFactories() {
+    }
+
+    /**
+     * @param prefix 线程名前缀
+     * @return 创建平台线程的工厂
+     */
+    public static ThreadFactory platform(String prefix) {
+        AtomicLong counter = new AtomicLong();
+        return runnable -> new Thread(runnable, prefix + counter.incrementAndGet());
+    }
+
+    /**
+     * @return 当前JDK是否支持虚拟线程
+     */
+    public static boolean isVirtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 相当于 Thread.ofVirtual().name(prefix, 0).factory()
+     * 阻塞IO的时候虚拟线程会让出底层的载体线程,所以可以开到几十万个worker
+     * @param prefix 线程名前缀
+     * @return 创建虚拟线程的工厂
+     * @throws UnsupportedOperationException JDK版本低于21
+     */
+    public static ThreadFactory virtual(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need JDK 21 or later", e);
+        }
+    }
+}